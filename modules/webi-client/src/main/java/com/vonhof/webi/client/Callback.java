@@ -0,0 +1,12 @@
+package com.vonhof.webi.client;
+
+/**
+ * Receives the result of an async request
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface Callback<T> {
+
+    public void onSuccess(T response);
+
+    public void onFailure(Throwable error);
+}
@@ -6,174 +6,515 @@ import com.vonhof.babelshark.Input;
 import com.vonhof.babelshark.Output;
 import org.apache.commons.io.IOUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * REST client. Connections are kept alive and reused between requests - responses are always read to the end and
+ * connections are only closed when they fail. Concurrent requests are limited per host.
+ *
+ * Idle connections are kept by the JDK connection cache, which keeps at most http.maxConnections (default 5) idle
+ * connections per host - connections beyond that are closed when a request is done. Set the system property to
+ * match {@link #setMaxRequestsPerHost(int)} to reuse a connection for every concurrent request.
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class RESTClient {
-    
+public class RESTClient implements Closeable {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
     private BabelSharkInstance bs = BabelShark.getDefaultInstance();
     private String contentType = "application/json";
-    
+
     private final String baseUrl;
 
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+    private int maxRetries = 2;
+    private long retryDelay = 100;
+    private int maxRequestsPerHost = 20;
+
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+    private volatile ExecutorService executor;
+
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
     public RESTClient(String baseUrl) {
         this.baseUrl = baseUrl;
     }
-    
+
     public Request req() {
         return new Request();
     }
-    
+
+    /**
+     * Timeout (ms) for connecting - and for waiting for the per host limit
+     * @param connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Timeout (ms) for reading the response
+     * @param readTimeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Max retries of idempotent requests (GET, HEAD, PUT, DELETE) that fail with an I/O error or a 502, 503 or 504
+     * status. Retries back off exponentially from the retry delay.
+     * @param maxRetries
+     * @param retryDelay ms
+     */
+    public void setRetries(int maxRetries, long retryDelay) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Max concurrent requests per host - further requests wait for one of them to finish. Each concurrent request
+     * needs its own connection - see http.maxConnections for how many of them are kept open.
+     * @param maxRequestsPerHost
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        hosts.clear();
+    }
+
+    /**
+     * Executor for async requests - defaults to a cached pool of daemon threads
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Requests currently being sent or read
+     * @return
+     */
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    /**
+     * Requests waiting for the per host limit
+     * @return
+     */
+    public int getWaitingRequests() {
+        return waitingRequests.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Stops the async executor
+     */
+    @Override
+    public void close() {
+        final ExecutorService current = executor;
+        if (current != null) {
+            current.shutdown();
+        }
+    }
+
     protected <T> T send(Request req,String method,Object body,Class<T> responseClass) throws MalformedURLException, IOException {
-        URL url = new URL(req.toURL());
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        
-        conn.setRequestMethod(method.toUpperCase());
-        conn.setInstanceFollowRedirects(true);
-        if (body != null) {
-            conn.setRequestProperty("Content-Type", contentType);
+        final URL url = new URL(req.toURL());
+        final boolean idempotent = !"POST".equalsIgnoreCase(method);
+
+        int attempt = 0;
+        while (true) {
+            try {
+                return sendOnce(url, req, method, body, responseClass);
+            } catch (IOException ex) {
+                if (!idempotent || attempt >= maxRetries || !isRetryable(ex)) {
+                    failureCount.incrementAndGet();
+                    throw ex;
+                }
+            }
+
+            retryCount.incrementAndGet();
+            try {
+                Thread.sleep(retryDelay << attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying " + url);
+            }
+            attempt++;
         }
+    }
 
-        if (!req.headers.isEmpty()) {
+    protected <T> Future<T> sendAsync(final Request req, final String method, final Object body,
+                                      final Class<T> responseClass, final Callback<T> callback) {
+        return getExecutor().submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final T response;
+                try {
+                    response = send(req, method, body, responseClass);
+                } catch (Exception ex) {
+                    if (callback != null) {
+                        callback.onFailure(ex);
+                    }
+                    throw ex;
+                }
+                if (callback != null) {
+                    callback.onSuccess(response);
+                }
+                return response;
+            }
+        });
+    }
+
+    private <T> T sendOnce(URL url, Request req, String method, Object body, Class<T> responseClass) throws IOException {
+        final Semaphore permits = getHostPermits(url);
+        waitingRequests.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a free request slot for " + url.getAuthority());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free request slot for " + url.getAuthority());
+        } finally {
+            waitingRequests.decrementAndGet();
+        }
+
+        activeRequests.incrementAndGet();
+        requestCount.incrementAndGet();
+        try {
+            return execute(url, req, method, body, responseClass);
+        } finally {
+            activeRequests.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T execute(URL url, Request req, String method, Object body, Class<T> responseClass) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setRequestMethod(method.toUpperCase());
+            conn.setInstanceFollowRedirects(true);
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            if (body != null) {
+                conn.setRequestProperty("Content-Type", contentType);
+            }
 
             for(Entry<String,String> header:req.headers.entrySet()) {
                 conn.addRequestProperty(header.getKey(), header.getValue());
             }
+
+            if (body != null) {
+                conn.setDoOutput(true);
+                final OutputStream out = conn.getOutputStream();
+                try {
+                    bs.write(new Output(out,contentType), body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            final int status = conn.getResponseCode();
+            if (status >= 400) {
+                throw new RESTException(method, url.toString(), status, readError(conn));
+            }
+
+            final InputStream in = conn.getInputStream();
+            try {
+                if (responseClass == null) {
+                    return (T) IOUtils.toString(in);
+                }
+
+                T out = null;
+                if (status != HttpURLConnection.HTTP_NO_CONTENT
+                        && !"HEAD".equalsIgnoreCase(method)
+                        && conn.getContentLength() != 0) {
+                    String responseType = conn.getHeaderField("Content-type");
+                    out = bs.read(new Input(in, responseType), responseClass);
+                }
+                //Read to the end so the connection can be reused
+                final byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+
+                }
+                return out;
+            } finally {
+                in.close();
+            }
+        } catch (RESTException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            //Connection is broken - don't reuse it
+            conn.disconnect();
+            throw ex;
+        }
+    }
+
+    private String readError(HttpURLConnection conn) throws IOException {
+        final InputStream err = conn.getErrorStream();
+        if (err == null) {
+            return "";
+        }
+        try {
+            return IOUtils.toString(err);
+        } finally {
+            err.close();
+        }
+    }
+
+    private boolean isRetryable(IOException ex) {
+        if (ex instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (ex instanceof RESTException) {
+            final int status = ((RESTException) ex).getStatus();
+            return status == 502 || status == 503 || status == 504;
+        }
+        return true;
+    }
+
+    private Semaphore getHostPermits(URL url) {
+        final String host = url.getProtocol() + "://" + url.getAuthority();
+        Semaphore permits = hosts.get(host);
+        if (permits == null) {
+            permits = new Semaphore(maxRequestsPerHost, true);
+            final Semaphore existing = hosts.putIfAbsent(host, permits);
+            if (existing != null) {
+                permits = existing;
+            }
         }
-        
-        if (body != null) {
+        return permits;
+    }
 
-            conn.setDoOutput(true);
-            bs.write(new Output(conn.getOutputStream(),contentType), body);
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "webi-client-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
         }
-        
-        if (responseClass != null) {
-            String responseType = conn.getHeaderField("Content-type");
-            T out = bs.read(new Input(conn.getInputStream(), responseType), responseClass);
-            conn.disconnect();
-            return out;
-        } else {
-            String out = IOUtils.toString(conn.getInputStream());
-            conn.disconnect();
-            return (T) out;
+        return executor;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
         }
     }
-    
+
     public static Request from(String baseUrl) {
         return new RESTClient(baseUrl).req();
     }
-    
+
     public final class Request {
         private List<String> paths = new LinkedList<String>();
-        private Map<String,String> queryParams = new HashMap<String, String>();
-        private Map<String,String> headers = new HashMap<String, String>();
+        private Map<String,String> queryParams = new LinkedHashMap<String, String>();
+        private Map<String,String> headers = new LinkedHashMap<String, String>();
 
         private Request() {
-            
+
         }
-            
+
+        /**
+         * Add path - each segment between slashes is url encoded, so an already encoded path is encoded twice (use
+         * {@link #rawP(String)} for those)
+         * @param path
+         * @return
+         */
         public Request p(String path) {
-            paths.add(path);
+            for(String segment:path.split("/")) {
+                if (!segment.isEmpty()) {
+                    paths.add(encode(segment));
+                }
+            }
             return this;
         }
-        
+
+        /**
+         * Add path that is already url encoded - it is added as is
+         * @param path
+         * @return
+         */
+        public Request rawP(String path) {
+            for(String segment:path.split("/")) {
+                if (!segment.isEmpty()) {
+                    paths.add(segment);
+                }
+            }
+            return this;
+        }
+
         public Request q(String name,String value) {
             queryParams.put(name, value);
             return this;
         }
-        
+
         public Request h(String name,String value) {
             headers.put(name, value);
             return this;
         }
-        
+
         private String toURL() {
             StringBuilder sb = new StringBuilder();
             sb.append(baseUrl);
             sb.append("/");
-            
-            for(String path:paths) {
-                sb.append(path);
+
+            for(String segment:paths) {
+                sb.append(segment);
                 sb.append("/");
             }
-            
+
             if (!queryParams.isEmpty()) {
                 sb.append("?");
-                boolean first = false;
+                boolean first = true;
                 for(Entry<String,String> parm:queryParams.entrySet()) {
                     if (first) {
                         first = false;
                     } else {
                         sb.append("&");
                     }
-                    sb.append(parm.getKey())
-                            .append("=")
-                            .append(parm.getValue());
+                    sb.append(encode(parm.getKey()));
+                    if (parm.getValue() != null) {
+                        sb.append("=").append(encode(parm.getValue()));
+                    }
                 }
             }
-            
+
             return sb.toString();
         }
-        
+
         public <T> T get(Class<T> responseType) throws IOException {
             return send(this, "GET", null, responseType);
         }
-        
+
         public void get() throws IOException {
             get(null);
         }
-        
+
+        public <T> Future<T> getAsync(Class<T> responseType, Callback<T> callback) {
+            return sendAsync(this, "GET", null, responseType, callback);
+        }
+
+        public <T> Future<T> getAsync(Class<T> responseType) {
+            return getAsync(responseType, null);
+        }
+
         public <T> T head(Class<T> responseType) throws IOException {
             return send(this, "HEAD", null, responseType);
         }
-        
+
         public void head() throws IOException {
             head(null);
         }
-        
+
         public <T> T delete(Class<T> responseType) throws IOException {
             return send(this, "DELETE", null, responseType);
         }
-        
+
         public void delete() throws IOException {
             delete(null);
         }
-        
+
+        public <T> Future<T> deleteAsync(Class<T> responseType, Callback<T> callback) {
+            return sendAsync(this, "DELETE", null, responseType, callback);
+        }
+
+        public <T> Future<T> deleteAsync(Class<T> responseType) {
+            return deleteAsync(responseType, null);
+        }
+
         public <T> T put(Object body,Class<T> responseType) throws IOException {
             return send(this, "PUT", body, responseType);
         }
-        
+
         public void put(Object body) throws IOException {
             put(body, null);
         }
-        
+
         public void put() throws IOException {
             put(null);
         }
-        
+
+        public <T> Future<T> putAsync(Object body, Class<T> responseType, Callback<T> callback) {
+            return sendAsync(this, "PUT", body, responseType, callback);
+        }
+
+        public <T> Future<T> putAsync(Object body, Class<T> responseType) {
+            return putAsync(body, responseType, null);
+        }
+
         public <T> T post(Object body,Class<T> responseType) throws IOException {
             return send(this, "POST", body, responseType);
         }
-        
+
         public void post(Object body) throws IOException {
             post(body, null);
         }
-        
+
         public void post() throws IOException {
             post(null);
         }
-        
-        
+
+        public <T> Future<T> postAsync(Object body, Class<T> responseType, Callback<T> callback) {
+            return sendAsync(this, "POST", body, responseType, callback);
+        }
+
+        public <T> Future<T> postAsync(Object body, Class<T> responseType) {
+            return postAsync(body, responseType, null);
+        }
+
     }
 }
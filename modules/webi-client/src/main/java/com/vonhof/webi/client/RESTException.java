@@ -0,0 +1,26 @@
+package com.vonhof.webi.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server responds with an error status. Contains the error body sent by the server.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class RESTException extends IOException {
+    private final int status;
+    private final String body;
+
+    public RESTException(String method, String url, int status, String body) {
+        super(String.format("%s %s failed with status %d: %s", method, url, status, body));
+        this.status = status;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
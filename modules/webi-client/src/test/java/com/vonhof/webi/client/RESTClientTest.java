@@ -0,0 +1,110 @@
+package com.vonhof.webi.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class RESTClientTest {
+
+    private HttpServer server;
+    private RESTClient client;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String path = exchange.getRequestURI().getRawPath();
+                if (path.startsWith("/flaky") && failures.getAndDecrement() > 0) {
+                    respond(exchange, 503, "unavailable");
+                } else if (path.startsWith("/error")) {
+                    respond(exchange, 400, "bad request");
+                } else {
+                    respond(exchange, 200, exchange.getRequestURI().toString());
+                }
+            }
+        });
+        server.start();
+        client = new RESTClient("http://127.0.0.1:" + server.getAddress().getPort());
+        client.setRetries(2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void paths_and_query_parameters_are_encoded() throws IOException {
+        String uri = (String) client.req()
+                .p("users/john doe").p("æ&ø")
+                .q("a", "1").q("b", "x&y=z").q("c", null)
+                .get(null);
+
+        assertEquals("/users/john%20doe/%C3%A6%26%C3%B8/?a=1&b=x%26y%3Dz&c", uri);
+    }
+
+    @Test
+    public void raw_paths_are_not_encoded_again() throws IOException {
+        String uri = (String) client.req().rawP("files/a%20b").p("a%20b").get(null);
+
+        assertEquals("/files/a%20b/a%2520b/", uri);
+    }
+
+    @Test
+    public void idempotent_requests_are_retried() throws IOException {
+        failures.set(2);
+        assertEquals("/flaky/", client.req().p("flaky").get(null));
+        assertEquals(2, client.getRetryCount());
+
+        failures.set(1);
+        try {
+            client.req().p("flaky").post();
+            fail("POST must not be retried");
+        } catch (RESTException ex) {
+            assertEquals(503, ex.getStatus());
+        }
+        assertEquals(2, client.getRetryCount());
+        assertEquals(1, client.getFailureCount());
+    }
+
+    @Test
+    public void error_responses_contain_status_and_body() throws IOException {
+        try {
+            client.req().p("error").get(null);
+            fail("Expected RESTException");
+        } catch (RESTException ex) {
+            assertEquals(400, ex.getStatus());
+            assertEquals("bad request", ex.getBody());
+        }
+
+        //Client errors are not retried
+        assertEquals(0, client.getRetryCount());
+        assertEquals(0, client.getActiveRequests());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
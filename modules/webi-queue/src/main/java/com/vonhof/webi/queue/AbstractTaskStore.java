@@ -0,0 +1,21 @@
+package com.vonhof.webi.queue;
+
+import java.util.Collection;
+
+/**
+ * Base class for task stores
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public abstract class AbstractTaskStore<T extends Task> implements TaskStore<T> {
+
+    /**
+     * Remove several tasks at once. Removes the tasks one by one - override if the store can do better.
+     * @param tasks
+     */
+    public void removeAll(Collection<T> tasks) {
+        for (T task : tasks) {
+            remove(task);
+        }
+    }
+}
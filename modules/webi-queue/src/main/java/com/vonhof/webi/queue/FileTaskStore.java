@@ -0,0 +1,639 @@
+package com.vonhof.webi.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable task store. Tasks are appended to a log of memory mapped segment files - removing a task appends a
+ * tombstone. An in-memory index points to the latest record of each task.
+ *
+ * Writes are committed in groups: a background thread forces written segments to disk and wakes up all writers
+ * whose records were included, so many concurrent puts share one fsync. Removes do not wait for the disk - after
+ * a crash a removed task may come back (at-least-once).
+ *
+ * The oldest segment is compacted when less than half of its tasks are still live: live tasks are moved to the
+ * active segment in small chunks and the segment file is deleted once they are on disk. Only the oldest segment is
+ * compacted - so a tombstone is never deleted before the record it removes.
+ *
+ * Record layout: [int length][int crc][byte op][long uuid msb][long uuid lsb][task]. A length of 0 marks the end
+ * of a segment. Records with a bad checksum (torn writes) end recovery of a segment.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class FileTaskStore<T extends Task> extends AbstractTaskStore<T> implements Closeable {
+    private static final Logger log = Logger.getLogger(FileTaskStore.class.getName());
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 16;
+    private static final String PREFIX = "tasks-";
+    private static final String SUFFIX = ".log";
+    private static final byte[] EMPTY = new byte[0];
+    /**
+     * Max live tasks moved per lock round-trip when compacting
+     */
+    private static final int COMPACTION_CHUNK = 64;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final int segmentSize;
+
+    /**
+     * Segments from oldest to newest - the last one is written to
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<UUID, Location> index = new HashMap<UUID, Location>();
+    private final Set<Segment> dirty = new LinkedHashSet<Segment>();
+    private final Set<UUID> unreadable = new HashSet<UUID>();
+
+    private long writeSeq = 0;
+    private long flushedSeq = 0;
+    private boolean closed = false;
+
+    private volatile boolean syncWrites = true;
+    private volatile double compactionThreshold = 0.5;
+
+    private final Thread flusher;
+
+    public FileTaskStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory directory for segment files
+     * @param segmentSize size of each segment file in bytes - limits the size of a single task
+     * @throws IOException
+     */
+    public FileTaskStore(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create task store directory: " + directory);
+        }
+        recover();
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "webi-queue-flusher-" + directory.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Wait for puts to be on disk before returning (default). If false puts return as soon as the task is written
+     * to the mapped file - it is still written to disk shortly after.
+     * @param syncWrites
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * Set ratio of live tasks below which the oldest segment is compacted
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public T get(UUID id) {
+        final Location location;
+        synchronized (this) {
+            location = index.get(id);
+        }
+        if (location == null) {
+            return null;
+        }
+        return deserialize(location.segment.read(location));
+    }
+
+    public void put(T task) {
+        final byte[] payload = serialize(task);
+        final long seq;
+        synchronized (this) {
+            ensureOpen();
+            seq = append(PUT, task.getId(), payload);
+            unreadable.remove(task.getId());
+            notifyAll();
+        }
+        if (syncWrites) {
+            awaitFlushed(seq);
+        }
+    }
+
+    public void remove(T task) {
+        remove(task.getId());
+    }
+
+    public void remove(UUID id) {
+        synchronized (this) {
+            ensureOpen();
+            final Location location = index.remove(id);
+            if (location == null) {
+                return;
+            }
+            unreadable.remove(id);
+            location.segment.ids.remove(id);
+            append(REMOVE, id, EMPTY);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Remove tasks with a single lock round-trip and wake-up of the flusher
+     * @param tasks
+     */
+    @Override
+    public void removeAll(Collection<T> tasks) {
+        synchronized (this) {
+            ensureOpen();
+            boolean removed = false;
+            for (T task : tasks) {
+                final Location location = index.remove(task.getId());
+                if (location == null) {
+                    continue;
+                }
+                unreadable.remove(task.getId());
+                location.segment.ids.remove(task.getId());
+                append(REMOVE, task.getId(), EMPTY);
+                removed = true;
+            }
+            if (removed) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ids of all stored tasks
+     * @return
+     */
+    public synchronized Set<UUID> getIds() {
+        return new HashSet<UUID>(index.keySet());
+    }
+
+    /**
+     * All stored tasks - e.g. to resubmit them to a queue after a restart. Tasks that can not be read (e.g. after an
+     * incompatible change to a task class) are skipped and kept in the store - see {@link #getUnreadableIds()}.
+     * @return
+     */
+    public Collection<T> getAll() {
+        final List<T> out = new ArrayList<T>();
+        for (UUID id : getIds()) {
+            try {
+                final T task = get(id);
+                if (task != null) {
+                    out.add(task);
+                }
+            } catch (TaskStoreException ex) {
+                log.log(Level.WARNING, "Skipping unreadable task " + id, ex);
+                synchronized (this) {
+                    unreadable.add(id);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Ids of stored tasks that could not be read by {@link #getAll()}
+     * @return
+     */
+    public synchronized Set<UUID> getUnreadableIds() {
+        return new HashSet<UUID>(unreadable);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Number of segment files
+     * @return
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Force all writes to disk and close segment files
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new TaskStoreException("Task store is closed");
+        }
+    }
+
+    /**
+     * Append record to the active segment - rolls to a new segment if it is full
+     * @return write sequence the record is part of
+     */
+    private long append(byte op, UUID id, byte[] payload) {
+        final int recordSize = HEADER_SIZE + payload.length;
+        if (recordSize + 4 > segmentSize) {
+            throw new TaskStoreException(String.format("Task %s is too large (%d bytes)", id, payload.length));
+        }
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (!segment.hasRoomFor(recordSize)) {
+            segment = roll();
+        }
+
+        final int offset = segment.append(op, id, payload);
+        dirty.add(segment);
+        writeSeq += recordSize;
+
+        if (op == PUT) {
+            final Location previous = index.put(id, new Location(segment, offset, payload.length));
+            if (previous != null) {
+                previous.segment.ids.remove(id);
+            }
+            segment.ids.add(id);
+            segment.puts++;
+        }
+        return writeSeq;
+    }
+
+    private Segment roll() {
+        final Segment current = segments.get(segments.size() - 1);
+        try {
+            final Segment next = Segment.create(directory, current.number + 1, segmentSize);
+            segments.add(next);
+            return next;
+        } catch (IOException ex) {
+            throw new TaskStoreException("Failed to create segment", ex);
+        }
+    }
+
+    private void awaitFlushed(long seq) {
+        synchronized (this) {
+            while (flushedSeq < seq && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new TaskStoreException("Interrupted while waiting for task to be written");
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            final long target;
+            final List<Segment> toFlush;
+            final boolean stop;
+            synchronized (this) {
+                while (flushedSeq == writeSeq && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                stop = closed;
+                target = writeSeq;
+                toFlush = new ArrayList<Segment>(dirty);
+                dirty.clear();
+            }
+
+            //All writes up to target are forced in one go
+            for (Segment segment : toFlush) {
+                segment.force();
+            }
+
+            synchronized (this) {
+                flushedSeq = target;
+                notifyAll();
+                if (stop) {
+                    return;
+                }
+            }
+            compact();
+        }
+    }
+
+    /**
+     * Compact the oldest segments while they are mostly dead. Live tasks are moved in chunks and forced to disk
+     * without holding the lock - so writers are only blocked for a chunk at a time.
+     */
+    private void compact() {
+        while (true) {
+            final Segment oldest;
+            synchronized (this) {
+                if (closed || segments.size() < 2) {
+                    return;
+                }
+                oldest = segments.get(0);
+                if (!oldest.ids.isEmpty()
+                        && oldest.puts > 0 && oldest.ids.size() >= oldest.puts * compactionThreshold) {
+                    return;
+                }
+            }
+
+            //Move live tasks to the active segment
+            boolean remaining = true;
+            while (remaining) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    final List<UUID> chunk = new ArrayList<UUID>(COMPACTION_CHUNK);
+                    for (UUID id : oldest.ids) {
+                        if (chunk.size() == COMPACTION_CHUNK) {
+                            break;
+                        }
+                        chunk.add(id);
+                    }
+                    for (UUID id : chunk) {
+                        append(PUT, id, oldest.read(index.get(id)));
+                    }
+                    remaining = !oldest.ids.isEmpty();
+                }
+            }
+
+            //Moved tasks must be on disk before the segment is deleted
+            final long target;
+            final List<Segment> toFlush;
+            synchronized (this) {
+                target = writeSeq;
+                toFlush = new ArrayList<Segment>(dirty);
+                dirty.clear();
+            }
+            for (Segment segment : toFlush) {
+                segment.force();
+            }
+
+            synchronized (this) {
+                flushedSeq = Math.max(flushedSeq, target);
+                notifyAll();
+                segments.remove(oldest);
+            }
+            oldest.delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+
+        final List<Long> numbers = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        final Long[] sorted = numbers.toArray(new Long[numbers.size()]);
+        Arrays.sort(sorted);
+
+        for (Long number : sorted) {
+            final Segment segment = Segment.open(directory, number, segmentSize);
+            segments.add(segment);
+            scan(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(directory, 1, segmentSize));
+        }
+    }
+
+    private void scan(Segment segment) {
+        final ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE + 4 <= buffer.capacity()) {
+            final int length = buffer.getInt(position);
+            if (length < HEADER_SIZE - 4 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            final int crc = buffer.getInt(position + 4);
+            if (crc != checksum(buffer, position + 8, length - 4)) {
+                //Torn write
+                break;
+            }
+
+            final byte op = buffer.get(position + 8);
+            final UUID id = new UUID(buffer.getLong(position + 9), buffer.getLong(position + 17));
+            final int payloadLength = length - (HEADER_SIZE - 4);
+
+            if (op == PUT) {
+                final Location previous = index.put(id, new Location(segment, position + HEADER_SIZE, payloadLength));
+                if (previous != null) {
+                    previous.segment.ids.remove(id);
+                }
+                segment.ids.add(id);
+                segment.puts++;
+            } else {
+                final Location previous = index.remove(id);
+                if (previous != null) {
+                    previous.segment.ids.remove(id);
+                }
+            }
+            position += 4 + length;
+        }
+        segment.position = position;
+        segment.markEnd();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private byte[] serialize(T task) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            try {
+                out.writeObject(task);
+            } finally {
+                out.close();
+            }
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new TaskStoreException("Failed to serialize task " + task.getId(), ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T deserialize(byte[] payload) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+            try {
+                return (T) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            throw new TaskStoreException("Failed to deserialize task", ex);
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Single memory mapped log file
+     */
+    private static final class Segment {
+        private final long number;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        /**
+         * Live tasks whose latest record is in this segment
+         */
+        private final Set<UUID> ids = new HashSet<UUID>();
+        /**
+         * Number of put records in this segment
+         */
+        private int puts = 0;
+        private int position = 0;
+
+        private Segment(long number, File file, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+
+        private static Segment create(File directory, long number, int size) throws IOException {
+            final Segment segment = new Segment(number, fileFor(directory, number), size);
+            segment.markEnd();
+            return segment;
+        }
+
+        private static Segment open(File directory, long number, int size) throws IOException {
+            return new Segment(number, fileFor(directory, number), size);
+        }
+
+        private static File fileFor(File directory, long number) {
+            return new File(directory, String.format("%s%012d%s", PREFIX, number, SUFFIX));
+        }
+
+        private boolean hasRoomFor(int recordSize) {
+            return position + recordSize + 4 <= buffer.capacity();
+        }
+
+        /**
+         * @return offset of payload
+         */
+        private int append(byte op, UUID id, byte[] payload) {
+            final int start = position;
+            final ByteBuffer out = buffer.duplicate();
+            out.position(start + 8);
+            out.put(op);
+            out.putLong(id.getMostSignificantBits());
+            out.putLong(id.getLeastSignificantBits());
+            out.put(payload);
+
+            final int length = HEADER_SIZE - 4 + payload.length;
+            position = start + 4 + length;
+            markEnd();
+
+            //Length and checksum last - a record is only valid once it is complete
+            buffer.putInt(start + 4, checksum(buffer, start + 8, length - 4));
+            buffer.putInt(start, length);
+            return start + HEADER_SIZE;
+        }
+
+        private byte[] read(Location location) {
+            final byte[] out = new byte[location.length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(location.offset);
+            view.get(out);
+            return out;
+        }
+
+        private void markEnd() {
+            if (position + 4 <= buffer.capacity()) {
+                buffer.putInt(position, 0);
+            }
+        }
+
+        private void force() {
+            buffer.force();
+        }
+
+        private void close() {
+            buffer.force();
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                //Nothing left to do
+            }
+        }
+
+        private void delete() {
+            close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,775 @@
+package com.vonhof.webi.queue;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rate limited queue kept in memory. Each task type has its own ready queue and lock. Types that have ready tasks
+ * and are below their rate limit are kept in a round robin queue of eligible types - so acquiring a task never scans
+ * pending tasks. Workers waiting for tasks are parked until a type becomes eligible.
+ *
+ * Within a type tasks run by priority, then earliest deadline, then in submission order - each priority has its own
+ * heap. Tasks that are past their deadline when they are due to run are dropped (see {@link #onExpired}). Delayed
+ * tasks are kept in a hierarchical timing wheel until they are due - the wheel is turned by a single timer thread.
+ *
+ * If a task store is given tasks are written to it when submitted and removed when they are done.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class InMemoryRateLimitedQueue<T extends Task, U extends Serializable> extends RateLimitedQueue<T, U> {
+
+    private static final Logger log = Logger.getLogger(InMemoryRateLimitedQueue.class.getName());
+
+    /**
+     * Weight of the latest duration in the average duration per type
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    /**
+     * Resolution (ms) of delayed tasks
+     */
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_LEVELS = 4;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final TaskStore<T> store;
+
+    /**
+     * All tasks - pending and active
+     */
+    private final ConcurrentMap<UUID, T> tasks = new ConcurrentHashMap<UUID, T>();
+
+    /**
+     * Start time (ms) of active tasks
+     */
+    private final ConcurrentMap<UUID, Long> active = new ConcurrentHashMap<UUID, Long>();
+
+    private final ConcurrentMap<String, TypeQueue> types = new ConcurrentHashMap<String, TypeQueue>();
+
+    private final ReentrantLock eligibleLock = new ReentrantLock();
+    private final Condition eligibleAvailable = eligibleLock.newCondition();
+    private final ArrayDeque<TypeQueue> eligible = new ArrayDeque<TypeQueue>();
+
+    /**
+     * Delayed tasks that are not yet due - tasks removed from here are skipped when the wheel fires them
+     */
+    private final ConcurrentMap<UUID, T> delayed = new ConcurrentHashMap<UUID, T>();
+    private final TimingWheel<T> wheel = new TimingWheel<T>(WHEEL_LEVELS, TICK_MS, System.currentTimeMillis());
+    private ScheduledExecutorService timer;
+
+    public InMemoryRateLimitedQueue() {
+        this(null);
+    }
+
+    /**
+     * @param store store for submitted tasks - may be null
+     */
+    public InMemoryRateLimitedQueue(TaskStore<T> store) {
+        this.store = store;
+    }
+
+    @Override
+    public long getEstimatedTimeLeft(String taskType) {
+        final TypeQueue type = types.get(taskType);
+        if (type == null) {
+            return 0;
+        }
+        synchronized (type) {
+            return type.getEstimatedTimeLeft();
+        }
+    }
+
+    @Override
+    public long getEstimatedTimeLeft() {
+        long max = 0;
+        for (TypeQueue type : types.values()) {
+            synchronized (type) {
+                max = Math.max(max, type.getEstimatedTimeLeft());
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public Collection<T> getPending() {
+        final List<T> out = new ArrayList<T>();
+        for (TypeQueue type : types.values()) {
+            synchronized (type) {
+                for (Ready ready : type.readyIndex.values()) {
+                    out.add(ready.task);
+                }
+            }
+        }
+        out.addAll(delayed.values());
+        return out;
+    }
+
+    @Override
+    public int size() {
+        return tasks.size();
+    }
+
+    @Override
+    public T get(UUID id) {
+        return tasks.get(id);
+    }
+
+    @Override
+    public boolean submit(T task) {
+        if (tasks.putIfAbsent(task.getId(), task) != null) {
+            return false;
+        }
+        if (task.getSubmittedAt() <= 0) {
+            task.setSubmittedAt(System.currentTimeMillis());
+        }
+        if (store != null) {
+            store.put(task);
+        }
+
+        enqueue(task);
+        return true;
+    }
+
+    /**
+     * Enqueue tasks that are already in the task store - e.g. tasks read from a {@link FileTaskStore} after a
+     * restart. Tasks are not written to the store again.
+     * @param recovered
+     */
+    public void recover(Collection<T> recovered) {
+        for (T task : recovered) {
+            if (tasks.putIfAbsent(task.getId(), task) != null) {
+                continue;
+            }
+            enqueue(task);
+        }
+    }
+
+    @Override
+    public boolean remove(T task) {
+        if (active.containsKey(task.getId())) {
+            return false;
+        }
+
+        if (delayed.remove(task.getId()) == null) {
+            final TypeQueue type = getTypeQueue(task.getType());
+            synchronized (type) {
+                if (!type.remove(task)) {
+                    return false;
+                }
+            }
+        }
+        tasks.remove(task.getId());
+        if (store != null) {
+            store.remove(task);
+        }
+        return true;
+    }
+
+    @Override
+    public void acknowledge(UUID id, U response) {
+        final T task = complete(id, false);
+        if (task == null) {
+            return;
+        }
+        if (store != null) {
+            store.remove(task);
+        }
+        onAcknowledged(task, response);
+    }
+
+    @Override
+    public void acknowledgeAll(Map<UUID, U> responses) {
+        final List<T> done = completeAll(responses.keySet(), false);
+        if (store != null && !done.isEmpty()) {
+            removeFromStore(done);
+        }
+        for (T task : done) {
+            onAcknowledged(task, responses.get(task.getId()));
+        }
+    }
+
+    @Override
+    public void reject(UUID id, boolean resubmit) {
+        final T task = complete(id, resubmit);
+        if (task != null && !resubmit && store != null) {
+            store.remove(task);
+        }
+    }
+
+    @Override
+    public void rejectAll(Collection<UUID> ids, boolean resubmit) {
+        final List<T> done = completeAll(ids, resubmit);
+        if (!resubmit && store != null && !done.isEmpty()) {
+            removeFromStore(done);
+        }
+    }
+
+    /**
+     * Remove tasks from the store - in one go if the store supports it
+     * @param tasks
+     */
+    @SuppressWarnings("unchecked")
+    private void removeFromStore(List<T> tasks) {
+        if (store instanceof AbstractTaskStore) {
+            ((AbstractTaskStore<T>) store).removeAll(tasks);
+            return;
+        }
+        for (T task : tasks) {
+            store.remove(task);
+        }
+    }
+
+    /**
+     * Called when a task has been acknowledged
+     * @param task
+     * @param response
+     */
+    protected void onAcknowledged(T task, U response) {
+
+    }
+
+    /**
+     * Called when a task has been dropped because its deadline passed before it could run
+     * @param task
+     */
+    protected void onExpired(T task) {
+
+    }
+
+    @Override
+    public long getLag(String taskType) {
+        final TypeQueue type = types.get(taskType);
+        if (type == null) {
+            return 0;
+        }
+        synchronized (type) {
+            return (long) type.averageLag;
+        }
+    }
+
+    @Override
+    public long getOldestAge(String taskType) {
+        final TypeQueue type = types.get(taskType);
+        if (type == null) {
+            return 0;
+        }
+        synchronized (type) {
+            return type.getOldestAge(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Number of delayed tasks that are not yet due
+     * @return
+     */
+    public int getDelayedCount() {
+        return delayed.size();
+    }
+
+    @Override
+    public T acquire() {
+        try {
+            while (true) {
+                final TypeQueue type;
+                eligibleLock.lockInterruptibly();
+                try {
+                    while (eligible.isEmpty()) {
+                        eligibleAvailable.await();
+                    }
+                    type = eligible.poll();
+                } finally {
+                    eligibleLock.unlock();
+                }
+
+                final T task;
+                final boolean stillEligible;
+                final List<T> expired = new ArrayList<T>(0);
+                synchronized (type) {
+                    type.queued = false;
+                    final long now = System.currentTimeMillis();
+                    task = type.poll(now, expired);
+                    if (task != null) {
+                        active.put(task.getId(), now);
+                    }
+                    stillEligible = type.markEligible();
+                }
+                expire(expired);
+
+                if (stillEligible) {
+                    //Back of the line - so types take turns
+                    signalEligible(type);
+                }
+
+                if (task != null) {
+                    return task;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public List<T> acquireBatch(int max, long timeout) {
+        final List<T> out = new ArrayList<T>(Math.min(max, 64));
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            while (out.size() < max) {
+                final TypeQueue type;
+                final int share;
+                eligibleLock.lockInterruptibly();
+                try {
+                    while (eligible.isEmpty()) {
+                        final long left = deadline - System.nanoTime();
+                        if (!out.isEmpty() || left <= 0) {
+                            return out;
+                        }
+                        eligibleAvailable.awaitNanos(left);
+                    }
+                    type = eligible.poll();
+                    //Split the rest of the batch between the eligible types - so types still take turns
+                    final int remaining = max - out.size();
+                    share = (remaining + eligible.size()) / (eligible.size() + 1);
+                } finally {
+                    eligibleLock.unlock();
+                }
+
+                final boolean stillEligible;
+                final List<T> expired = new ArrayList<T>(0);
+                synchronized (type) {
+                    type.queued = false;
+                    final long now = System.currentTimeMillis();
+                    for (int i = 0; i < share; i++) {
+                        final T task = type.poll(now, expired);
+                        if (task == null) {
+                            break;
+                        }
+                        active.put(task.getId(), now);
+                        out.add(task);
+                    }
+                    stillEligible = type.markEligible();
+                }
+                expire(expired);
+
+                if (stillEligible) {
+                    signalEligible(type);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return out;
+    }
+
+    @Override
+    protected void onTaskTypeRateLimitChanged(String taskType) {
+        reschedule(taskType);
+    }
+
+    /**
+     * Re-check if task type is eligible for execution. Called when its rate limit is changed.
+     * @param taskType
+     */
+    public void reschedule(String taskType) {
+        final TypeQueue type = types.get(taskType);
+        if (type == null) {
+            return;
+        }
+        final boolean becameEligible;
+        synchronized (type) {
+            becameEligible = type.markEligible();
+        }
+        if (becameEligible) {
+            signalEligible(type);
+        }
+    }
+
+    /**
+     * Mark active task as done
+     * @param id
+     * @param resubmit put the task back at the front of its queue
+     * @return the task or null if it wasn't active
+     */
+    private T complete(UUID id, boolean resubmit) {
+        final List<T> done = completeAll(Collections.singleton(id), resubmit);
+        return done.isEmpty() ? null : done.get(0);
+    }
+
+    /**
+     * Mark active tasks as done - each task type is locked once
+     * @param ids
+     * @param resubmit put the tasks back at the front of their queues - in the given order
+     * @return the tasks that were active
+     */
+    private List<T> completeAll(Collection<UUID> ids, boolean resubmit) {
+        final List<T> done = new ArrayList<T>(ids.size());
+        final Map<TypeQueue, List<T>> byType = new LinkedHashMap<TypeQueue, List<T>>();
+        final long now = System.currentTimeMillis();
+
+        for (UUID id : ids) {
+            final Long startedAt = active.remove(id);
+            final T task = tasks.get(id);
+            if (startedAt == null || task == null) {
+                continue;
+            }
+
+            if (!resubmit) {
+                tasks.remove(id);
+                if (task.getActualDuration() <= 0) {
+                    task.setActualDuration(now - startedAt);
+                }
+            }
+
+            final TypeQueue type = getTypeQueue(task.getType());
+            List<T> typeTasks = byType.get(type);
+            if (typeTasks == null) {
+                typeTasks = new ArrayList<T>();
+                byType.put(type, typeTasks);
+            }
+            typeTasks.add(task);
+            done.add(task);
+        }
+
+        for (Map.Entry<TypeQueue, List<T>> entry : byType.entrySet()) {
+            final TypeQueue type = entry.getKey();
+            final List<T> typeTasks = entry.getValue();
+            final boolean becameEligible;
+            synchronized (type) {
+                type.activeCount -= typeTasks.size();
+                if (resubmit) {
+                    for (int i = typeTasks.size() - 1; i >= 0; i--) {
+                        type.addFirst(typeTasks.get(i), now);
+                    }
+                } else {
+                    for (T task : typeTasks) {
+                        type.recordDuration(task.getActualDuration());
+                    }
+                }
+                becameEligible = type.markEligible();
+            }
+            if (becameEligible) {
+                signalEligible(type);
+            }
+        }
+        return done;
+    }
+
+    private void enqueue(T task) {
+        if (task.getRunAt() > System.currentTimeMillis()) {
+            delayed.put(task.getId(), task);
+            synchronized (wheel) {
+                if (wheel.add(task, task.getRunAt())) {
+                    startTimer();
+                    return;
+                }
+            }
+            delayed.remove(task.getId());
+        }
+        enqueueReady(task);
+    }
+
+    private void enqueueReady(T task) {
+        final long since = Math.max(task.getRunAt(), task.getSubmittedAt());
+        final TypeQueue type = getTypeQueue(task.getType());
+        final boolean becameEligible;
+        synchronized (type) {
+            type.add(task, since > 0 ? since : System.currentTimeMillis());
+            becameEligible = type.markEligible();
+        }
+        if (becameEligible) {
+            signalEligible(type);
+        }
+    }
+
+    /**
+     * Move due delayed tasks to their ready queues
+     */
+    private void tick() {
+        final List<T> due;
+        synchronized (wheel) {
+            due = wheel.advance(System.currentTimeMillis());
+        }
+        for (T task : due) {
+            if (delayed.remove(task.getId()) != null) {
+                enqueueReady(task);
+            }
+        }
+    }
+
+    /**
+     * Start timer thread - must hold wheel lock
+     */
+    private void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "webi-queue-timer-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException ex) {
+                    //Keep the timer running - a failing task store must not stop delayed tasks
+                    log.log(Level.SEVERE, "Failed to move delayed tasks to queue", ex);
+                }
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop tasks that are past their deadline
+     */
+    private void expire(List<T> expired) {
+        if (expired.isEmpty()) {
+            return;
+        }
+        for (T task : expired) {
+            tasks.remove(task.getId());
+        }
+        if (store != null) {
+            removeFromStore(expired);
+        }
+        for (T task : expired) {
+            onExpired(task);
+        }
+    }
+
+    private void signalEligible(TypeQueue type) {
+        eligibleLock.lock();
+        try {
+            eligible.add(type);
+            eligibleAvailable.signal();
+        } finally {
+            eligibleLock.unlock();
+        }
+    }
+
+    private TypeQueue getTypeQueue(String taskType) {
+        TypeQueue type = types.get(taskType);
+        if (type == null) {
+            type = new TypeQueue(taskType);
+            final TypeQueue existing = types.putIfAbsent(taskType, type);
+            if (existing != null) {
+                type = existing;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Ready task in a priority heap
+     */
+    private final class Ready {
+        private final T task;
+        private final long seq;
+        /**
+         * Time (ms) the task became ready to run
+         */
+        private final long since;
+
+        private Ready(T task, long seq, long since) {
+            this.task = task;
+            this.seq = seq;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Earliest deadline first - then submission order
+     */
+    private final Comparator<Ready> readyOrder = new Comparator<Ready>() {
+        public int compare(Ready a, Ready b) {
+            final long deadlineA = a.task.getDeadline() > 0 ? a.task.getDeadline() : Long.MAX_VALUE;
+            final long deadlineB = b.task.getDeadline() > 0 ? b.task.getDeadline() : Long.MAX_VALUE;
+            if (deadlineA != deadlineB) {
+                return deadlineA < deadlineB ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    /**
+     * Ready tasks and statistics of a single task type. Guarded by its own monitor.
+     */
+    private final class TypeQueue {
+        private final String name;
+        /**
+         * Heap of ready tasks per priority - highest priority first
+         */
+        private final TreeMap<Integer, PriorityQueue<Ready>> ready =
+                new TreeMap<Integer, PriorityQueue<Ready>>(Collections.<Integer>reverseOrder());
+        /**
+         * Ready tasks in the order they became ready
+         */
+        private final LinkedHashMap<UUID, Ready> readyIndex = new LinkedHashMap<UUID, Ready>();
+        private long nextSeq = 0;
+        /**
+         * Decreasing sequence for tasks put back at the front
+         */
+        private long firstSeq = -1;
+        private int activeCount = 0;
+        /**
+         * Sum of estimated durations of ready tasks
+         */
+        private long estimatedTotal = 0;
+        /**
+         * Moving average of actual durations - 0 until the first task is done
+         */
+        private double averageDuration = 0;
+        /**
+         * Moving average of time tasks waited after they became ready
+         */
+        private double averageLag = 0;
+        /**
+         * If type is in the eligible queue
+         */
+        private boolean queued = false;
+
+        private TypeQueue(String name) {
+            this.name = name;
+        }
+
+        private void add(T task, long since) {
+            insert(new Ready(task, nextSeq++, since));
+        }
+
+        private void addFirst(T task, long since) {
+            insert(new Ready(task, firstSeq--, since));
+        }
+
+        private void insert(Ready entry) {
+            PriorityQueue<Ready> heap = ready.get(entry.task.getPriority());
+            if (heap == null) {
+                heap = new PriorityQueue<Ready>(16, readyOrder);
+                ready.put(entry.task.getPriority(), heap);
+            }
+            heap.add(entry);
+            readyIndex.put(entry.task.getId(), entry);
+            estimatedTotal += entry.task.getEstimatedDuration();
+        }
+
+        private boolean remove(T task) {
+            final Ready entry = readyIndex.remove(task.getId());
+            if (entry == null) {
+                return false;
+            }
+            final PriorityQueue<Ready> heap = ready.get(entry.task.getPriority());
+            heap.remove(entry);
+            if (heap.isEmpty()) {
+                ready.remove(entry.task.getPriority());
+            }
+            estimatedTotal -= task.getEstimatedDuration();
+            return true;
+        }
+
+        /**
+         * Take next ready task if the rate limit allows it
+         * @param now
+         * @param expired tasks past their deadline are added here
+         */
+        private T poll(long now, List<T> expired) {
+            if (!canRun()) {
+                return null;
+            }
+            while (!ready.isEmpty()) {
+                final Map.Entry<Integer, PriorityQueue<Ready>> first = ready.firstEntry();
+                final Ready entry = first.getValue().poll();
+                if (first.getValue().isEmpty()) {
+                    ready.remove(first.getKey());
+                }
+                readyIndex.remove(entry.task.getId());
+                estimatedTotal -= entry.task.getEstimatedDuration();
+
+                if (entry.task.getDeadline() > 0 && entry.task.getDeadline() < now) {
+                    expired.add(entry.task);
+                    continue;
+                }
+
+                activeCount++;
+                recordLag(Math.max(0, now - entry.since));
+                return entry.task;
+            }
+            return null;
+        }
+
+        private boolean canRun() {
+            final int limit = getTaskTypeRateLimit(name);
+            return limit < 0 || activeCount < limit;
+        }
+
+        /**
+         * Mark type as queued for execution if it has ready tasks and is below its limit
+         * @return true if the type must be added to the eligible queue
+         */
+        private boolean markEligible() {
+            if (queued || readyIndex.isEmpty() || !canRun()) {
+                return false;
+            }
+            queued = true;
+            return true;
+        }
+
+        private void recordDuration(long duration) {
+            if (averageDuration == 0) {
+                averageDuration = duration;
+            } else {
+                averageDuration += EWMA_ALPHA * (duration - averageDuration);
+            }
+        }
+
+        private void recordLag(long lag) {
+            averageLag += EWMA_ALPHA * (lag - averageLag);
+        }
+
+        /**
+         * Time the longest waiting ready task has been ready
+         */
+        private long getOldestAge(long now) {
+            if (readyIndex.isEmpty()) {
+                return 0;
+            }
+            return Math.max(0, now - readyIndex.values().iterator().next().since);
+        }
+
+        private long getEstimatedTimeLeft() {
+            if (readyIndex.isEmpty()) {
+                return 0;
+            }
+            final long total = averageDuration > 0
+                    ? (long) (averageDuration * readyIndex.size())
+                    : estimatedTotal;
+            final int limit = getTaskTypeRateLimit(name);
+            final int concurrency = limit > 0 ? limit : Math.max(1, activeCount);
+            return total / concurrency;
+        }
+    }
+}
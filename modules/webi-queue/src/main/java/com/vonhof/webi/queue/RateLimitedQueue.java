@@ -16,6 +16,15 @@ public abstract class RateLimitedQueue<T extends Task,U extends Serializable>  {
      */
     public final void setTaskTypeRateLimit(String taskType, int limit) {
         taskTypeRateLimits.put(taskType, limit);
+        onTaskTypeRateLimitChanged(taskType);
+    }
+
+    /**
+     * Called when the rate limit of a task type has changed - e.g. to run tasks that were held back by the old limit
+     * @param taskType
+     */
+    protected void onTaskTypeRateLimitChanged(String taskType) {
+
     }
 
     /**
@@ -43,6 +52,24 @@ public abstract class RateLimitedQueue<T extends Task,U extends Serializable>  {
      */
     public abstract long getEstimatedTimeLeft();
 
+    /**
+     * Get average time (ms) tasks of the given type waited after they were due until they were acquired.
+     * @param taskType
+     * @return 0 if not tracked by the queue
+     */
+    public long getLag(String taskType) {
+        return 0;
+    }
+
+    /**
+     * Get time (ms) the longest waiting task of the given type has been due without being acquired.
+     * @param taskType
+     * @return 0 if not tracked by the queue
+     */
+    public long getOldestAge(String taskType) {
+        return 0;
+    }
+
     /**
      * Get all pending tasks
      * @return
@@ -89,10 +116,47 @@ public abstract class RateLimitedQueue<T extends Task,U extends Serializable>  {
      */
     public abstract void reject(UUID id, boolean resubmit);
 
+    /**
+     * Acknowledge several tasks at once.
+     * @param responses responses by task id
+     */
+    public void acknowledgeAll(Map<UUID, U> responses) {
+        for (Map.Entry<UUID, U> entry : responses.entrySet()) {
+            acknowledge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reject several tasks at once.
+     * @param ids
+     * @param resubmit
+     */
+    public void rejectAll(Collection<UUID> ids, boolean resubmit) {
+        for (UUID id : ids) {
+            reject(id, resubmit);
+        }
+    }
+
     /**
      * Acquire next task, blocks if nothing is available, or if rate limiter determines no tasks are eligible for
      * execution.
      * @return
      */
     public abstract T acquire();
+
+    /**
+     * Acquire up to max tasks. Blocks until at least one task is available or the timeout expires - rate limits
+     * apply to the batch as if the tasks were acquired one by one.
+     * @param max max number of tasks to return
+     * @param timeout max time to wait (ms) for the first task
+     * Default acquires a single task with {@link #acquire()}, which does not time out.
+     * @return acquired tasks - empty if none became available in time
+     */
+    public List<T> acquireBatch(int max, long timeout) {
+        final T task = acquire();
+        if (task == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(task);
+    }
 }
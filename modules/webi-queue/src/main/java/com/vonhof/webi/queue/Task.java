@@ -1,17 +1,21 @@
 package com.vonhof.webi.queue;
 
 import java.io.Serializable;
-import java.lang.ref.WeakReference;
 import java.util.UUID;
 
 public class Task<T extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private final UUID id;
     private final String type;
     private long estimatedDuration;
     private long actualDuration;
+    private int priority;
+    private long runAt;
+    private long deadline;
+    private long submittedAt;
 
-    private transient WeakReference<T> data;
+    private T data;
 
     public Task(String type) {
         this.id = UUID.randomUUID();
@@ -42,11 +46,68 @@ public class Task<T extends Serializable> implements Serializable {
         this.actualDuration = actualDuration;
     }
 
+    /**
+     * Tasks with higher priority run first - default is 0
+     * @return
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Time (ms) before which the task may not run - 0 to run as soon as possible
+     * @return
+     */
+    public long getRunAt() {
+        return runAt;
+    }
+
+    public void setRunAt(long runAt) {
+        this.runAt = runAt;
+    }
+
+    /**
+     * Run the task after the given delay (ms)
+     * @param delay
+     */
+    public void setDelay(long delay) {
+        this.runAt = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * Time (ms) after which the task is no longer worth running - 0 for no deadline. Among tasks of the same
+     * priority the task with the earliest deadline runs first.
+     * @return
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Time (ms) the task was submitted to a queue
+     * @return
+     */
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public void setSubmittedAt(long submittedAt) {
+        this.submittedAt = submittedAt;
+    }
+
     public T getData() {
-        return data.get();
+        return data;
     }
 
     public void setData(T data) {
-        this.data = new WeakReference<T>(data);
+        this.data = data;
     }
 }
@@ -0,0 +1,16 @@
+package com.vonhof.webi.queue;
+
+/**
+ * Thrown when a task store fails to read or write tasks
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class TaskStoreException extends RuntimeException {
+
+    public TaskStoreException(String message) {
+        super(message);
+    }
+
+    public TaskStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,143 @@
+package com.vonhof.webi.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Level 0 has a slot per tick, each higher level has a slot per full round of the level
+ * below it. Entries are placed in the lowest level that covers their due time and cascade down as the wheel turns -
+ * so adding and firing an entry is O(1) no matter how many entries are scheduled. Entries due beyond the top level
+ * are parked in its last slot and placed again when it is reached.
+ *
+ * Not thread safe.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class TimingWheel<E> {
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+
+    private final long tickMs;
+    private final List<List<List<Entry<E>>>> levels;
+    private long currentTick;
+    private int size = 0;
+
+    TimingWheel(int levelCount, long tickMs, long now) {
+        this.tickMs = tickMs;
+        this.currentTick = now / tickMs;
+        this.levels = new ArrayList<List<List<Entry<E>>>>(levelCount);
+        for (int i = 0; i < levelCount; i++) {
+            final List<List<Entry<E>>> slots = new ArrayList<List<Entry<E>>>(SIZE);
+            for (int j = 0; j < SIZE; j++) {
+                slots.add(new ArrayList<Entry<E>>());
+            }
+            levels.add(slots);
+        }
+    }
+
+    /**
+     * Schedule value
+     * @param value
+     * @param dueAt time (ms) the value is due
+     * @return false if the value is already due - it is not added
+     */
+    boolean add(E value, long dueAt) {
+        //Round up - values must never fire early
+        final Entry<E> entry = new Entry<E>(value, (dueAt + tickMs - 1) / tickMs);
+        if (!place(entry)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Number of scheduled values
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Turn the wheel to the given time
+     * @param now
+     * @return values that are due - in no particular order
+     */
+    List<E> advance(long now) {
+        final List<E> due = new ArrayList<E>();
+        final long target = now / tickMs;
+        while (currentTick < target) {
+            if (size == 0) {
+                currentTick = target;
+                break;
+            }
+            currentTick++;
+
+            //Cascade higher levels whose round starts at this tick - from the top
+            int level = 1;
+            while (level < levels.size() && (currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int i = level - 1; i >= 1; i--) {
+                for (Entry<E> entry : drain(i, (int) ((currentTick >> (BITS * i)) & MASK))) {
+                    if (!place(entry)) {
+                        due.add(entry.value);
+                        size--;
+                    }
+                }
+            }
+
+            for (Entry<E> entry : drain(0, (int) (currentTick & MASK))) {
+                if (!place(entry)) {
+                    due.add(entry.value);
+                    size--;
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Put entry in the lowest level that covers it
+     * @return false if the entry is due
+     */
+    private boolean place(Entry<E> entry) {
+        final long delta = entry.tick - currentTick;
+        if (delta <= 0) {
+            return false;
+        }
+
+        final int top = levels.size() - 1;
+        for (int level = 0; level <= top; level++) {
+            final long span = 1L << (BITS * (level + 1));
+            if (delta < span || level == top) {
+                final long tick = delta < span ? entry.tick : currentTick + span - 1;
+                levels.get(level).get((int) ((tick >> (BITS * level)) & MASK)).add(entry);
+                break;
+            }
+        }
+        return true;
+    }
+
+    private List<Entry<E>> drain(int level, int slot) {
+        final List<List<Entry<E>>> slots = levels.get(level);
+        final List<Entry<E>> entries = slots.get(slot);
+        if (entries.isEmpty()) {
+            return entries;
+        }
+        slots.set(slot, new ArrayList<Entry<E>>());
+        return entries;
+    }
+
+    private static final class Entry<E> {
+        private final E value;
+        private final long tick;
+
+        private Entry(E value, long tick) {
+            this.value = value;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.vonhof.webi.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+
+public class FileTaskStoreTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("webi-queue", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void tasks_survive_reopen() throws IOException {
+        FileTaskStore<Task<String>> store = new FileTaskStore<Task<String>>(directory, 4096);
+        Task<String> kept = new Task<String>("kept");
+        kept.setData("data");
+        Task<String> removed = new Task<String>("removed");
+        store.put(kept);
+        store.put(removed);
+        store.remove(removed);
+        assertEquals(1, store.size());
+        store.close();
+
+        store = new FileTaskStore<Task<String>>(directory, 4096);
+        assertEquals(Collections.singleton(kept.getId()), store.getIds());
+        assertEquals("data", store.get(kept.getId()).getData());
+        assertNull(store.get(removed.getId()));
+        store.close();
+    }
+
+    @Test
+    public void recovery_stops_at_torn_record() throws IOException {
+        FileTaskStore<Task<String>> store = new FileTaskStore<Task<String>>(directory, 4096);
+        Task<String> first = new Task<String>("first");
+        Task<String> second = new Task<String>("second");
+        store.put(first);
+        store.put(second);
+        store.close();
+
+        //Length of a record that was never completed followed by garbage
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, "tasks-000000000001.log"), "rw");
+        try {
+            int position = 0;
+            file.seek(position);
+            int length = file.readInt();
+            while (length != 0) {
+                position += 4 + length;
+                file.seek(position);
+                length = file.readInt();
+            }
+            file.seek(position);
+            file.writeInt(100);
+            file.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        } finally {
+            file.close();
+        }
+
+        store = new FileTaskStore<Task<String>>(directory, 4096);
+        assertEquals(2, store.size());
+        assertEquals("first", store.get(first.getId()).getType());
+        assertEquals("second", store.get(second.getId()).getType());
+
+        //New records overwrite the torn one
+        Task<String> third = new Task<String>("third");
+        store.put(third);
+        store.close();
+
+        store = new FileTaskStore<Task<String>>(directory, 4096);
+        assertEquals(3, store.size());
+        assertEquals("third", store.get(third.getId()).getType());
+        store.close();
+    }
+
+    @Test
+    public void mostly_removed_segments_are_compacted() throws Exception {
+        FileTaskStore<Task<String>> store = new FileTaskStore<Task<String>>(directory, 4096);
+        List<Task<String>> tasks = new ArrayList<Task<String>>();
+        for (int i = 0; i < 50; i++) {
+            Task<String> task = new Task<String>("task");
+            task.setData("task " + i);
+            store.put(task);
+            tasks.add(task);
+        }
+        final int segmentCount = store.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        //Keep the first task - it has to be moved out of the oldest segment
+        for (Task<String> task : tasks.subList(1, tasks.size() - 1)) {
+            store.remove(task);
+        }
+        store.put(new Task<String>("trigger"));
+
+        for (int i = 0; i < 100 && store.getSegmentCount() >= segmentCount; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getSegmentCount() < segmentCount);
+        assertEquals(3, store.size());
+        store.close();
+
+        store = new FileTaskStore<Task<String>>(directory, 4096);
+        assertEquals(3, store.size());
+        assertEquals("task 0", store.get(tasks.get(0).getId()).getData());
+        assertEquals("task 49", store.get(tasks.get(49).getId()).getData());
+        assertNull(store.get(tasks.get(1).getId()));
+        store.close();
+    }
+
+    @Test
+    public void compaction_keeps_all_live_tasks() throws Exception {
+        FileTaskStore<Task<String>> store = new FileTaskStore<Task<String>>(directory, 64 * 1024);
+        List<Task<String>> tasks = new ArrayList<Task<String>>();
+        for (int i = 0; i < 600; i++) {
+            Task<String> task = new Task<String>("task");
+            store.put(task);
+            tasks.add(task);
+        }
+        final int segmentCount = store.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        //More live tasks per segment than are moved at a time
+        Set<UUID> live = new HashSet<UUID>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (i % 3 == 0) {
+                live.add(tasks.get(i).getId());
+            } else {
+                store.remove(tasks.get(i));
+            }
+        }
+        store.put(new Task<String>("trigger"));
+
+        for (int i = 0; i < 100 && store.getSegmentCount() >= segmentCount; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getSegmentCount() < segmentCount);
+        store.close();
+
+        store = new FileTaskStore<Task<String>>(directory, 64 * 1024);
+        assertTrue(store.getIds().containsAll(live));
+        assertEquals(live.size() + 1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void concurrent_puts_are_committed_in_groups() throws Exception {
+        final FileTaskStore<Task<String>> store = new FileTaskStore<Task<String>>(directory, 1024 * 1024);
+        final Set<UUID> ids = Collections.synchronizedSet(new HashSet<UUID>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        Task<String> task = new Task<String>("task");
+                        store.put(task);
+                        ids.add(task.getId());
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //Puts that do not wait for the disk are written on close
+        store.setSyncWrites(false);
+        for (int i = 0; i < 10; i++) {
+            Task<String> task = new Task<String>("async");
+            store.put(task);
+            ids.add(task.getId());
+        }
+        store.close();
+
+        FileTaskStore<Task<String>> reopened = new FileTaskStore<Task<String>>(directory, 1024 * 1024);
+        assertEquals(ids, reopened.getIds());
+        reopened.close();
+    }
+
+    @Test
+    public void unreadable_tasks_are_skipped() throws IOException {
+        FileTaskStore<Task> store = new FileTaskStore<Task>(directory, 4096);
+        Task<String> readable = new Task<String>("readable");
+        Task<Unreadable> unreadable = new Task<Unreadable>("unreadable");
+        unreadable.setData(new Unreadable());
+        store.put(readable);
+        store.put(unreadable);
+
+        assertEquals(1, store.getAll().size());
+        assertEquals(Collections.singleton(unreadable.getId()), store.getUnreadableIds());
+        assertEquals(2, store.size());
+
+        store.remove(unreadable.getId());
+        assertTrue(store.getUnreadableIds().isEmpty());
+        store.close();
+    }
+
+    private static class Unreadable implements Serializable {
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new IOException("Incompatible");
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.vonhof.webi.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+
+public class InMemoryRateLimitedQueueTest {
+
+    @Test
+    public void tasks_are_limited_by_the_rate_limit_of_their_type() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        queue.setTaskTypeRateLimit("a", 1);
+        Task<String> first = new Task<String>("a");
+        Task<String> second = new Task<String>("a");
+        queue.submit(first);
+        queue.submit(second);
+
+        assertSame(first, queue.acquire());
+        assertTrue(queue.acquireBatch(1, 20).isEmpty());
+
+        queue.acknowledge(first.getId(), "done");
+        assertSame(second, queue.acquire());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void raising_the_rate_limit_releases_waiting_tasks() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        queue.setTaskTypeRateLimit("a", 0);
+        Task<String> task = new Task<String>("a");
+        queue.submit(task);
+        assertTrue(queue.acquireBatch(1, 20).isEmpty());
+
+        queue.setTaskTypeRateLimit("a", 1);
+        assertEquals(task, queue.acquireBatch(1, 1000).get(0));
+    }
+
+    @Test
+    public void task_types_take_turns() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        for (String type : new String[]{"a", "a", "a", "b", "b"}) {
+            queue.submit(new Task<String>(type));
+        }
+
+        List<String> types = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            types.add(queue.acquire().getType());
+        }
+        assertEquals(Arrays.asList("a", "b", "a", "b", "a"), types);
+    }
+
+    @Test
+    public void delayed_tasks_run_when_due() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        Task<String> task = new Task<String>("a");
+        task.setDelay(100);
+        queue.submit(task);
+
+        assertEquals(1, queue.getDelayedCount());
+        assertTrue(queue.acquireBatch(1, 20).isEmpty());
+
+        List<Task<String>> acquired = queue.acquireBatch(1, 2000);
+        assertEquals(1, acquired.size());
+        assertTrue(System.currentTimeMillis() >= task.getRunAt());
+        assertEquals(0, queue.getDelayedCount());
+    }
+
+    @Test
+    public void tasks_past_their_deadline_are_dropped() {
+        final List<Task<String>> expired = new ArrayList<Task<String>>();
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>() {
+            @Override
+            protected void onExpired(Task<String> task) {
+                expired.add(task);
+            }
+        };
+        Task<String> late = new Task<String>("a");
+        late.setDeadline(System.currentTimeMillis() - 1);
+        Task<String> onTime = new Task<String>("a");
+        queue.submit(late);
+        queue.submit(onTime);
+
+        assertSame(onTime, queue.acquire());
+        assertEquals(1, expired.size());
+        assertSame(late, expired.get(0));
+        assertNull(queue.get(late.getId()));
+    }
+
+    @Test
+    public void tasks_run_by_priority_then_earliest_deadline() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        final long now = System.currentTimeMillis();
+        Task<String> noDeadline = new Task<String>("a");
+        Task<String> late = new Task<String>("a");
+        late.setDeadline(now + 20000);
+        Task<String> early = new Task<String>("a");
+        early.setDeadline(now + 10000);
+        Task<String> important = new Task<String>("a");
+        important.setPriority(1);
+        for (Task<String> task : Arrays.asList(noDeadline, late, early, important)) {
+            queue.submit(task);
+        }
+
+        assertSame(important, queue.acquire());
+        assertSame(early, queue.acquire());
+        assertSame(late, queue.acquire());
+        assertSame(noDeadline, queue.acquire());
+    }
+
+    @Test
+    public void delayed_tasks_past_their_deadline_are_dropped_when_due() {
+        final List<Task<String>> expired = new ArrayList<Task<String>>();
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>() {
+            @Override
+            protected void onExpired(Task<String> task) {
+                expired.add(task);
+            }
+        };
+        Task<String> late = new Task<String>("a");
+        late.setDelay(50);
+        late.setDeadline(System.currentTimeMillis() + 20);
+        Task<String> onTime = new Task<String>("a");
+        onTime.setDelay(100);
+        queue.submit(late);
+        queue.submit(onTime);
+
+        assertEquals(Collections.singletonList(onTime), queue.acquireBatch(2, 2000));
+        assertEquals(Collections.singletonList(late), expired);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void resubmitted_tasks_go_to_the_front() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        Task<String> first = new Task<String>("a");
+        Task<String> second = new Task<String>("a");
+        queue.submit(first);
+        queue.submit(second);
+
+        assertSame(first, queue.acquire());
+        queue.reject(first.getId(), true);
+        assertSame(first, queue.acquire());
+        assertSame(second, queue.acquire());
+
+        queue.reject(second.getId(), false);
+        assertNull(queue.get(second.getId()));
+    }
+
+    @Test
+    public void batches_respect_rate_limits_and_share_between_types() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        queue.setTaskTypeRateLimit("limited", 2);
+        for (int i = 0; i < 5; i++) {
+            queue.submit(new Task<String>("limited"));
+        }
+        assertEquals(2, queue.acquireBatch(10, 20).size());
+
+        for (int i = 0; i < 5; i++) {
+            queue.submit(new Task<String>("a"));
+            queue.submit(new Task<String>("b"));
+        }
+        int a = 0;
+        for (Task<String> task : queue.acquireBatch(4, 20)) {
+            if (task.getType().equals("a")) {
+                a++;
+            }
+        }
+        assertTrue(a >= 1 && a <= 3);
+    }
+
+    @Test
+    public void batches_are_rejected_to_the_front_in_order() {
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>();
+        List<Task<String>> tasks = new ArrayList<Task<String>>();
+        for (int i = 0; i < 4; i++) {
+            Task<String> task = new Task<String>("a");
+            queue.submit(task);
+            tasks.add(task);
+        }
+
+        List<Task<String>> batch = queue.acquireBatch(3, 20);
+        assertEquals(tasks.subList(0, 3), batch);
+        List<UUID> ids = new ArrayList<UUID>();
+        for (Task<String> task : batch) {
+            ids.add(task.getId());
+        }
+        queue.rejectAll(ids, true);
+
+        assertEquals(tasks, queue.acquireBatch(4, 20));
+    }
+
+    @Test
+    public void batches_are_acknowledged_at_once() {
+        final Map<UUID, String> acknowledged = new HashMap<UUID, String>();
+        InMemoryRateLimitedQueue<Task<String>, String> queue = new InMemoryRateLimitedQueue<Task<String>, String>() {
+            @Override
+            protected void onAcknowledged(Task<String> task, String response) {
+                acknowledged.put(task.getId(), response);
+            }
+        };
+        Map<UUID, String> responses = new HashMap<UUID, String>();
+        for (int i = 0; i < 3; i++) {
+            Task<String> task = new Task<String>("a");
+            queue.submit(task);
+            responses.put(task.getId(), "response " + i);
+        }
+
+        assertEquals(3, queue.acquireBatch(3, 20).size());
+        queue.acknowledgeAll(responses);
+
+        assertEquals(responses, acknowledged);
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,54 @@
+package com.vonhof.webi.queue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class TimingWheelTest {
+
+    @Test
+    public void values_cascade_down_through_the_levels() {
+        TimingWheel<String> wheel = new TimingWheel<String>(3, 10, 0);
+        //Level 0 covers 64 ticks, level 1 4096 and level 2 262144
+        assertTrue(wheel.add("level0", 300));
+        assertTrue(wheel.add("level1", 5000));
+        assertTrue(wheel.add("level2", 50000));
+        assertEquals(3, wheel.size());
+
+        assertTrue(wheel.advance(290).isEmpty());
+        assertEquals(Collections.singletonList("level0"), wheel.advance(300));
+        assertTrue(wheel.advance(4990).isEmpty());
+        assertEquals(Collections.singletonList("level1"), wheel.advance(5000));
+        assertTrue(wheel.advance(49990).isEmpty());
+        assertEquals(Collections.singletonList("level2"), wheel.advance(50000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void delays_longer_than_the_wheel_are_placed_again() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 10, 0);
+        assertTrue(wheel.add("late", 2000));
+
+        assertTrue(wheel.advance(630).isEmpty());
+        assertTrue(wheel.advance(1990).isEmpty());
+        assertEquals(Collections.singletonList("late"), wheel.advance(2000));
+    }
+
+    @Test
+    public void values_never_fire_early() {
+        TimingWheel<String> wheel = new TimingWheel<String>(2, 10, 1000);
+        assertFalse(wheel.add("due", 1000));
+        assertTrue(wheel.add("rounded", 1001));
+        assertTrue(wheel.add("same", 1010));
+
+        assertTrue(wheel.advance(1009).isEmpty());
+        final List<String> due = wheel.advance(1010);
+        Collections.sort(due);
+        assertEquals(Arrays.asList("rounded", "same"), due);
+    }
+}
@@ -0,0 +1,253 @@
+package com.vonhof.webi.websockets;
+
+import com.vonhof.babelshark.BabelSharkInstance;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary event framing: [varint event id][varint arg count][args]. Args are encoded according to the
+ * parameter types of the event handler:
+ *
+ * int, short, byte, char - zigzag varint
+ * long - zigzag varlong
+ * boolean - 1 byte
+ * float, double - 4 and 8 bytes (big endian)
+ * String - varint length + UTF-8 bytes (length -1 means null)
+ * byte[] - varint length + bytes (length -1 means null)
+ * other types - varint length + serialized value in the service content type (e.g. JSON)
+ *
+ * Event ids are assigned by {@link SocketService} in alphabetical order of the event names.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class BinaryEvents {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryEvents() {
+
+    }
+
+    public static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    public static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (shift < 64) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long readZigZag(ByteBuffer in) {
+        final long value = readVarlong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        final int length = (int) readZigZag(in);
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Length exceeds message size");
+        }
+        final byte[] out = new byte[length];
+        in.get(out);
+        return out;
+    }
+
+    static String readString(ByteBuffer in) {
+        final byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, UTF8) : null;
+    }
+
+    /**
+     * Decoder for a single handler parameter - chosen once per parameter when event handlers are read
+     */
+    abstract static class ArgDecoder {
+        abstract Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) throws Exception;
+
+        /**
+         * Value used when the arg is missing
+         */
+        Object getDefault() {
+            return null;
+        }
+    }
+
+    static ArgDecoder decoderFor(final Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return new PrimitiveDecoder(type, 0) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return (int) readZigZag(in);
+                }
+            };
+        }
+        if (type == long.class || type == Long.class) {
+            return new PrimitiveDecoder(type, 0L) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return readZigZag(in);
+                }
+            };
+        }
+        if (type == short.class || type == Short.class) {
+            return new PrimitiveDecoder(type, (short) 0) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return (short) readZigZag(in);
+                }
+            };
+        }
+        if (type == byte.class || type == Byte.class) {
+            return new PrimitiveDecoder(type, (byte) 0) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return (byte) readZigZag(in);
+                }
+            };
+        }
+        if (type == char.class || type == Character.class) {
+            return new PrimitiveDecoder(type, (char) 0) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return (char) readZigZag(in);
+                }
+            };
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return new PrimitiveDecoder(type, false) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return in.get() != 0;
+                }
+            };
+        }
+        if (type == float.class || type == Float.class) {
+            return new PrimitiveDecoder(type, 0f) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return in.getFloat();
+                }
+            };
+        }
+        if (type == double.class || type == Double.class) {
+            return new PrimitiveDecoder(type, 0d) {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return in.getDouble();
+                }
+            };
+        }
+        if (type == String.class) {
+            return new ArgDecoder() {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return readString(in);
+                }
+            };
+        }
+        if (type == byte[].class) {
+            return new ArgDecoder() {
+                @Override
+                Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) {
+                    return readBytes(in);
+                }
+            };
+        }
+        return new ArgDecoder() {
+            @Override
+            Object decode(ByteBuffer in, BabelSharkInstance bs, String contentType) throws Exception {
+                final String serialized = readString(in);
+                return serialized != null ? bs.read(serialized, contentType, type) : null;
+            }
+        };
+    }
+
+    private abstract static class PrimitiveDecoder extends ArgDecoder {
+        private final Object defaultValue;
+
+        private PrimitiveDecoder(Class<?> type, Object defaultValue) {
+            //Boxed types default to null
+            this.defaultValue = type.isPrimitive() ? defaultValue : null;
+        }
+
+        @Override
+        Object getDefault() {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Writes binary events - e.g. for java clients and tests
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /**
+         * @param eventId id of event - see {@link SocketService#getEventIds()}
+         * @param argCount number of args that will be written
+         */
+        public Writer(int eventId, int argCount) {
+            writeVarlong(eventId);
+            writeVarlong(argCount);
+        }
+
+        public Writer writeInt(long value) {
+            writeVarlong((value << 1) ^ (value >> 63));
+            return this;
+        }
+
+        public Writer writeBoolean(boolean value) {
+            out.write(value ? 1 : 0);
+            return this;
+        }
+
+        public Writer writeFloat(float value) {
+            return writeRaw(ByteBuffer.allocate(4).putFloat(value).array());
+        }
+
+        public Writer writeDouble(double value) {
+            return writeRaw(ByteBuffer.allocate(8).putDouble(value).array());
+        }
+
+        public Writer writeString(String value) {
+            return writeBytes(value != null ? value.getBytes(UTF8) : null);
+        }
+
+        public Writer writeBytes(byte[] value) {
+            if (value == null) {
+                return writeInt(-1);
+            }
+            writeInt(value.length);
+            return writeRaw(value);
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private Writer writeRaw(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        private void writeVarlong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
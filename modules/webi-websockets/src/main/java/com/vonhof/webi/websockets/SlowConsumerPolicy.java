@@ -0,0 +1,20 @@
+package com.vonhof.webi.websockets;
+
+/**
+ * What to do when the outbound queue of a client is full
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Drop the message being sent
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest queued message to make room
+     */
+    DROP_OLDEST,
+    /**
+     * Close the connection - the client must reconnect
+     */
+    CLOSE
+}
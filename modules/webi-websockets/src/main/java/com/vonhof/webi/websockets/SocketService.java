@@ -1,5 +1,8 @@
 package com.vonhof.webi.websockets;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.vonhof.babelshark.BabelSharkInstance;
 import com.vonhof.babelshark.node.ArrayNode;
 import com.vonhof.babelshark.node.ObjectNode;
@@ -13,27 +16,68 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 
 import javax.inject.Inject;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.TreeMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Web socket service. Messages are sent asynchronously - each client has a bounded outbound queue so a slow client
+ * never blocks the sender. Broadcasts serialize the event once for all clients.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
 public class SocketService<T extends SocketService.Client>  {
     private static final Logger log = LogManager.getLogger(SocketService.class);
 
     @Inject
     private BabelSharkInstance bs;
     
-    private final ConcurrentLinkedQueue<Client> clients = new ConcurrentLinkedQueue<Client>();
-    private final Map<String, MethodInfo> eventHandlers = new HashMap<String, MethodInfo>();
+    private final Set<Client> clients = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+    private final AtomicInteger clientCount = new AtomicInteger();
+    /**
+     * Subscribers by topic - topics without subscribers are removed
+     */
+    private final ConcurrentMap<String, Set<Client>> topics = new ConcurrentHashMap<String, Set<Client>>();
+    /**
+     * Event handlers by lower case event name
+     */
+    private final Map<String, Dispatcher> eventHandlers = new HashMap<String, Dispatcher>();
+    /**
+     * Event handlers by event id - used by the binary protocol
+     */
+    private Dispatcher[] eventHandlersById;
     private final ClassInfo<T> clientClass;
     private String contentType = "json";
+    private int maxQueueSize = 256;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+
+    /**
+     * Time spent serializing and queueing a broadcast for all clients
+     */
+    private volatile Timer broadcastTimer = new Timer();
+    /**
+     * Time from a message is queued until it has been written to the client
+     */
+    private volatile Timer deliveryTimer = new Timer();
+    private volatile Meter dropped = new Meter();
+    private volatile Meter slowClientsClosed = new Meter();
     
     public SocketService(Class<T> clientClass) {
         this.clientClass = ClassInfo.from(clientClass);
@@ -53,7 +97,53 @@ public class SocketService<T extends SocketService.Client>  {
         this.contentType = contentType;
     }
 
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Set max amount of messages queued per client. When the queue is full the slow consumer policy applies.
+     * @param maxQueueSize
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Register broadcast and delivery metrics as webi.websockets.[client class].*
+     * @param registry
+     */
+    public void setMetricRegistry(MetricRegistry registry) {
+        final String name = MetricRegistry.name("webi.websockets", clientClass.getType().getSimpleName());
+        broadcastTimer = registry.timer(MetricRegistry.name(name, "broadcast"));
+        deliveryTimer = registry.timer(MetricRegistry.name(name, "delivery"));
+        dropped = registry.meter(MetricRegistry.name(name, "dropped"));
+        slowClientsClosed = registry.meter(MetricRegistry.name(name, "slow-clients-closed"));
+    }
+
+    public Timer getBroadcastTimer() {
+        return broadcastTimer;
+    }
+
+    public Timer getDeliveryTimer() {
+        return deliveryTimer;
+    }
+
+    public Meter getDropped() {
+        return dropped;
+    }
+
     private void readEventHandlers() {
+        //Sorted so ids are stable as long as the set of events doesn't change
+        final Map<String, MethodInfo> methodsByEvent = new TreeMap<String, MethodInfo>();
         List<MethodInfo> methods = clientClass.getMethods();
         for (MethodInfo m : methods) {
             EventHandler eventHandlerAnno = m.getAnnotation(EventHandler.class);
@@ -63,14 +153,47 @@ public class SocketService<T extends SocketService.Client>  {
             String event = eventHandlerAnno.value().toLowerCase();
             if (event == null || event.isEmpty())
                 event = m.getName().toLowerCase();
-            eventHandlers.put(event, m);
+            methodsByEvent.put(event, m);
+        }
+
+        eventHandlersById = new Dispatcher[methodsByEvent.size()];
+        int id = 0;
+        for (Map.Entry<String, MethodInfo> entry : methodsByEvent.entrySet()) {
+            final Dispatcher dispatcher = new Dispatcher(id, entry.getKey(), entry.getValue());
+            eventHandlers.put(entry.getKey(), dispatcher);
+            eventHandlersById[id] = dispatcher;
+            id++;
+        }
+    }
+
+    /**
+     * Ids of events for the binary protocol
+     * @return event ids by event name
+     */
+    public Map<String, Integer> getEventIds() {
+        final Map<String, Integer> out = new TreeMap<String, Integer>();
+        for (Dispatcher dispatcher : eventHandlersById) {
+            out.put(dispatcher.name, dispatcher.id);
+        }
+        return out;
+    }
+
+    private Dispatcher getEventHandler(String event) {
+        Dispatcher dispatcher = eventHandlers.get(event);
+        if (dispatcher == null) {
+            dispatcher = eventHandlers.get(event.toLowerCase());
         }
+        return dispatcher;
     }
     
     public final void broadcast(String event, Object... args) {
         broadcast(null, event, args);    
     }
     
+    /**
+     * Queue event for client
+     * @return false if the client is closed or the message was dropped
+     */
     public final boolean send(Client client,String event, Object... args) {
         event = event.toLowerCase();
         Event evt = new Event(event, args);
@@ -85,54 +208,162 @@ public class SocketService<T extends SocketService.Client>  {
         return out;
     }
 
+    public int getClientCount() {
+        return clientCount.get();
+    }
+
     public final void broadcast(Client from,String event, Object... args) {
+        fanOut(clients, from, event, args);
+    }
+
+    /**
+     * Send event to all subscribers of topic
+     * @param topic
+     * @param event
+     * @param args
+     */
+    public final void publish(String topic, String event, Object... args) {
+        publish(null, topic, event, args);
+    }
+
+    /**
+     * Send event to all subscribers of topic - except the sender
+     * @param from
+     * @param topic
+     * @param event
+     * @param args
+     */
+    public final void publish(Client from, String topic, String event, Object... args) {
+        final Set<Client> subscribers = topics.get(topic);
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        fanOut(subscribers, from, event, args);
+    }
+
+    /**
+     * Subscribe client to topic
+     * @param client
+     * @param topic
+     * @return false if the client was already subscribed
+     */
+    public boolean subscribe(Client client, String topic) {
+        if (!client.topics.add(topic)) {
+            return false;
+        }
+
+        while (true) {
+            Set<Client> subscribers = topics.get(topic);
+            if (subscribers == null) {
+                subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+                final Set<Client> existing = topics.putIfAbsent(topic, subscribers);
+                if (existing != null) {
+                    subscribers = existing;
+                }
+            }
+            subscribers.add(client);
+
+            //Retry if the set was removed as empty while we added to it
+            if (topics.get(topic) == subscribers) {
+                return true;
+            }
+            subscribers.remove(client);
+        }
+    }
+
+    /**
+     * Unsubscribe client from topic
+     * @param client
+     * @param topic
+     * @return false if the client was not subscribed
+     */
+    public boolean unsubscribe(Client client, String topic) {
+        if (!client.topics.remove(topic)) {
+            return false;
+        }
+
+        final Set<Client> subscribers = topics.get(topic);
+        if (subscribers != null) {
+            subscribers.remove(client);
+            if (subscribers.isEmpty()) {
+                topics.remove(topic, subscribers);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Topics with at least one subscriber
+     * @return
+     */
+    public Set<String> getTopics() {
+        return Collections.unmodifiableSet(topics.keySet());
+    }
+
+    public List<T> getSubscribers(String topic) {
+        ArrayList<T> out = new ArrayList<T>();
+        final Set<Client> subscribers = topics.get(topic);
+        if (subscribers != null) {
+            for (Client c : subscribers) {
+                out.add((T) c);
+            }
+        }
+        return out;
+    }
+
+    private void fanOut(Iterable<Client> receivers, Client from, String event, Object... args) {
         event = event.toLowerCase();
         Event evt = new Event(event, args);
-        for (Client client : clients) {
-            if (from == client) continue;
-            send(client, evt);
+        final Timer.Context timer = broadcastTimer.time();
+        try {
+            //Serialize once for all clients
+            final String output = serialize(evt);
+            if (output == null) {
+                return;
+            }
+            for (Client client : receivers) {
+                if (from == client) continue;
+                send(client, output);
+            }
+        } finally {
+            timer.stop();
         }
     }
     
     
     private boolean send(Client client, Event evt) {
-        try {
-            if (!client.session.isOpen()) {
-                return false;
-            }
-            final String output = bs.writeToString(evt, contentType);
-            client.session.getRemote().sendString(output);
-            
-            return true;
-        } catch (EofException ex) {
-            //Ignore error
-            return false;
-        } catch (ClosedChannelException ex) {
-            //Ignore error
-            return false;
-        } catch (Exception ex) {
-            if (ex.getMessage() != null && ex.getMessage().contains("Broken pipe")) {
-                //Ignore error - user disconnected quickly.
-                return false;
-            }
-            log.warn("Failed while attempting to send event to client socket", ex);
-            return false;
-        }
+        final String output = serialize(evt);
+        return output != null && send(client, output);
     }
     
     private boolean send(Client client, byte[] data) {
         try {
-            if (!client.session.isOpen()) {
-                return false;
-            }
-            
-            client.session.getRemote().sendString(new String(data,"UTF-8"));
-            return true;
+            return send(client, new String(data,"UTF-8"));
         } catch (Exception ex) {
             log.warn("Failed while attempting to send message to client socket", ex);
             return false;
         }
     }
+
+    private boolean send(Client client, String output) {
+        final Outbound outbound = client.outbound;
+        return outbound != null && outbound.offer(output);
+    }
+
+    private String serialize(Event evt) {
+        try {
+            return bs.writeToString(evt, contentType);
+        } catch (Exception ex) {
+            log.warn("Failed while serializing event " + evt.getType(), ex);
+            return null;
+        }
+    }
+
+    private static boolean isDisconnect(Throwable ex) {
+        return ex instanceof EofException
+                || ex instanceof ClosedChannelException
+                || (ex.getMessage() != null && ex.getMessage().contains("Broken pipe"));
+    }
     
     public T newClient() throws Exception {
         Client client = clientClass.newInstance();
@@ -142,6 +373,8 @@ public class SocketService<T extends SocketService.Client>  {
 
     public static class Client<T extends Client> extends WebSocketAdapter {
         private Session session;
+        private volatile Outbound outbound;
+        private final Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         
         @Inject
         private SocketService<T> service;
@@ -175,20 +408,88 @@ public class SocketService<T extends SocketService.Client>  {
             service.send(this, data);
         }
 
+        /**
+         * Subscribe to topic
+         * @param topic
+         */
+        public final void join(String topic) {
+            service.subscribe(this, topic);
+        }
+
+        /**
+         * Unsubscribe from topic
+         * @param topic
+         */
+        public final void leave(String topic) {
+            service.unsubscribe(this, topic);
+        }
+
+        public final Set<String> getTopics() {
+            return Collections.unmodifiableSet(topics);
+        }
+
+        /**
+         * Send event to all other subscribers of topic
+         * @param topic
+         * @param evt
+         * @param args
+         */
+        public final void publish(String topic, String evt, Object ... args) {
+            service.publish(this, topic, evt, args);
+        }
+
         @Override
-        public void onWebSocketBinary(byte[] bytes, int i, int i2) {
+        public void onWebSocketBinary(byte[] bytes, int offset, int length) {
+            try {
+                final ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+                final int eventId = BinaryEvents.readVarint(in);
+                if (eventId < 0 || eventId >= service.eventHandlersById.length) {
+                    throw new IllegalArgumentException("Event handler for event id " + eventId + " not found");
+                }
+
+                final Dispatcher evtHandler = service.eventHandlersById[eventId];
+                final int argCount = BinaryEvents.readVarint(in);
+                final BinaryEvents.ArgDecoder[] decoders = evtHandler.decoders;
 
+                int argI = 0;
+                Object[] args = new Object[decoders.length];
+                for (int i = 0; i < args.length; i++) {
+                    if (decoders[i] == null) {
+                        args[i] = this;
+                        continue;
+                    }
+                    args[i] = argI < argCount
+                            ? decoders[i].decode(in, bs, service.contentType)
+                            : decoders[i].getDefault();
+                    argI++;
+                }
+
+                evtHandler.method.invoke(this, args);
+            } catch (Exception ex) {
+                onWebSocketError(ex);
+            }
         }
 
         @Override
         public void onWebSocketClose(int closeCode, String msg) {
-            service.clients.remove(this);
+            if (service.clients.remove(this)) {
+                service.clientCount.decrementAndGet();
+            }
+            for (String topic : new ArrayList<String>(topics)) {
+                service.unsubscribe(this, topic);
+            }
+            if (outbound != null) {
+                outbound.close();
+            }
         }
 
         @Override
         public void onWebSocketConnect(Session session) {
-            service.clients.add(this);
             this.session = session;
+            this.outbound = new Outbound(service, session);
+            if (service.clients.add(this)) {
+                service.clientCount.incrementAndGet();
+            }
         }
 
         @Override
@@ -207,39 +508,175 @@ public class SocketService<T extends SocketService.Client>  {
                 final ObjectNode evtNode = bs.read(data, bs.getDefaultType(), ObjectNode.class);
 
                 final ValueNode<String> typeNode = (ValueNode<String>) evtNode.get("type");
-                final String evtType = typeNode.getValue().toLowerCase();
+                final String evtType = typeNode.getValue();
 
-                final MethodInfo evtHandler = service.eventHandlers.get(evtType);
+                final Dispatcher evtHandler = service.getEventHandler(evtType);
                 if (evtHandler == null) {
                     throw new IllegalArgumentException("Event handler for event '" + evtType + "' not found");
                 }
 
                 final ArrayNode argsNode = (ArrayNode) evtNode.get("args");
-                final Parameter[] parmTypes = evtHandler.getParameters().values().toArray(new Parameter[0]);
+                final ClassInfo[] parmTypes = evtHandler.parameterTypes;
 
                 int argI = 0;
 
                 Object[] args = new Object[parmTypes.length];
                 for (int i = 0; i < args.length; i++) {
-                    Parameter p = parmTypes[i];
-                    if (p.getClassInfo().inherits(Client.class)) {
+                    if (parmTypes[i] == null) {
                         args[i] = this;
                         continue;
                     }
                     SharkNode arg = argsNode.get(argI);
                     if (arg != null) {
-                        args[i] = bs.read(arg, p.getClassInfo());
+                        args[i] = bs.read(arg, parmTypes[i]);
                     }
                     argI++;
                 }
 
-                evtHandler.invoke(this, args);
+                evtHandler.method.invoke(this, args);
             } catch (Exception ex) {
                 onWebSocketError(ex);
             }
         }
     }
 
+    /**
+     * Event handler method with its parameter types and binary decoders resolved up front. Client parameters have
+     * no type or decoder - the receiving client is passed.
+     */
+    private static final class Dispatcher {
+        private final int id;
+        private final String name;
+        private final MethodInfo method;
+        private final ClassInfo[] parameterTypes;
+        private final BinaryEvents.ArgDecoder[] decoders;
+
+        private Dispatcher(int id, String name, MethodInfo method) {
+            this.id = id;
+            this.name = name;
+            this.method = method;
+
+            final Parameter[] parameters = method.getParameters().values().toArray(new Parameter[0]);
+            this.parameterTypes = new ClassInfo[parameters.length];
+            this.decoders = new BinaryEvents.ArgDecoder[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                final ClassInfo type = parameters[i].getClassInfo();
+                if (type.inherits(Client.class)) {
+                    continue;
+                }
+                parameterTypes[i] = type;
+                decoders[i] = BinaryEvents.decoderFor(parameters[i].getType());
+            }
+        }
+    }
+
+    /**
+     * Messages waiting to be written to a client. Only one message is written at a time - the next is written when
+     * the previous write completes.
+     */
+    private static final class Outbound implements WriteCallback {
+        private final SocketService<?> service;
+        private final Session session;
+        private final ArrayDeque<Message> queue = new ArrayDeque<Message>();
+        private Message writing;
+        private boolean closed = false;
+
+        private Outbound(SocketService<?> service, Session session) {
+            this.service = service;
+            this.session = session;
+        }
+
+        private boolean offer(String text) {
+            final Message message = new Message(text);
+            boolean closeSlowClient = false;
+            synchronized (this) {
+                if (closed || !session.isOpen()) {
+                    return false;
+                }
+
+                if (writing != null) {
+                    if (queue.size() < service.maxQueueSize) {
+                        queue.add(message);
+                        return true;
+                    }
+
+                    switch (service.slowConsumerPolicy) {
+                        case DROP_OLDEST:
+                            queue.poll();
+                            queue.add(message);
+                            service.dropped.mark();
+                            return true;
+                        case CLOSE:
+                            closed = true;
+                            queue.clear();
+                            closeSlowClient = true;
+                            break;
+                        default:
+                            service.dropped.mark();
+                            return false;
+                    }
+                } else {
+                    writing = message;
+                }
+            }
+
+            if (closeSlowClient) {
+                service.slowClientsClosed.mark();
+                session.close(StatusCode.POLICY_VIOLATION, "Client is too slow");
+                return false;
+            }
+
+            write(message);
+            return true;
+        }
+
+        private void write(Message message) {
+            try {
+                session.getRemote().sendString(message.text, this);
+            } catch (Exception ex) {
+                writeFailed(ex);
+            }
+        }
+
+        @Override
+        public void writeSuccess() {
+            final Message next;
+            synchronized (this) {
+                if (writing != null) {
+                    service.deliveryTimer.update(System.nanoTime() - writing.queuedAt, TimeUnit.NANOSECONDS);
+                }
+                next = closed ? null : queue.poll();
+                writing = next;
+            }
+            if (next != null) {
+                write(next);
+            }
+        }
+
+        @Override
+        public void writeFailed(Throwable ex) {
+            close();
+            if (!isDisconnect(ex)) {
+                log.warn("Failed while attempting to send event to client socket", ex);
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            writing = null;
+            queue.clear();
+        }
+    }
+
+    private static final class Message {
+        private final String text;
+        private final long queuedAt = System.nanoTime();
+
+        private Message(String text) {
+            this.text = text;
+        }
+    }
+
     public static final class Event<T> {
 
         private String type;
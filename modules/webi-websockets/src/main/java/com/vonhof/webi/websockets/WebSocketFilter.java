@@ -1,5 +1,6 @@
 package com.vonhof.webi.websockets;
 
+import com.codahale.metrics.MetricRegistry;
 import com.vonhof.webi.Filter;
 import com.vonhof.webi.PathPatternMap;
 import com.vonhof.webi.Webi;
@@ -19,12 +20,13 @@ import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class WebSocketFilter extends WebSocketServerFactory implements Filter, AfterAdd {
+public class WebSocketFilter extends WebSocketServerFactory implements Filter, AfterAdd, AfterInit {
     private static final Logger log = LogManager.getLogger(WebSocketFilter.class);
 
     @Inject
@@ -43,6 +45,18 @@ public class WebSocketFilter extends WebSocketServerFactory implements Filter, A
     public void afterAdd(BeanContext context) {
         getPolicy().setIdleTimeout(Long.MAX_VALUE);
         getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
+        webSockets.compile();
+    }
+
+    @Override
+    public void afterInit() {
+        final MetricRegistry registry = webi.getMetricRegistry();
+        if (registry == null) {
+            return;
+        }
+        for (Map.Entry<String, SocketService> entry : webSockets.entrySet()) {
+            entry.getValue().setMetricRegistry(registry);
+        }
     }
 
     /**
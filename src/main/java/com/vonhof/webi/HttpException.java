@@ -10,6 +10,8 @@ public class HttpException extends RuntimeException {
     public static int INTERNAL_ERROR = 500;
     public static int UNAUTHORIZED = 401;
     public static int FORBIDDEN = 403;
+    public static int REQUEST_ENTITY_TOO_LARGE = 413;
+    public static int SERVICE_UNAVAILABLE = 503;
     
     private final int code;
 
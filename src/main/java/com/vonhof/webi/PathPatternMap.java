@@ -5,41 +5,87 @@ import java.util.Map.Entry;
 
 /**
  * Collection of path patterns
+ *
+ * Until compiled lookups are linear scans of all patterns. Once compiled (Webi does this on start) lookups
+ * are resolved by descending a radix tree of the patterns - so cost is proportional to the path length rather
+ * than the amount of patterns.
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class PathPatternMap<T>  {
     private final Map<PathPattern,T> inner = new LinkedHashMap<PathPattern, T>();
-    
+
+    /**
+     * Compiled radix tree - null if not compiled
+     */
+    private volatile Node<T> root;
+
     public void put(String path,T value) {
         put(new PathPattern(path), value);
     }
-    
-    public void put(PathPattern path,T value) {
+
+    public synchronized void put(PathPattern path,T value) {
         inner.put(path, value);
+        if (root != null) {
+            root = build();
+        }
+    }
+
+    /**
+     * Compile patterns into a radix tree. Patterns added after this will cause the tree to be rebuilt.
+     */
+    public synchronized void compile() {
+        root = build();
+    }
+
+    public boolean isCompiled() {
+        return root != null;
     }
-    
+
     public T get(String path) {
-        PathPattern ptrn = getPattern(path);
-        if (ptrn == null) 
+        Entry<PathPattern, T> entry = getEntry(path);
+        if (entry == null)
             return null;
-        return inner.get(ptrn);
+        return entry.getValue();
     }
-    protected PathPattern getPattern(String path) {
-        PathPattern best = null;
+
+    /**
+     * Get the longest matching pattern and its value
+     * @param path
+     * @return
+     */
+    public Entry<PathPattern, T> getEntry(String path) {
+        final Node<T> tree = root;
+        if (tree != null) {
+            return tree.longest(path);
+        }
+
+        Entry<PathPattern, T> best = null;
         int longest = 0;
-                
+
         for(Entry<PathPattern,T> entry:inner.entrySet()) {
             PathPattern key = entry.getKey();
             int length = key.toString().length();
             if (key.matches(path) && longest < length) {
-                best = key;
+                best = entry;
                 longest = length;
             }
         }
         return best;
     }
-    
+
+    protected PathPattern getPattern(String path) {
+        Entry<PathPattern, T> entry = getEntry(path);
+        if (entry == null)
+            return null;
+        return entry.getKey();
+    }
+
     public List<T> getAll(String path) {
+        final Node<T> tree = root;
+        if (tree != null) {
+            return tree.all(path);
+        }
+
         List<T> out = new ArrayList<T>();
         for(Entry<PathPattern,T> entry:inner.entrySet()) {
             if (entry.getKey().matches(path))
@@ -51,7 +97,7 @@ public class PathPatternMap<T>  {
 
     protected String trimContext(String path) {
         PathPattern pattern = getPattern(path);
-        if (pattern == null) 
+        if (pattern == null)
             return path;
         return pattern.trim(path);
     }
@@ -60,9 +106,152 @@ public class PathPatternMap<T>  {
         for(Entry<PathPattern,T> entry:inner.entrySet()) {
             map.put(entry.getKey().toString(),entry.getValue());
         }
-                
+
         return map.entrySet();
     }
 
+    private Node<T> build() {
+        Builder<T> rootBuilder = new Builder<T>("");
+        int order = 0;
+        for(Entry<PathPattern,T> entry:inner.entrySet()) {
+            rootBuilder.insert(entry.getKey().toString(), 0,
+                    new AbstractMap.SimpleImmutableEntry<PathPattern, T>(entry), order++);
+        }
+        return rootBuilder.build();
+    }
+
+    /**
+     * Mutable radix tree node - only used while compiling
+     */
+    private static final class Builder<T> {
+        private String label;
+        private Entry<PathPattern, T> entry;
+        private int order = -1;
+        private final TreeMap<Character, Builder<T>> children = new TreeMap<Character, Builder<T>>();
+
+        private Builder(String label) {
+            this.label = label;
+        }
+
+        private void insert(String key, int offset, Entry<PathPattern, T> value, int valueOrder) {
+            if (offset == key.length()) {
+                entry = value;
+                order = valueOrder;
+                return;
+            }
+
+            char first = key.charAt(offset);
+            Builder<T> child = children.get(first);
+            if (child == null) {
+                child = new Builder<T>(key.substring(offset));
+                children.put(first, child);
+                child.insert(key, key.length(), value, valueOrder);
+                return;
+            }
+
+            int common = 0;
+            int max = Math.min(child.label.length(), key.length() - offset);
+            while (common < max && child.label.charAt(common) == key.charAt(offset + common)) {
+                common++;
+            }
+
+            if (common < child.label.length()) {
+                //Split the child edge at the common prefix
+                Builder<T> split = new Builder<T>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.children.put(child.label.charAt(0), child);
+                children.put(first, split);
+                child = split;
+            }
+
+            child.insert(key, offset + common, value, valueOrder);
+        }
+
+        private Node<T> build() {
+            char[] keys = new char[children.size()];
+            Node<T>[] nodes = new Node[children.size()];
+            int i = 0;
+            for(Entry<Character, Builder<T>> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i] = child.getValue().build();
+                i++;
+            }
+            return new Node<T>(label, entry, order, keys, nodes);
+        }
+    }
+
+    /**
+     * Immutable radix tree node
+     */
+    private static final class Node<T> {
+        private final String label;
+        private final Entry<PathPattern, T> entry;
+        private final int order;
+        private final char[] keys;
+        private final Node<T>[] children;
+
+        private Node(String label, Entry<PathPattern, T> entry, int order, char[] keys, Node<T>[] children) {
+            this.label = label;
+            this.entry = entry;
+            this.order = order;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        private Node<T> child(String path, int offset) {
+            if (offset >= path.length()) {
+                return null;
+            }
+            int ix = Arrays.binarySearch(keys, path.charAt(offset));
+            if (ix < 0) {
+                return null;
+            }
+            Node<T> child = children[ix];
+            if (!path.regionMatches(offset, child.label, 0, child.label.length())) {
+                return null;
+            }
+            return child;
+        }
+
+        private Entry<PathPattern, T> longest(String path) {
+            Entry<PathPattern, T> best = null;
+            Node<T> node = this;
+            int offset = 0;
+            while ((node = node.child(path, offset)) != null) {
+                offset += node.label.length();
+                if (node.entry != null) {
+                    best = node.entry;
+                }
+            }
+            return best;
+        }
 
+        private List<T> all(String path) {
+            List<Node<T>> matches = new ArrayList<Node<T>>(4);
+            if (entry != null) {
+                matches.add(this);
+            }
+            Node<T> node = this;
+            int offset = 0;
+            while ((node = node.child(path, offset)) != null) {
+                offset += node.label.length();
+                if (node.entry == null) {
+                    continue;
+                }
+
+                //Keep insertion order - same as the order the patterns were added in
+                int i = matches.size();
+                while (i > 0 && matches.get(i - 1).order > node.order) {
+                    i--;
+                }
+                matches.add(i, node);
+            }
+
+            List<T> out = new ArrayList<T>(matches.size());
+            for(Node<T> match : matches) {
+                out.add(match.entry.getValue());
+            }
+            return out;
+        }
+    }
 }
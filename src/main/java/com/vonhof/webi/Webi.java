@@ -6,13 +6,17 @@ import com.codahale.metrics.jetty9.InstrumentedHandler;
 import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
 import com.vonhof.babelshark.BabelShark;
 import com.vonhof.webi.bean.BeanContext;
+import com.vonhof.webi.bean.RequestScope;
+import com.vonhof.webi.qos.AdmissionController;
+import com.vonhof.webi.qos.PriorityAdmissionController;
 import com.vonhof.webi.session.SessionHandler;
+import com.vonhof.webi.trace.Trace;
+import com.vonhof.webi.trace.Tracer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
@@ -33,7 +37,7 @@ import org.eclipse.jetty.util.thread.QueuedThreadPool;
  */
 public final class Webi {
     private final String ATTR_SUSPENDED = "QoSFilter@" + Integer.toHexString(hashCode()) + ".SUSPENDED";
-    private final String ATTR_RESUMED = "QoSFilter@" + Integer.toHexString(hashCode()) + ".RESUMED";
+    private final String ATTR_PERMIT = "QoSFilter@" + Integer.toHexString(hashCode()) + ".PERMIT";
 
 
     private static final Logger log = LogManager.getLogger(Webi.class);
@@ -84,14 +88,14 @@ public final class Webi {
      */
     private boolean shutdownGracefully = false;
 
-    private Semaphore requestSemaphore;
-
-    private final Queue<AsyncContext> requestQueue = new ConcurrentLinkedQueue<>();
-
-    private final AsyncListener requestListeners = new QoSAsyncListener();
-
-    private long waitMs = 100;
+    /**
+     * Decides when requests are handled - null if requests are not throttled
+     */
+    private AdmissionController admissionController;
 
+    /**
+     * Max time a request is queued before it is rejected
+     */
     private long suspendMs = -1;
 
     private int maxRequests = 50;
@@ -100,6 +104,11 @@ public final class Webi {
 
     private RequestLogHandler requestLogHandler = new RequestLogHandler();
 
+    /**
+     * Traces requests - disabled until a sink is set
+     */
+    private final Tracer tracer = new Tracer();
+
     public Webi(int port, int maxThreads, int acceptQueueSize, int maxConcurrentRequests) {
         this(null, port, maxThreads, acceptQueueSize, maxConcurrentRequests);
     }
@@ -169,11 +178,42 @@ public final class Webi {
         beanContext.add(BabelShark.getDefaultInstance());
 
         if (maxRequests > 0) {
-            requestSemaphore = new Semaphore(maxRequests, true);
+            admissionController = new PriorityAdmissionController(maxRequests, registry);
         }
 
     }
 
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Metric registry webi was created with
+     * @return registry or null if metrics are disabled
+     */
+    public MetricRegistry getMetricRegistry() {
+        return registry;
+    }
+
+    /**
+     * Admission controller limiting concurrent requests. Created when webi is started with a request limit - it is
+     * a {@link PriorityAdmissionController} that per route limits and priorities can be added to.
+     * @return controller or null if throttling is disabled
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Replace the admission controller - e.g. with one using a different global limit. Set to null to disable
+     * throttling. To add per route limits and priorities configure the existing controller
+     * (see {@link #getAdmissionController()}).
+     * @param admissionController
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
     /**
      * disable dev mode
      */
@@ -199,6 +239,10 @@ public final class Webi {
             beanContext.init();
         }
 
+        requestHandlers.compile();
+        filters.compile();
+        sessionHandlers.compile();
+
         GzipHandler gzipHandler = new GzipHandler();
         gzipHandler.setHandler(new Handler());
         gzipHandler.setMimeTypes("text/html,text/css,text/javascript,application/json,image/gif,image/jpeg,image/png");
@@ -311,6 +355,16 @@ public final class Webi {
     public <T extends SessionHandler> T add(T handler) {
         sessionHandlers.put(handler.getBasePath(), handler);
         beanContext.add(handler);
+        if (handler instanceof Closeable) {
+            //E.g. to persist sessions
+            final Closeable closeable = (Closeable) handler;
+            shutdownHandlers.add(new ShutdownHandler() {
+                @Override
+                public void onShutdown(boolean graceful) throws Exception {
+                    closeable.close();
+                }
+            });
+        }
         return handler;
     }
 
@@ -346,12 +400,12 @@ public final class Webi {
                            final HttpServletResponse response)
                 throws IOException, ServletException {
 
-            if (maxRequests < 1) {
+            if (admissionController == null) {
                 doHandle(path, baseRequest, request, response);
                 return;
             }
 
-            throttleRequest(request, response, new HandlerCallback() {
+            throttleRequest(path, request, response, new HandlerCallback() {
                 @Override
                 public void handle() throws IOException, ServletException {
                     doHandle(path, baseRequest, request, response);
@@ -360,100 +414,100 @@ public final class Webi {
         }
 
         /**
-         * Handle many concurrent requests
+         * Handle many concurrent requests. Requests that can not be admitted right away are suspended until the
+         * admission controller admits them - or they time out.
+         * @param path
          * @param request
          * @param response
          * @return
          * @throws IOException
          */
-        public boolean throttleRequest(ServletRequest request, ServletResponse response, HandlerCallback callable) throws IOException, ServletException {
-            boolean accepted = false;
-            try {
-                Boolean suspended = (Boolean) request.getAttribute(ATTR_SUSPENDED);
-                if (suspended == null) {
-                    accepted = requestSemaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
-                    if (accepted) {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.FALSE);
-
-                    } else {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.TRUE);
-
-                        AsyncContext asyncContext = request.startAsync();
-                        if (suspendMs > 0) {
-                            asyncContext.setTimeout(suspendMs);
-                        }
-                        asyncContext.addListener(requestListeners);
-                        requestQueue.add(asyncContext);
+        public boolean throttleRequest(String path, HttpServletRequest request, HttpServletResponse response, HandlerCallback callable) throws IOException, ServletException {
+            final AdmissionController controller = admissionController;
+
+            AdmissionController.Permit permit = (AdmissionController.Permit) request.getAttribute(ATTR_PERMIT);
+            if (permit != null) {
+                //Admitted from queue
+                request.removeAttribute(ATTR_PERMIT);
+            } else {
+                permit = controller.tryAcquire(request, path);
+            }
+
+            if (permit == null) {
+                if (request.getAttribute(ATTR_SUSPENDED) == Boolean.TRUE) {
+                    // Timeout! try 1 more time.
+                    permit = controller.tryAcquire(request, path);
+                    if (permit == null) {
+                        log.warn("Request timed out to: {}", request.getRequestURI());
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                         return false;
                     }
                 } else {
-                    if (suspended) {
-                        request.setAttribute(ATTR_SUSPENDED, Boolean.FALSE);
-                        Boolean resumed = (Boolean) request.getAttribute(ATTR_RESUMED);
-                        if (resumed == Boolean.TRUE) {
-                            requestSemaphore.acquire();
-                            accepted = true;
-                        } else {
-                            // Timeout! try 1 more time.
-                            accepted = requestSemaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
-                            log.warn("Request timed out to: {}", ((HttpServletRequest) request).getRequestURI());
-                        }
-                    } else {
-                        // Pass through resume of previously accepted request.
-                        requestSemaphore.acquire();
-                        accepted = true;
+                    request.setAttribute(ATTR_SUSPENDED, Boolean.TRUE);
+
+                    AsyncContext asyncContext = request.startAsync();
+                    if (suspendMs > 0) {
+                        asyncContext.setTimeout(suspendMs);
                     }
+
+                    QueuedRequest queued = new QueuedRequest(controller, asyncContext);
+                    asyncContext.addListener(queued);
+                    if (!controller.enqueue(request, path, queued)) {
+                        log.warn("Request queue full - rejecting request to: {}", request.getRequestURI());
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        asyncContext.complete();
+                    }
+                    return false;
                 }
+            }
 
-                if (accepted) {
-                    callable.handle();
-                } else {
-                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            final long start = System.nanoTime();
+            boolean success = false;
+            boolean async = false;
+            try {
+                callable.handle();
+                success = response.getStatus() < 500;
+                if (request.isAsyncStarted()) {
+                    //Async requests keep their permit until the response is done
+                    request.getAsyncContext().addListener(new AsyncRelease(permit, start, response));
+                    async = true;
                 }
-            } catch (InterruptedException e) {
-                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
             } finally {
-                if (accepted) {
-                    AsyncContext asyncContext = requestQueue.poll();
-                    if (asyncContext != null) {
-                        ServletRequest candidate = asyncContext.getRequest();
-                        Boolean suspended = (Boolean) candidate.getAttribute(ATTR_SUSPENDED);
-                        if (suspended == Boolean.TRUE) {
-                            candidate.setAttribute(ATTR_RESUMED, Boolean.TRUE);
-                            asyncContext.dispatch();
-                        }
-                    }
-
-                    requestSemaphore.release();
+                if (!async) {
+                    permit.release(System.nanoTime() - start, success);
                 }
             }
 
-            return accepted;
+            return true;
         }
 
         private void doHandle(String path, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
-            PathPattern basePattern = requestHandlers.getPattern(path);
+            final Map.Entry<PathPattern, RequestHandler> handlerEntry = requestHandlers.getEntry(path);
+            PathPattern basePattern = handlerEntry != null ? handlerEntry.getKey() : null;
             String basePath = basePattern != null ? basePattern.toString() : "/";
 
-            RequestHandler handler = requestHandlers.get(path);
+            RequestHandler handler = handlerEntry != null ? handlerEntry.getValue() : null;
 
             final SessionHandler sessionResolver = sessionHandlers.get(path);
 
             //Hack for path - make a proper normalization process for paths
             if (handler != null) {
-                path = requestHandlers.trimContext(path);
+                path = basePattern.trim(path);
             }
 
+            final RequestScope scope = beanContext.newScope();
             WebiContext wr = null;
-            try {
-                beanContext.clearThreadLocals();
-
+            try (RequestScope.Binding binding = scope.enter()) {
                 wr = new WebiContext(basePath, path,
                         baseRequest,
                         request, response);
+                wr.setRequestScope(scope);
+                if (tracer.isEnabled()) {
+                    wr.setTrace(tracer.start(request.getMethod() + " " + request.getRequestURI()));
+                }
 
-                beanContext.add(wr);
-                beanContext.add(wr.resolve(sessionResolver));
+                scope.add(wr);
+                scope.add(wr.resolve(sessionResolver));
 
                 for (Filter filter : filters.getAll(path)) {
                     if (!filter.apply(wr)) {
@@ -470,7 +524,44 @@ public final class Webi {
                 }
             } catch (HttpException ex) {
                 response.sendError(ex.getCode(), ex.getMessage());
+            } finally {
+                if (wr != null) {
+                    //The trace may have been created while handling the request
+                    finishTrace(request, wr.getTrace());
+                }
+            }
+        }
+
+        /**
+         * Finish trace when the request is complete - which is later than now for async requests
+         */
+        private void finishTrace(HttpServletRequest request, final Trace trace) {
+            if (trace == null) {
+                return;
+            }
+
+            if (!request.isAsyncStarted()) {
+                tracer.finish(trace);
+                return;
             }
+
+            request.getAsyncContext().addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                    tracer.finish(trace);
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {}
+
+                @Override
+                public void onError(AsyncEvent event) throws IOException {
+                    tracer.finish(trace);
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) throws IOException {}
+            });
         }
     }
 
@@ -483,10 +574,68 @@ public final class Webi {
         void handle() throws IOException, ServletException;
     }
 
-    private class QoSAsyncListener implements AsyncListener {
+    /**
+     * Releases the permit of an async request when it is done
+     */
+    private static class AsyncRelease implements AsyncListener {
+        private final AdmissionController.Permit permit;
+        private final long start;
+        private final HttpServletResponse response;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        public AsyncRelease(AdmissionController.Permit permit, long start, HttpServletResponse response) {
+            this.permit = permit;
+            this.start = start;
+            this.response = response;
+        }
 
-        public QoSAsyncListener() {
+        private void release(boolean success) {
+            if (released.compareAndSet(false, true)) {
+                permit.release(System.nanoTime() - start, success);
+            }
+        }
 
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {}
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            release(response.getStatus() < 500);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            release(false);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            release(false);
+        }
+    }
+
+    /**
+     * Request waiting in the admission queue
+     */
+    private class QueuedRequest implements AdmissionController.Waiter, AsyncListener {
+        private final AdmissionController controller;
+        private final AsyncContext asyncContext;
+
+        public QueuedRequest(AdmissionController controller, AsyncContext asyncContext) {
+            this.controller = controller;
+            this.asyncContext = asyncContext;
+        }
+
+        @Override
+        public void admit(AdmissionController.Permit permit) {
+            asyncContext.getRequest().setAttribute(ATTR_PERMIT, permit);
+            try {
+                asyncContext.dispatch();
+            } catch (IllegalStateException ex) {
+                //Request was completed while queued
+                asyncContext.getRequest().removeAttribute(ATTR_PERMIT);
+                permit.release(0, true);
+            }
         }
 
         @Override
@@ -497,14 +646,15 @@ public final class Webi {
 
         @Override
         public void onTimeout(AsyncEvent event) throws IOException {
-            // Remove before it's redispatched, so it won't be
-            // redispatched again at the end of the filtering.
-            AsyncContext asyncContext = event.getAsyncContext();
-            requestQueue.remove(asyncContext);
-            asyncContext.dispatch();
+            // Remove before it's redispatched - if it was just admitted it is already being redispatched.
+            if (controller.cancel(this)) {
+                asyncContext.dispatch();
+            }
         }
 
         @Override
-        public void onError(AsyncEvent event) throws IOException {}
+        public void onError(AsyncEvent event) throws IOException {
+            controller.cancel(this);
+        }
     }
 }
@@ -2,22 +2,28 @@ package com.vonhof.webi;
 
 import com.vonhof.babelshark.node.SharkNode;
 import com.vonhof.webi.bean.BeanScope;
+import com.vonhof.webi.bean.RequestScope;
 import com.vonhof.webi.session.SessionHandler;
 import com.vonhof.webi.session.WebiSession;
+import com.vonhof.webi.trace.Span;
+import com.vonhof.webi.trace.Trace;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.logging.log4j.LogManager;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
 
 /**
  * Webi context wraps request, response and paths.
@@ -25,7 +31,7 @@ import org.eclipse.jetty.util.MultiMap;
  */
 @BeanScope(value = BeanScope.Type.LOCAL, ignored = true)
 public class WebiContext {
-    private static final ServletFileUpload fileUpload = new ServletFileUpload(new DiskFileItemFactory());
+    private static final DiskFileItemFactory fileItemFactory = new DiskFileItemFactory();
     private final String path;
     private final String base;
     private final HttpServletRequest request;
@@ -34,10 +40,16 @@ public class WebiContext {
     private final HttpMethod httpMethod;
     private final ParmMap parmMap;
     private WebiSession session;
+    private RequestScope requestScope;
     
-    private final List<DiskFileItem> uploads;
-    private final List<RequestLoadMetricEntry> loadMetricEntries = new ArrayList<>();
-    private final Stack<RequestLoadMetricEntry> callStack = new Stack<>();
+    /**
+     * Parsed uploads - parsed on first access
+     */
+    private List<DiskFileItem> uploads;
+    private boolean uploadsConsumed = false;
+    private long maxUploadSize = -1;
+    private long maxUploadFileSize = -1;
+    private Trace trace;
 
 
     private boolean loadMetricsEnabled = false;
@@ -55,7 +67,6 @@ public class WebiContext {
         httpMethod = null;
         parmMap = null;
         session = null;
-        uploads = null;
     }
 
     protected WebiContext(String base,String path, Request jettyRequest, HttpServletRequest request, HttpServletResponse response) {
@@ -66,35 +77,29 @@ public class WebiContext {
         this.response = response;
         httpMethod = HttpMethod.valueOf(request.getMethod());
 
-        MultiMap<String> queryParams = new MultiMap<>();
-        jettyRequest.getUri().decodeQueryTo(queryParams);
-        Map<String, String[]> parms = new HashMap<>();
-        for(Map.Entry<String, List<String>> entry : queryParams.entrySet()) {
-            parms.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
-        }
-        parmMap = new ParmMap(parms);
-        
-        if (isMultiPart()) {
-            List<DiskFileItem> tmp = null;
-            try {
-                tmp = fileUpload.parseRequest(request);
-            } catch (FileUploadException ex) {
-                LogManager.getLogger(WebiContext.class).fatal("Failed to read file upload", ex);
-            }
-            uploads = tmp;
-        } else {
-            uploads = null;
-        }
+        parmMap = new ParmMap(jettyRequest.getQueryString());
     }
     
     public boolean isMultiPart() {
-        return ServletFileUpload.isMultipartContent(request);
+        return request != null && ServletFileUpload.isMultipartContent(request);
     }
 
     public WebiSession getSession() {
         return session;
     }
 
+    /**
+     * Get the scope holding the request scoped beans. Bind it when continuing the request on another thread.
+     * @return
+     */
+    public RequestScope getRequestScope() {
+        return requestScope;
+    }
+
+    public void setRequestScope(RequestScope requestScope) {
+        this.requestScope = requestScope;
+    }
+
     public void setRequestHandled(boolean handled) {
         jettyRequest.setHandled(handled);
     }
@@ -115,19 +120,93 @@ public class WebiContext {
         return response;
     }
     
+    /**
+     * Get uploaded files. The request body is parsed (and spooled to disk) on first access.
+     * @return uploads - or null if this is not a multipart request
+     * @throws FileUploadException 
+     */
     public List<DiskFileItem> getUploads() throws FileUploadException {
+        if (uploads == null && isMultiPart()) {
+            if (uploadsConsumed) {
+                throw new IllegalStateException("Request body was already read as a stream");
+            }
+            uploadsConsumed = true;
+            try {
+                uploads = createFileUpload().parseRequest(request);
+            } catch (FileUploadBase.SizeLimitExceededException | FileUploadBase.FileSizeLimitExceededException ex) {
+                throw new HttpException(HttpException.REQUEST_ENTITY_TOO_LARGE, ex.getMessage());
+            }
+        }
         return uploads;
     }
     
     public DiskFileItem getUpload(String name) throws FileUploadException {
-        if (uploads == null) 
+        final List<DiskFileItem> items = getUploads();
+        if (items == null) 
             return null;
-        for(DiskFileItem item:uploads) {
+        for(DiskFileItem item:items) {
             if (item.getFieldName().equals(name))
                 return item;
         }
         return null;
     }
+    
+    /**
+     * Stream the parts of a multipart request without spooling them to disk. Parts must be read in order and
+     * the request body can only be read once - so this can not be combined with getUploads.
+     * @return part iterator - or null if this is not a multipart request
+     * @throws FileUploadException
+     * @throws IOException 
+     */
+    public FileItemIterator getUploadIterator() throws FileUploadException, IOException {
+        if (!isMultiPart()) {
+            return null;
+        }
+        if (uploadsConsumed) {
+            throw new IllegalStateException("Request body was already read");
+        }
+        uploadsConsumed = true;
+        return createFileUpload().getItemIterator(request);
+    }
+    
+    /**
+     * Max size of the entire multipart request body. Must be set before the uploads are read.
+     * @param maxUploadSize max size in bytes - -1 means no limit
+     */
+    public void setMaxUploadSize(long maxUploadSize) {
+        checkUploadsNotRead();
+        this.maxUploadSize = maxUploadSize;
+    }
+    
+    public long getMaxUploadSize() {
+        return maxUploadSize;
+    }
+    
+    /**
+     * Max size of each uploaded file. Must be set before the uploads are read.
+     * @param maxUploadFileSize max size in bytes - -1 means no limit
+     */
+    public void setMaxUploadFileSize(long maxUploadFileSize) {
+        checkUploadsNotRead();
+        this.maxUploadFileSize = maxUploadFileSize;
+    }
+    
+    public long getMaxUploadFileSize() {
+        return maxUploadFileSize;
+    }
+    
+    private void checkUploadsNotRead() {
+        if (uploadsConsumed) {
+            throw new IllegalStateException("Upload limits must be set before the uploads are read");
+        }
+    }
+    
+    private ServletFileUpload createFileUpload() {
+        final ServletFileUpload fileUpload = new ServletFileUpload(fileItemFactory);
+        fileUpload.setSizeMax(maxUploadSize);
+        fileUpload.setFileSizeMax(maxUploadFileSize);
+        return fileUpload;
+    }
 
     /**
      * Get base path
@@ -311,37 +390,66 @@ public class WebiContext {
         response.sendError(i, msg);
     }
 
-    public RequestLoadMetricEntry startCall(String description, SharkNode details) {
-        RequestLoadMetricEntry out = new RequestLoadMetricEntry(description, System.currentTimeMillis());
-        out.setDetails(details);
+    /**
+     * Get trace for this request
+     * @return trace - or null if the request is not traced
+     */
+    public Trace getTrace() {
+        return trace;
+    }
 
-        if (!callStack.isEmpty()) {
-            out.setParentId(callStack.peek().getId());
-        }
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
 
-        callStack.push(out);
+    /**
+     * Start timed call. Prefer getTrace().startSpan(...)
+     * @param description
+     * @param details
+     * @return 
+     */
+    public RequestLoadMetricEntry startCall(String description, SharkNode details) {
+        final Trace current = trace;
+        if (current == null) {
+            return new RequestLoadMetricEntry(description, System.currentTimeMillis());
+        }
 
+        final Span span = current.startSpan(description, details);
+        RequestLoadMetricEntry out = new RequestLoadMetricEntry(description, current.getStartMillis(span));
+        out.setId(toUUID(current, span.getId()));
+        out.setDetails(details);
         return out;
     }
 
     public void endCall(RequestLoadMetricEntry entry) {
-        entry.endCall();
-        loadMetricEntries.add(entry);
-        callStack.remove(entry);
-    }
-
-    public void addTiming(String description, long timeTaken, SharkNode details) {
-        if (!loadMetricsEnabled) {
+        final Trace current = trace;
+        if (current == null || entry.getId() == null ||
+                entry.getId().getMostSignificantBits() != current.getId()) {
+            entry.endCall();
             return;
         }
 
-        RequestLoadMetricEntry entry = new RequestLoadMetricEntry(description, timeTaken, details);
+        current.endSpan((int) entry.getId().getLeastSignificantBits());
+    }
 
-        if (!callStack.isEmpty()) {
-            entry.setParentId(callStack.peek().getId());
+    /**
+     * Add timing to the trace of this request - if it is traced. Timings are only included in the response when
+     * load metrics are enabled.
+     * @param description
+     * @param timeTaken ms
+     * @param details
+     */
+    public void addTiming(String description, long timeTaken, SharkNode details) {
+        addTimingNanos(description, TimeUnit.MILLISECONDS.toNanos(timeTaken), details);
+    }
+
+    private void addTimingNanos(String description, long timeTakenNanos, SharkNode details) {
+        final Trace current = trace;
+        if (current == null) {
+            return;
         }
 
-        loadMetricEntries.add(entry);
+        current.addSpan(description, timeTakenNanos, details);
     }
 
     public void addTiming(String description, Runnable runnable) {
@@ -349,12 +457,11 @@ public class WebiContext {
     }
 
     public void addTiming(String description, Runnable runnable, SharkNode details) {
-        long timeStart = System.currentTimeMillis();
+        long timeStart = System.nanoTime();
         try {
             runnable.run();
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            addTimingNanos(description, System.nanoTime() - timeStart, details);
         }
     }
 
@@ -363,12 +470,11 @@ public class WebiContext {
     }
 
     public <T> T addTiming(String description, Callable<T> runnable, SharkNode details) throws Exception {
-        long timeStart = System.currentTimeMillis();
+        long timeStart = System.nanoTime();
         try {
             return runnable.call();
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            addTimingNanos(description, System.nanoTime() - timeStart, details);
         }
     }
 
@@ -377,7 +483,7 @@ public class WebiContext {
     }
 
     public <T> T addTimingNoException(String description, Callable<T> runnable, SharkNode details) {
-        long timeStart = System.currentTimeMillis();
+        long timeStart = System.nanoTime();
         try {
             return runnable.call();
         } catch (RuntimeException e) {
@@ -385,8 +491,7 @@ public class WebiContext {
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-            long timeTaken = System.currentTimeMillis() - timeStart;
-            addTiming(description, timeTaken, details);
+            addTimingNanos(description, System.nanoTime() - timeStart, details);
         }
     }
 
@@ -394,12 +499,56 @@ public class WebiContext {
         return loadMetricsEnabled;
     }
 
+    /**
+     * Include the recorded timings in the response. Makes sure the request is traced - and that the trace is
+     * exported.
+     * @param loadMetricsEnabled 
+     */
     public void setLoadMetricsEnabled(boolean loadMetricsEnabled) {
         this.loadMetricsEnabled = loadMetricsEnabled;
+        if (loadMetricsEnabled) {
+            if (trace == null) {
+                //All timings are returned in the response - keep them all
+                trace = new Trace(String.format("%s %s", httpMethod, request != null ? request.getRequestURI() : path),
+                        0, true);
+            } else {
+                trace.setSampled(true);
+                trace.keepAllSpans();
+            }
+        }
     }
 
+    /**
+     * Get completed timings in the format used in responses
+     * @return 
+     */
     public List<RequestLoadMetricEntry> getLoadMetricEntries() {
-        return loadMetricEntries;
+        final Trace current = trace;
+        if (current == null) {
+            return new ArrayList<>();
+        }
+
+        final List<Span> spans = current.getSpans();
+        final List<RequestLoadMetricEntry> out = new ArrayList<>(spans.size());
+        for (Span span : spans) {
+            RequestLoadMetricEntry entry = new RequestLoadMetricEntry(span.getDescription(),
+                    current.getStartMillis(span));
+            entry.setTimeTaken(TimeUnit.NANOSECONDS.toMillis(span.getDurationNanos()));
+            entry.setDetails(span.getDetails());
+            entry.setId(toUUID(current, span.getId()));
+            if (span.getParentId() > 0) {
+                entry.setParentId(toUUID(current, span.getParentId()));
+            }
+            out.add(entry);
+        }
+        return out;
+    }
+
+    /**
+     * Ids in responses are UUIDs made from the trace and span ids
+     */
+    private static UUID toUUID(Trace trace, int spanId) {
+        return new UUID(trace.getId(), spanId);
     }
 
     public WebiSession resolve(SessionHandler resolver) {
@@ -414,27 +563,54 @@ public class WebiContext {
         return s;
     }
 
+    /**
+     * Query string parameters. The query string is decoded on first access.
+     */
     public static final class ParmMap {
-        private final Map<String,String[]> inner;
+        private final String query;
+        private Map<String,String[]> inner;
 
         public ParmMap(Map<String, String[]> inner) {
+            this.query = null;
             this.inner = inner;
         }
+        
+        private ParmMap(String query) {
+            this.query = query;
+        }
+        
+        private Map<String,String[]> getInner() {
+            if (inner == null) {
+                if (query == null || query.isEmpty()) {
+                    inner = Collections.emptyMap();
+                } else {
+                    MultiMap<String> queryParams = new MultiMap<>();
+                    UrlEncoded.decodeTo(query, queryParams, UrlEncoded.ENCODING, -1);
+                    Map<String, String[]> parms = new HashMap<>();
+                    for(Map.Entry<String, List<String>> entry : queryParams.entrySet()) {
+                        parms.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+                    }
+                    inner = parms;
+                }
+            }
+            return inner;
+        }
+        
         public String get(String name) {
             return get(name, null);
         }
         public String get(String name,String defaultValue) {
-            String[] values = inner.get(name);
+            String[] values = getInner().get(name);
             if (values != null && values.length > 0)
                 return values[0];
             return defaultValue;
         }
         public String[] getAll(String name) {
-            return inner.get(name);
+            return getInner().get(name);
         }
 
         public boolean contains(String name) {
-            return inner.containsKey(name);
+            return getInner().containsKey(name);
         }
     
     }
@@ -450,7 +626,7 @@ public class WebiContext {
 
         private UUID parentId;
 
-        private UUID id = UUID.randomUUID();
+        private UUID id;
 
 
         public RequestLoadMetricEntry() {
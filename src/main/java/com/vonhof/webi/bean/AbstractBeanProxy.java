@@ -6,17 +6,28 @@ import net.sf.cglib.proxy.MethodProxy;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 
 abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
+    private static final BeanInvocationInterceptor[] NO_INTERCEPTORS = new BeanInvocationInterceptor[0];
 
-    private final Collection<BeanInvocationInterceptor> interceptors;
+    private final BeanInvocationInterceptor[] interceptors;
+
+    /**
+     * Interceptors that apply to each method by bean class - resolved on first invocation. Scoped proxies may
+     * delegate to beans of different classes.
+     */
+    private final ConcurrentMap<Class<?>, ConcurrentMap<Method, BeanInvocationInterceptor[]>> methodInterceptors =
+            new ConcurrentHashMap<>();
 
     protected AbstractBeanProxy(Collection<BeanInvocationInterceptor> interceptors) {
-        this.interceptors = interceptors;
+        this.interceptors = interceptors.toArray(new BeanInvocationInterceptor[interceptors.size()]);
     }
 
     abstract public T getBean();
@@ -29,18 +40,28 @@ abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
             return null;
         }
 
-        Map<String, Object> scope = new HashMap<>();
+        final BeanInvocationInterceptor[] applicable = getInterceptors(thisBean, method);
+        if (applicable.length == 0) {
+            //Fast path - nothing to intercept
+            try {
+                return invoke(thisBean, method, args, methodProxy);
+            } catch (InvocationTargetException ex) {
+                throw ex.getTargetException();
+            }
+        }
 
-        for (BeanInvocationInterceptor interceptor : interceptors) {
+        final InvocationScope scope = new InvocationScope();
+
+        for (BeanInvocationInterceptor interceptor : applicable) {
             interceptor.before(thisBean, method, args, methodProxy, scope);
         }
 
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         Object result = null;
         Throwable thrownException = null;
 
         try {
-            result = method.invoke(thisBean, args);
+            result = invoke(thisBean, method, args, methodProxy);
             return result;
 
         } catch (InvocationTargetException ex) {
@@ -50,12 +71,52 @@ abstract class AbstractBeanProxy<T> implements MethodInterceptor, Callback {
             thrownException = ex;
             throw ex;
         } finally {
-            long timeTaken = System.currentTimeMillis() - startTime;
-            for (BeanInvocationInterceptor interceptor : interceptors) {
+            long timeTaken = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            for (BeanInvocationInterceptor interceptor : applicable) {
                 interceptor.after(thisBean, method, args, methodProxy, result, thrownException, timeTaken, scope);
             }
         }
     }
 
+    private Object invoke(T thisBean, Method method, Object[] args, MethodProxy methodProxy) throws Throwable {
+        if (methodProxy != null) {
+            //Invoke through the generated fast class - avoids reflection
+            return methodProxy.invoke(thisBean, args);
+        }
+        return method.invoke(thisBean, args);
+    }
 
+    private BeanInvocationInterceptor[] getInterceptors(T thisBean, Method method) {
+        if (interceptors.length == 0) {
+            return NO_INTERCEPTORS;
+        }
+
+        final Class<?> beanClass = thisBean.getClass();
+        ConcurrentMap<Method, BeanInvocationInterceptor[]> classInterceptors = methodInterceptors.get(beanClass);
+        if (classInterceptors == null) {
+            classInterceptors = new ConcurrentHashMap<>();
+            final ConcurrentMap<Method, BeanInvocationInterceptor[]> existing =
+                    methodInterceptors.putIfAbsent(beanClass, classInterceptors);
+            if (existing != null) {
+                classInterceptors = existing;
+            }
+        }
+
+        BeanInvocationInterceptor[] out = classInterceptors.get(method);
+        if (out != null) {
+            return out;
+        }
+
+        final List<BeanInvocationInterceptor> applicable = new ArrayList<>(interceptors.length);
+        for (BeanInvocationInterceptor interceptor : interceptors) {
+            if (!(interceptor instanceof SelectiveBeanInvocationInterceptor) ||
+                    ((SelectiveBeanInvocationInterceptor) interceptor).shouldApply(beanClass, method)) {
+                applicable.add(interceptor);
+            }
+        }
+
+        out = applicable.isEmpty() ? NO_INTERCEPTORS : applicable.toArray(new BeanInvocationInterceptor[applicable.size()]);
+        classInterceptors.put(method, out);
+        return out;
+    }
 }
@@ -9,6 +9,12 @@ import org.apache.logging.log4j.Logger;
 import javax.inject.Inject;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Handles dependency injection
@@ -17,15 +23,33 @@ import java.util.Map.Entry;
  */
 public class BeanContext {
     private final static Logger log = LogManager.getLogger(BeanContext.class.getName());
+
+    /**
+     * Injectable fields per bean type
+     */
+    private final static ConcurrentMap<Class, FieldInfo[]> injectableFields = new ConcurrentHashMap<>();
     private Map<Class, Object> beansByClass = new HashMap<Class, Object>();
     private Map<String, Object> beansById = new HashMap<String, Object>();
     private Map<Class, BeanWrapper> proxiesByClass = new HashMap<>();
     private Map<String, BeanWrapper> proxiesById = new HashMap<>();
 
-    private List<ThreadLocalBeanProxy> threadLocalBeanProxies = new ArrayList<>();
+    private List<ScopedBeanProxy> scopedBeanProxies = new ArrayList<>();
 
-    private List<AfterInject> afterInjectionCalled = new LinkedList<>();
-    private List<AfterInit> afterInitCalled = new LinkedList<>();
+    /**
+     * Request scope bound to the current thread
+     */
+    private final ThreadLocal<RequestScope> currentScope = new ThreadLocal<>();
+    private final ConcurrentMap<Class, Integer> scopeSlots = new ConcurrentHashMap<>();
+    private int scopeSize = 0;
+
+    private Set<AfterInject> afterInjectionCalled = Collections.newSetFromMap(new IdentityHashMap<AfterInject, Boolean>());
+    private Set<AfterInit> afterInitCalled = Collections.newSetFromMap(new IdentityHashMap<AfterInit, Boolean>());
+    private final Map<Object, BeanTiming> timings = new IdentityHashMap<>();
+    private boolean parallelInit = false;
+    /**
+     * True while AfterInit hooks run in parallel - the bean maps are not thread safe
+     */
+    private volatile boolean initializingInParallel = false;
     private List<BeanInvocationInterceptor> interceptors = new LinkedList<>();
     private boolean disableThreadLocals = false;
     private boolean initialized = false;
@@ -49,12 +73,12 @@ public class BeanContext {
         afterInjectionCalled.addAll(other.afterInjectionCalled);
         interceptors.addAll(other.interceptors);
 
-        for (ThreadLocalBeanProxy threadLocalBeanProxy : other.threadLocalBeanProxies) {
-            if (threadLocalBeanProxy.getNullableBean() == null) {
+        for (ScopedBeanProxy scopedBeanProxy : other.scopedBeanProxies) {
+            if (scopedBeanProxy.getNullableBean() == null) {
                 continue;
             }
 
-            add(threadLocalBeanProxy.getNullableBean());
+            add(scopedBeanProxy.getNullableBean());
         }
 
         initialized = true;
@@ -70,12 +94,13 @@ public class BeanContext {
     }
 
     public <T> void add(Class<T> clz, T bean) {
+        ensureNotInitializingInParallel();
         beansByClass.put(clz, bean);
         BeanWrapper beanWrapper = proxiesByClass.get(clz);
 
         if (disableThreadLocals &&
                 beanWrapper != null &&
-                beanWrapper.getProxyHandler() instanceof ThreadLocalBeanProxy) {
+                beanWrapper.getProxyHandler() instanceof ScopedBeanProxy) {
             beanWrapper = null;
         }
         if (beanWrapper != null) {
@@ -97,10 +122,11 @@ public class BeanContext {
     }
 
     public <T> void add(String id, T bean) {
+        ensureNotInitializingInParallel();
         beansById.put(id, bean);
         BeanWrapper beanWrapper = proxiesById.get(id);
         if (disableThreadLocals &&
-                beanWrapper.getProxyHandler() instanceof ThreadLocalBeanProxy) {
+                beanWrapper.getProxyHandler() instanceof ScopedBeanProxy) {
             beanWrapper = null;
         }
         if (beanWrapper != null) {
@@ -156,102 +182,279 @@ public class BeanContext {
         return initialized;
     }
 
+    /**
+     * Run AfterInit hooks in parallel. Hooks still run after the hooks of the beans they inject.
+     *
+     * Independent hooks run at the same time - so they must be thread safe and must not register anything, e.g.
+     * with {@link #add} or Webi.add, as those registries are not thread safe. Adding beans from a hook fails with
+     * an IllegalStateException while hooks run in parallel.
+     * @param parallelInit
+     */
+    public void setParallelInit(boolean parallelInit) {
+        this.parallelInit = parallelInit;
+    }
+
+    public boolean isParallelInit() {
+        return parallelInit;
+    }
+
+    /**
+     * Time spent initializing each bean - slowest first
+     * @return
+     */
+    public List<BeanTiming> getStartupTimings() {
+        List<BeanTiming> out;
+        synchronized (timings) {
+            out = new ArrayList<>(timings.values());
+        }
+        Collections.sort(out, new Comparator<BeanTiming>() {
+            @Override
+            public int compare(BeanTiming a, BeanTiming b) {
+                return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+            }
+        });
+        return out;
+    }
+
     /**
      * For injecting whatever is available in tests. For production use init()
      */
     public void injectAll() {
-        for (Entry<Class, BeanWrapper> entry : new HashSet<>(proxiesByClass.entrySet())) {
-            if (entry.getValue().getBean() == null) {
-                continue;
-            }
+        initBeans(false);
+    }
 
-            inject(entry.getValue().getBean());
+    public void init() {
+        if (initialized) {
+            throw new IllegalStateException("Bean Context was already initialized");
         }
 
-        for (Entry<String, BeanWrapper> entry : new HashSet<>(proxiesById.entrySet())) {
+        initialized = true;
 
-            if (entry.getValue().getBean() == null) {
-                continue;
+        initBeans(true);
+    }
+
+    private void initBeans(boolean requireAll) {
+        final long started = System.nanoTime();
+        final List<Object> beans = getAllBeans(requireAll);
+
+        for (Object bean : beans) {
+            final long beanStarted = System.nanoTime();
+            inject(bean);
+            getTiming(bean).addInject(System.nanoTime() - beanStarted);
+        }
+
+        final List<AfterInit> afterInits = new ArrayList<>();
+        for (Object bean : beans) {
+            if (bean instanceof AfterInit && !afterInitCalled.contains(bean)) {
+                afterInits.add((AfterInit) bean);
             }
+        }
+
+        callAfterInit(afterInits);
 
-            inject(entry.getValue().getBean());
+        if (log.isDebugEnabled()) {
+            log.debug("Initialized {} beans in {} ms", beans.size(), (System.nanoTime() - started) / 1000000);
+            List<BeanTiming> slowest = getStartupTimings();
+            for (BeanTiming timing : slowest.subList(0, Math.min(10, slowest.size()))) {
+                log.debug(timing);
+            }
         }
+    }
+
+    /**
+     * Get all beans - each bean only once even if it is registered by several types or ids.
+     */
+    private List<Object> getAllBeans(boolean requireAll) {
+        final List<Object> out = new ArrayList<>();
+        final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
 
-        for (Entry<Class, BeanWrapper> entry : new HashSet<>(proxiesByClass.entrySet())) {
+        for (Entry<Class, BeanWrapper> entry : proxiesByClass.entrySet()) {
             Object bean = entry.getValue().getBean();
             if (bean == null) {
+                if (requireAll) {
+                    throw new IllegalStateException("Missing bean for type: " + entry.getKey());
+                }
                 continue;
             }
-
-            if (bean instanceof AfterInit &&
-                    !afterInitCalled.contains(bean)) {
-                ((AfterInit) bean).afterInit();
-                afterInitCalled.add(((AfterInit) bean));
+            if (seen.add(bean)) {
+                out.add(bean);
             }
-
-
         }
 
-        for (Entry<String, BeanWrapper> entry : new HashSet<>(proxiesById.entrySet())) {
+        for (Entry<String, BeanWrapper> entry : proxiesById.entrySet()) {
             Object bean = entry.getValue().getBean();
-
             if (bean == null) {
+                if (requireAll) {
+                    throw new IllegalStateException("Missing bean for ID: " + entry.getKey());
+                }
                 continue;
             }
-
-            if (bean instanceof AfterInit &&
-                    !afterInitCalled.contains(bean)) {
-                ((AfterInit) bean).afterInit();
-                afterInitCalled.add(((AfterInit) bean));
+            if (seen.add(bean)) {
+                out.add(bean);
             }
         }
+
+        return out;
     }
 
-    public void init() {
-        if (initialized) {
-            throw new IllegalStateException("Bean Context was already initialized");
-        }
+    /**
+     * Call AfterInit on beans - beans are called after the beans they inject. Independent beans are called
+     * in parallel if parallel init is enabled.
+     */
+    private void callAfterInit(List<AfterInit> beans) {
+        for (List<AfterInit> level : getInitLevels(beans)) {
+            afterInitCalled.addAll(level);
 
-        initialized = true;
+            if (!parallelInit || level.size() < 2) {
+                for (AfterInit bean : level) {
+                    callAfterInit(bean);
+                }
+                continue;
+            }
 
-        for (Entry<Class, BeanWrapper> entry : new HashSet<>(proxiesByClass.entrySet())) {
-            if (entry.getValue().getBean() == null) {
-                throw new IllegalStateException("Missing bean for type: " + entry.getKey());
+            final List<Callable<Void>> tasks = new ArrayList<>(level.size());
+            for (final AfterInit bean : level) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        callAfterInit(bean);
+                        return null;
+                    }
+                });
             }
 
-            inject(entry.getValue().getBean());
+            final ForkJoinPool pool = new ForkJoinPool();
+            initializingInParallel = true;
+            try {
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while initializing beans", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IllegalStateException("Failed to initialize bean", ex.getCause());
+            } finally {
+                initializingInParallel = false;
+                pool.shutdown();
+            }
         }
+    }
 
-        for (Entry<String, BeanWrapper> entry : new HashSet<>(proxiesById.entrySet())) {
+    private void ensureNotInitializingInParallel() {
+        if (initializingInParallel) {
+            throw new IllegalStateException("Beans can not be added while AfterInit hooks run in parallel");
+        }
+    }
 
-            if (entry.getValue().getBean() == null) {
-                throw new IllegalStateException("Missing bean for ID: " + entry.getKey());
-            }
+    private void callAfterInit(AfterInit bean) {
+        final long started = System.nanoTime();
+        bean.afterInit();
+        getTiming(bean).addAfterInit(System.nanoTime() - started);
+    }
 
-            inject(entry.getValue().getBean());
+    /**
+     * Group beans in levels - each bean only injects beans from previous levels. Beans in dependency cycles are
+     * put in the last level.
+     */
+    private List<List<AfterInit>> getInitLevels(List<AfterInit> beans) {
+        final Map<AfterInit, Set<AfterInit>> dependencies = new IdentityHashMap<>();
+        final Set<AfterInit> pending = Collections.newSetFromMap(new IdentityHashMap<AfterInit, Boolean>());
+        pending.addAll(beans);
+
+        for (AfterInit bean : beans) {
+            final Set<AfterInit> beanDependencies = Collections.newSetFromMap(new IdentityHashMap<AfterInit, Boolean>());
+            for (FieldInfo f : getInjectableFields(bean.getClass())) {
+                BeanWrapper wrapper = proxiesByClass.get(f.getType());
+                if (wrapper == null || wrapper.getProxyHandler() instanceof ScopedBeanProxy) {
+                    continue;
+                }
+                Object dependency = wrapper.getBean();
+                if (dependency != bean && pending.contains(dependency)) {
+                    beanDependencies.add((AfterInit) dependency);
+                }
+            }
+            dependencies.put(bean, beanDependencies);
+        }
+
+        //Peel levels off the dependency graph (Kahn) - each bean is visited once per dependent
+        final Map<AfterInit, Integer> order = new IdentityHashMap<>();
+        final Map<AfterInit, Integer> inDegree = new IdentityHashMap<>();
+        final Map<AfterInit, List<AfterInit>> dependents = new IdentityHashMap<>();
+        List<AfterInit> level = new ArrayList<>();
+        for (AfterInit bean : beans) {
+            order.put(bean, order.size());
+            inDegree.put(bean, dependencies.get(bean).size());
+            for (AfterInit dependency : dependencies.get(bean)) {
+                List<AfterInit> beanDependents = dependents.get(dependency);
+                if (beanDependents == null) {
+                    beanDependents = new ArrayList<>();
+                    dependents.put(dependency, beanDependents);
+                }
+                beanDependents.add(bean);
+            }
+            if (dependencies.get(bean).isEmpty()) {
+                level.add(bean);
+            }
         }
 
-        for (Entry<Class, BeanWrapper> entry : new HashSet<>(proxiesByClass.entrySet())) {
-            Object bean = entry.getValue().getBean();
-            if (bean instanceof AfterInit &&
-                    !afterInitCalled.contains(bean)) {
-                ((AfterInit) bean).afterInit();
-                afterInitCalled.add(((AfterInit) bean));
+        final Comparator<AfterInit> byOrder = new Comparator<AfterInit>() {
+            @Override
+            public int compare(AfterInit a, AfterInit b) {
+                return Integer.compare(order.get(a), order.get(b));
             }
+        };
 
+        final List<List<AfterInit>> levels = new ArrayList<>();
+        while (!level.isEmpty()) {
+            levels.add(level);
+            pending.removeAll(level);
 
+            final List<AfterInit> next = new ArrayList<>();
+            for (AfterInit bean : level) {
+                final List<AfterInit> beanDependents = dependents.get(bean);
+                if (beanDependents == null) {
+                    continue;
+                }
+                for (AfterInit dependent : beanDependents) {
+                    final int remaining = inDegree.get(dependent) - 1;
+                    inDegree.put(dependent, remaining);
+                    if (remaining == 0) {
+                        next.add(dependent);
+                    }
+                }
+            }
+            Collections.sort(next, byOrder);
+            level = next;
         }
 
-        for (Entry<String, BeanWrapper> entry : new HashSet<>(proxiesById.entrySet())) {
-            Object bean = entry.getValue().getBean();
-            if (bean instanceof AfterInit &&
-                    !afterInitCalled.contains(bean)) {
-                ((AfterInit) bean).afterInit();
-                afterInitCalled.add(((AfterInit) bean));
+        if (!pending.isEmpty()) {
+            //Dependency cycle - call the rest in order
+            final List<AfterInit> rest = new ArrayList<>();
+            for (AfterInit bean : beans) {
+                if (pending.contains(bean)) {
+                    rest.add(bean);
+                }
             }
+            levels.add(rest);
         }
+
+        return levels;
     }
 
+    private BeanTiming getTiming(Object bean) {
+        synchronized (timings) {
+            BeanTiming timing = timings.get(bean);
+            if (timing == null) {
+                timing = new BeanTiming(realClass(bean.getClass()).getName());
+                timings.put(bean, timing);
+            }
+            return timing;
+        }
+    }
 
     private Class realClass(Class clz) {
         while (Enhancer.isEnhanced(clz)) {
@@ -270,17 +473,7 @@ public class BeanContext {
             throw new IllegalArgumentException("Should only inject on actual beans - not proxies: " + obj.getClass());
         }
 
-        ClassInfo<?> classInfo = ClassInfo.from(obj.getClass());
-
-        for (FieldInfo f : classInfo.getFields().values()) {
-            Inject annotation = f.getAnnotation(Inject.class);
-
-            if (annotation == null) {
-                continue;
-            }
-
-            f.forceAccessible();
-
+        for (FieldInfo f : getInjectableFields(obj.getClass())) {
             try {
                 Object value = f.get(obj);
                 if (value != null) {
@@ -308,6 +501,32 @@ public class BeanContext {
         return obj;
     }
 
+    /**
+     * Get fields annotated with Inject. Resolved once per type.
+     * @param type
+     * @return
+     */
+    private static FieldInfo[] getInjectableFields(Class type) {
+        FieldInfo[] fields = injectableFields.get(type);
+        if (fields != null) {
+            return fields;
+        }
+
+        final List<FieldInfo> out = new ArrayList<>();
+        final ClassInfo<?> classInfo = ClassInfo.from(type);
+        for (FieldInfo f : classInfo.getFields().values()) {
+            if (f.getAnnotation(Inject.class) == null) {
+                continue;
+            }
+            f.forceAccessible();
+            out.add(f);
+        }
+
+        fields = out.toArray(new FieldInfo[out.size()]);
+        injectableFields.put(type, fields);
+        return fields;
+    }
+
     private <T> T inject(T obj) {
         injectFields(obj);
 
@@ -405,8 +624,11 @@ public class BeanContext {
             return new BeanProxy<>(getInterceptorsFor(clz));
         }
 
-        ThreadLocalBeanProxy out = new ThreadLocalBeanProxy<>(getInterceptorsFor(clz));
-        threadLocalBeanProxies.add(out);
+        ScopedBeanProxy out;
+        synchronized (this) {
+            out = new ScopedBeanProxy<>(this, scopeSize++, getInterceptorsFor(clz));
+        }
+        scopedBeanProxies.add(out);
         if (annotation.ignored()) {
             out.setDefaultClass(clz);
         }
@@ -430,8 +652,69 @@ public class BeanContext {
         this.interceptors.add(interceptor);
     }
 
+    /**
+     * Create new request scope. Bind it to a thread using RequestScope.enter()
+     * @return
+     */
+    public synchronized RequestScope newScope() {
+        return new RequestScope(this, scopeSize);
+    }
+
+    /**
+     * Get request scope bound to the current thread
+     * @return scope or null
+     */
+    public RequestScope getScope() {
+        return currentScope.get();
+    }
+
+    RequestScope getOrCreateScope() {
+        RequestScope scope = currentScope.get();
+        if (scope == null) {
+            scope = newScope();
+            currentScope.set(scope);
+        }
+        return scope;
+    }
+
+    RequestScope bindScope(RequestScope scope) {
+        RequestScope previous = currentScope.get();
+        currentScope.set(scope);
+        return previous;
+    }
+
+    void restoreScope(RequestScope previous) {
+        if (previous == null) {
+            currentScope.remove();
+        } else {
+            currentScope.set(previous);
+        }
+    }
+
+    /**
+     * Get scope slot for LOCAL scoped bean type - creates the proxy for the type if needed
+     * @param clz
+     * @return
+     */
+    int getScopeSlot(Class clz) {
+        Integer slot = scopeSlots.get(clz);
+        if (slot != null) {
+            return slot;
+        }
+
+        synchronized (this) {
+            BeanWrapper wrapper = getOrMakeWrapper(clz);
+            if (!(wrapper.getProxyHandler() instanceof ScopedBeanProxy)) {
+                throw new IllegalArgumentException("Bean type is not LOCAL scoped: " + clz);
+            }
+            slot = ((ScopedBeanProxy) wrapper.getProxyHandler()).getSlot();
+            scopeSlots.put(clz, slot);
+            return slot;
+        }
+    }
+
     public <T> void clearThreadLocal(Class<T> beanClass) {
-        for(ThreadLocalBeanProxy entry : threadLocalBeanProxies) {
+        for(ScopedBeanProxy entry : scopedBeanProxies) {
             if (entry.getNullableBean() != null &&
                     entry.getNullableBean().getClass().equals(beanClass)) {
                 entry.setBean(null);
@@ -439,9 +722,10 @@ public class BeanContext {
         }
     }
 
+    /**
+     * Unbind the request scope from the current thread
+     */
     public void clearThreadLocals() {
-        for(ThreadLocalBeanProxy entry : threadLocalBeanProxies) {
-            entry.setBean(null);
-        }
+        currentScope.remove();
     }
 }
@@ -0,0 +1,52 @@
+package com.vonhof.webi.bean;
+
+/**
+ * Time spent initializing a single bean when the bean context was initialized
+ */
+public final class BeanTiming {
+    private final String bean;
+    private long injectNanos;
+    private long afterInitNanos;
+
+    BeanTiming(String bean) {
+        this.bean = bean;
+    }
+
+    public String getBean() {
+        return bean;
+    }
+
+    /**
+     * Time spent injecting fields and calling AfterInject
+     * @return
+     */
+    public long getInjectNanos() {
+        return injectNanos;
+    }
+
+    /**
+     * Time spent in AfterInit
+     * @return
+     */
+    public long getAfterInitNanos() {
+        return afterInitNanos;
+    }
+
+    public long getTotalNanos() {
+        return injectNanos + afterInitNanos;
+    }
+
+    synchronized void addInject(long nanos) {
+        injectNanos += nanos;
+    }
+
+    synchronized void addAfterInit(long nanos) {
+        afterInitNanos += nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.2f ms (inject: %.2f ms, after init: %.2f ms)", bean,
+                getTotalNanos() / 1e6, injectNanos / 1e6, afterInitNanos / 1e6);
+    }
+}
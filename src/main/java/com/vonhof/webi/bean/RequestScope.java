@@ -0,0 +1,117 @@
+package com.vonhof.webi.bean;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Holds the LOCAL scoped beans (e.g. WebiContext and WebiSession) of a single request. Each LOCAL scoped bean type
+ * has a precomputed slot - so proxies resolve their bean with an array lookup.
+ *
+ * A scope is bound to the thread handling the request - and can be bound to other threads (e.g. when completing
+ * the request asynchronously) using enter() or wrap().
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class RequestScope {
+    private final BeanContext context;
+    private Object[] beans;
+
+    RequestScope(BeanContext context, int size) {
+        this.context = context;
+        this.beans = new Object[size];
+    }
+
+    /**
+     * Add bean to scope. Unlike BeanContext.add this does not inject fields or call AfterAdd.
+     * @param bean
+     */
+    public <T> void add(T bean) {
+        add((Class<T>) bean.getClass(), bean);
+    }
+
+    /**
+     * Add bean to scope. Unlike BeanContext.add this does not inject fields or call AfterAdd.
+     * @param clz
+     * @param bean
+     */
+    public <T> void add(Class<T> clz, T bean) {
+        set(context.getScopeSlot(clz), bean);
+    }
+
+    public <T> T get(Class<T> clz) {
+        return (T) get(context.getScopeSlot(clz));
+    }
+
+    /**
+     * Bind scope to the current thread. Close the returned binding to restore the previous scope.
+     * @return
+     */
+    public Binding enter() {
+        return new Binding(context.bindScope(this));
+    }
+
+    /**
+     * Wrap runnable to run within this scope - on any thread
+     * @param runnable
+     * @return
+     */
+    public Runnable wrap(final Runnable runnable) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try (Binding binding = enter()) {
+                    runnable.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap callable to run within this scope - on any thread
+     * @param callable
+     * @return
+     */
+    public <T> Callable<T> wrap(final Callable<T> callable) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try (Binding binding = enter()) {
+                    return callable.call();
+                }
+            }
+        };
+    }
+
+    synchronized Object get(int slot) {
+        return slot < beans.length ? beans[slot] : null;
+    }
+
+    synchronized void set(int slot, Object bean) {
+        if (slot >= beans.length) {
+            beans = Arrays.copyOf(beans, Math.max(slot + 1, beans.length * 2));
+        }
+        beans[slot] = bean;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(beans, null);
+    }
+
+    /**
+     * Binding of a scope to a thread
+     */
+    public final class Binding implements AutoCloseable {
+        private final RequestScope previous;
+
+        private Binding(RequestScope previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Restore the scope that was bound before
+         */
+        @Override
+        public void close() {
+            context.restoreScope(previous);
+        }
+    }
+}
@@ -3,23 +3,33 @@ package com.vonhof.webi.bean;
 import java.util.Collection;
 
 
-final class ThreadLocalBeanProxy<T> extends AbstractBeanProxy<T> {
+/**
+ * Proxy for LOCAL scoped beans. Resolves the bean from the request scope bound to the current thread.
+ */
+final class ScopedBeanProxy<T> extends AbstractBeanProxy<T> {
 
-    private final ThreadLocal<T> threadLocal = new ThreadLocal<T>();
+    private final BeanContext context;
+    private final int slot;
     private Class<T> defaultClass;
 
-    public ThreadLocalBeanProxy(Collection<BeanInvocationInterceptor> interceptors) {
+    public ScopedBeanProxy(BeanContext context, int slot, Collection<BeanInvocationInterceptor> interceptors) {
         super(interceptors);
+        this.context = context;
+        this.slot = slot;
     }
 
+    int getSlot() {
+        return slot;
+    }
 
     public T getNullableBean() {
-        return threadLocal.get();
+        RequestScope scope = context.getScope();
+        return scope != null ? (T) scope.get(slot) : null;
     }
 
     @Override
     public T getBean() {
-        T instance = threadLocal.get();
+        T instance = getNullableBean();
         if (instance == null) {
             if (defaultClass != null) {
                 try {
@@ -29,7 +39,7 @@ final class ThreadLocalBeanProxy<T> extends AbstractBeanProxy<T> {
                 }
             }
 
-            throw new IllegalStateException("Method was called on thread local instance before the instance had been set");
+            throw new IllegalStateException("Method was called on scoped instance before the instance had been set");
         }
 
         return instance;
@@ -38,7 +48,7 @@ final class ThreadLocalBeanProxy<T> extends AbstractBeanProxy<T> {
 
     @Override
     public final void setBean(T bean) {
-        threadLocal.set(bean);
+        context.getOrCreateScope().set(slot, bean);
     }
 
     public void setDefaultClass(Class<T> defaultClass) {
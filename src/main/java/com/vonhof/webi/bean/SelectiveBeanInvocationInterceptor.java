@@ -0,0 +1,10 @@
+package com.vonhof.webi.bean;
+
+import java.lang.reflect.Method;
+
+/**
+ * Interceptor that only applies to some methods of a bean. Evaluated once per method - not per invocation.
+ */
+public interface SelectiveBeanInvocationInterceptor extends BeanInvocationInterceptor {
+    boolean shouldApply(Class clz, Method method);
+}
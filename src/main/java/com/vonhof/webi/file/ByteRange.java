@@ -0,0 +1,97 @@
+package com.vonhof.webi.file;
+
+/**
+ * Single byte range from a Range request header
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class ByteRange {
+    /**
+     * Returned when the range can not be satisfied for the given length
+     */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private final long start;
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * Last byte in range (inclusive)
+     * @return
+     */
+    long getEnd() {
+        return end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    String toContentRange(long totalLength) {
+        return String.format("bytes %d-%d/%d", start, end, totalLength);
+    }
+
+    /**
+     * Parse Range header. Only single ranges are supported - multiple ranges returns null, which means the entire
+     * content is served (as allowed by RFC 7233).
+     * @param header
+     * @param length
+     * @return range, null if the header should be ignored or UNSATISFIABLE
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+
+        final String spec = header.substring(6).trim();
+        if (spec.indexOf(',') > -1) {
+            return null;
+        }
+
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                //Suffix range - last N bytes
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix < 1 || length < 1) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, length - suffix), length - 1);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            if (start < 0 || end < start) {
+                return start >= length ? UNSATISFIABLE : null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(start, end);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
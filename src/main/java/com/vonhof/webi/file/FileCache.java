@@ -0,0 +1,134 @@
+package com.vonhof.webi.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of small files kept in direct (off-heap) buffers. Least recently used files are evicted when the
+ * total size exceeds the max size. Entries are invalidated when the file length or modification time changes.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class FileCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final long maxSize;
+    private final long maxFileSize;
+    private long size = 0;
+
+    /**
+     * @param maxSize max total size of cached files in bytes
+     * @param maxFileSize max size of a single cached file in bytes
+     */
+    public FileCache(long maxSize, long maxFileSize) {
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get file contents - reads and caches the file if it is small enough.
+     * @param file
+     * @param lastModified
+     * @param length
+     * @return read-only buffer with the file contents - or null if the file can not be cached
+     * @throws IOException
+     */
+    public ByteBuffer get(File file, long lastModified, long length) throws IOException {
+        if (length > maxFileSize || length > maxSize) {
+            return null;
+        }
+
+        final String key = file.getAbsolutePath();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.length == length) {
+                    return entry.content.duplicate();
+                }
+                remove(key);
+            }
+        }
+
+        final ByteBuffer content = read(file, (int) length);
+        if (content == null) {
+            //File changed while reading
+            return null;
+        }
+
+        synchronized (this) {
+            Entry old = entries.put(key, new Entry(content, lastModified, length));
+            if (old != null) {
+                size -= old.length;
+            }
+            size += length;
+            evict();
+        }
+
+        return content.duplicate();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Total size of cached files in bytes
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.length;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static ByteBuffer read(File file, int length) throws IOException {
+        final ByteBuffer content = ByteBuffer.allocateDirect(length);
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    return null;
+                }
+            }
+            if (channel.size() != length) {
+                return null;
+            }
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    private static final class Entry {
+        private final ByteBuffer content;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(ByteBuffer content, long lastModified, long length) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
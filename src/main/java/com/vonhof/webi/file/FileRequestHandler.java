@@ -1,16 +1,23 @@
 package com.vonhof.webi.file;
 
 import com.vonhof.webi.HttpException;
+import com.vonhof.webi.HttpMethod;
 import com.vonhof.webi.RequestHandler;
 import com.vonhof.webi.Webi;
 import com.vonhof.webi.WebiContext;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import javax.inject.Inject;
 import javax.servlet.ServletException;
+import org.eclipse.jetty.server.HttpOutput;
 
 /**
  * File request handler. Servers local static file resources.
@@ -39,6 +46,16 @@ public class FileRequestHandler implements RequestHandler {
      */
     private String indexFileName = "index.html";
 
+    /**
+     * Cache for small files - null disables caching
+     */
+    private FileCache fileCache = new FileCache(32 * 1024 * 1024, 256 * 1024);
+
+    /**
+     * Files at least this size are memory mapped when sent
+     */
+    private long mapThreshold = 64 * 1024;
+
     @Override
     public final void handle(WebiContext ctxt) throws IOException, ServletException {
         String filePath = String.format("%s%s",docRoot,ctxt.getPath());
@@ -107,7 +124,8 @@ public class FileRequestHandler implements RequestHandler {
         req.flushBuffer();
     }
     /**
-     * Serve file from local filesystem. Gets mime type from file
+     * Serve file from local filesystem. Gets mime type from file.
+     * Supports conditional requests (ETag / Last-Modified) and single byte ranges.
      * @param req
      * @param file
      * @throws IOException 
@@ -115,24 +133,170 @@ public class FileRequestHandler implements RequestHandler {
     protected void serveFile(WebiContext req,File file) throws IOException {
         req.setHeader("Content-type",getResponseType(file));
         
-        long lastModified = file.lastModified();
-        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        final String etag = getETag(lastModified, length);
         
         req.setDateHeader("Last-Modified",lastModified);
+        req.setHeader("ETag", etag);
+        req.setHeader("Accept-Ranges", "bytes");
         
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
+        if (isNotModified(req, etag, lastModified)) {
             req.setStatus(304);
             req.flushBuffer();
             return;
         }
         
-        FileInputStream fileIn = new FileInputStream(file);
-        while(fileIn.available() > 0) {
-            req.getOutputStream().write(fileIn.read());
+        ByteRange range = null;
+        if (isRangeValid(req, etag, lastModified)) {
+            range = ByteRange.parse(req.getHeader("Range"), length);
+        }
+        
+        if (range == ByteRange.UNSATISFIABLE) {
+            req.setStatus(416);
+            req.setHeader("Content-Range", "bytes */" + length);
+            req.flushBuffer();
+            return;
+        }
+        
+        long start = 0;
+        long count = length;
+        if (range != null) {
+            start = range.getStart();
+            count = range.getLength();
+            req.setStatus(206);
+            req.setHeader("Content-Range", range.toContentRange(length));
+        }
+        
+        req.setHeader("Content-Length", Long.toString(count));
+        
+        if (req.getMethod() == HttpMethod.HEAD) {
+            req.flushBuffer();
+            return;
+        }
+        
+        sendContent(req, file, lastModified, length, start, count);
+    }
+    
+    /**
+     * Write part of file to the response. Uses the file cache for small files, memory maps large files and
+     * writes directly to the jetty output when possible.
+     * @param req
+     * @param file
+     * @param lastModified
+     * @param length
+     * @param start
+     * @param count
+     * @throws IOException 
+     */
+    protected void sendContent(WebiContext req, File file, long lastModified, long length, long start, long count) throws IOException {
+        final OutputStream out = req.getOutputStream();
+        
+        ByteBuffer cached = null;
+        if (fileCache != null && (webi == null || !webi.isDevMode())) {
+            cached = fileCache.get(file, lastModified, length);
+        }
+        
+        if (cached != null) {
+            cached.position((int) start);
+            cached.limit((int) (start + count));
+            write(out, cached);
+            return;
+        }
+        
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            final FileChannel channel = fileIn.getChannel();
+            
+            if (out instanceof HttpOutput && count >= mapThreshold) {
+                ((HttpOutput) out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, start, count));
+                return;
+            }
+            
+            final WritableByteChannel target = Channels.newChannel(out);
+            long position = start;
+            final long end = start + count;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred < 1) {
+                    break;
+                }
+                position += transferred;
+            }
         }
         req.flushBuffer();
     }
     
+    private void write(OutputStream out, ByteBuffer content) throws IOException {
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(content);
+            return;
+        }
+        
+        final WritableByteChannel target = Channels.newChannel(out);
+        while (content.hasRemaining()) {
+            target.write(content);
+        }
+        out.flush();
+    }
+    
+    /**
+     * Get entity tag for file - changes when the file is modified
+     * @param lastModified
+     * @param length
+     * @return 
+     */
+    protected String getETag(long lastModified, long length) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    }
+    
+    private boolean isNotModified(WebiContext req, String etag, long lastModified) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, etag);
+        }
+        
+        final long reqLastModified = getDateHeader(req, "If-Modified-Since");
+        return reqLastModified > 0 && lastModified / 1000 <= reqLastModified / 1000;
+    }
+    
+    /**
+     * Ranges are only served if the If-Range header (if any) matches the current file
+     */
+    private boolean isRangeValid(WebiContext req, String etag, long lastModified) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(etag);
+        }
+        
+        final long reqLastModified = getDateHeader(req, "If-Range");
+        return reqLastModified > 0 && lastModified / 1000 == reqLastModified / 1000;
+    }
+    
+    private static boolean matchesETag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static long getDateHeader(WebiContext req, String name) {
+        try {
+            return req.getRequest().getDateHeader(name);
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+    
     /**
      * Get mime type from file name (extension)
      * @param file
@@ -176,6 +340,26 @@ public class FileRequestHandler implements RequestHandler {
     public String getDocumentRoot() {
         return docRoot;
     }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Set cache for small files. Set to null to disable caching
+     * @param fileCache 
+     */
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    /**
+     * Files at least this size are memory mapped when sent
+     * @param mapThreshold 
+     */
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
     
     
 
@@ -10,11 +10,15 @@ import com.google.javascript.jscomp.SourceFile;
 import com.google.javascript.jscomp.SourceMap;
 import com.google.javascript.jscomp.deps.SortedDependencies.CircularDependencyException;
 import com.vonhof.webi.WebiContext;
-import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -24,9 +28,20 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -34,15 +49,21 @@ import java.util.regex.Pattern;
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class JavascriptHandler extends PreprocessingRequestHandler {
+    private static final Logger log = LogManager.getLogger(JavascriptHandler.class);
     
     private final static Pattern modulePattern = Pattern.compile("(?uis)^//@module\\s+([A-Z\\.\\-_][A-Z0-9\\.\\-_]+)(?:\\s+@prio ([0-9]+))?");
         
     private final Charset charset = Charset.forName("UTF-8");
     
-    private final Map<String,String> sourceMaps = new HashMap<String, String>();
+    /**
+     * Compiled bundles by request path
+     */
+    private final ConcurrentMap<String,CachedBundle> bundles = new ConcurrentHashMap<String, CachedBundle>();
 
     private boolean minify = true;
 
+    private ExecutorService compileExecutor;
+
     public JavascriptHandler() {
         super("text/javascript");
         Compiler.setLoggingLevel(Level.SEVERE);
@@ -54,6 +75,30 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
 
     public void setMinify(boolean minify) {
         this.minify = minify;
+        bundles.clear();
+    }
+
+    /**
+     * Set executor used for compiling bundles in the background
+     * @param compileExecutor
+     */
+    public synchronized void setCompileExecutor(ExecutorService compileExecutor) {
+        this.compileExecutor = compileExecutor;
+    }
+
+    private synchronized ExecutorService getCompileExecutor() {
+        if (compileExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            compileExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "webi-js-compile-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return compileExecutor;
     }
 
     @Override
@@ -63,6 +108,14 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
     }
     
 
+    /**
+     * Compiled bundles may be served stale while recompiling - so validators come from the bundle, not the files
+     */
+    @Override
+    protected boolean hasOwnValidators(WebiContext req) {
+        return !req.getParameterMap().contains("source");
+    }
+
     @Override
     protected void outputFiles(WebiContext req, List<File> files) throws IOException {
         if (req.getParameterMap().contains("source")) {
@@ -73,21 +126,159 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
     } 
     
     private void compiled(WebiContext req, List<File> files) throws IOException {
-        
         final String sourceName = req.getRequest().getRequestURI();
-        final String sourceMapPath = sourceName+"?map";
+        final String basePath = req.getPath();
+        final String base = req.getBase();
+
+        final Bundle bundle = getBundle(sourceName, basePath, base, files);
+
         //Check if we should be outputting source map
-        boolean outputMap = req.getParameterMap().contains("map");
+        final boolean outputMap = req.getParameterMap().contains("map");
+        final boolean gzip = !outputMap && acceptsGzip(req);
+
+        final String etag = "\"" + bundle.fingerprint + (outputMap ? "-map" : "") + (gzip ? "-gzip" : "") + "\"";
+        req.setHeader("ETag", etag);
+        req.setDateHeader("Last-Modified", bundle.lastModified);
+        req.setHeader("Vary", "Accept-Encoding");
+
         if (outputMap) {
             req.setHeader("Content-type", "application/json");
-            if (sourceMaps.containsKey(sourceName)) {
-                IOUtils.write(sourceMaps.get(sourceName), req.getOutputStream());
-                return;
-            }
         } else {
-            req.setHeader("X-SourceMap",sourceMapPath);
+            req.setHeader("X-SourceMap", bundle.sourceMapPath);
         }
-        
+
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        final long ifModifiedSince = ifNoneMatch == null ? req.getRequest().getDateHeader("If-Modified-Since") : -1;
+        if ((ifNoneMatch != null && ifNoneMatch.contains(etag))
+                || (ifModifiedSince > 0 && bundle.lastModified / 1000 <= ifModifiedSince / 1000)) {
+            req.setStatus(304);
+            return;
+        }
+
+        final byte[] content;
+        if (outputMap) {
+            content = bundle.sourceMap;
+        } else if (gzip) {
+            req.setHeader("Content-Encoding", "gzip");
+            content = bundle.gzipSource;
+        } else {
+            content = bundle.source;
+        }
+
+        req.setHeader("Content-Length", String.valueOf(content.length));
+        req.getOutputStream().write(content);
+    }
+
+    private static boolean acceptsGzip(WebiContext req) {
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+
+    /**
+     * Get compiled bundle. If the files changed since the cached bundle was compiled the stale bundle is returned
+     * while it is recompiled in the background. Concurrent requests for a bundle that is not yet compiled share
+     * the same compilation.
+     */
+    private Bundle getBundle(final String sourceName, final String basePath, final String base,
+                             final List<File> files) throws IOException {
+        final String fingerprint = fingerprint(files);
+
+        CachedBundle cached = bundles.get(sourceName);
+        if (cached == null) {
+            cached = new CachedBundle();
+            CachedBundle existing = bundles.putIfAbsent(sourceName, cached);
+            if (existing != null) {
+                cached = existing;
+            }
+        }
+
+        final Future<Bundle> compilation;
+        synchronized (cached) {
+            if (cached.bundle != null && cached.bundle.fingerprint.equals(fingerprint)) {
+                return cached.bundle;
+            }
+
+            if (cached.pending != null && cached.pendingFingerprint.equals(fingerprint)) {
+                compilation = cached.pending;
+            } else {
+                final CachedBundle target = cached;
+                FutureTask<Bundle> task = new FutureTask<Bundle>(new Callable<Bundle>() {
+                    @Override
+                    public Bundle call() throws Exception {
+                        try {
+                            Bundle bundle = compile(sourceName, basePath, base, files, fingerprint);
+                            synchronized (target) {
+                                //Don't replace a newer bundle if the files changed again while compiling
+                                if (target.bundle == null || fingerprint.equals(target.pendingFingerprint)) {
+                                    target.bundle = bundle;
+                                }
+                            }
+                            return bundle;
+                        } finally {
+                            synchronized (target) {
+                                if (target.pendingFingerprint.equals(fingerprint)) {
+                                    target.pending = null;
+                                    target.pendingFingerprint = null;
+                                }
+                            }
+                        }
+                    }
+                });
+                cached.pending = task;
+                cached.pendingFingerprint = fingerprint;
+                getCompileExecutor().execute(task);
+                compilation = task;
+            }
+
+            //Serve the stale bundle while recompiling - unless in dev mode
+            if (cached.bundle != null && (webi == null || !webi.isDevMode())) {
+                return cached.bundle;
+            }
+        }
+
+        try {
+            return compilation.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Fingerprint of the file set - changes when any file is added, removed or modified.
+     */
+    private String fingerprint(List<File> files) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((byte) (minify ? 1 : 0));
+            for (File file : files) {
+                digest.update(file.getAbsolutePath().getBytes(charset));
+                digest.update(String.format(":%d:%d;", file.lastModified(), file.length()).getBytes(charset));
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private Bundle compile(String sourceName, String basePath, String base, List<File> files, String fingerprint) throws IOException {
+        final long started = System.currentTimeMillis();
+        long lastModified = 0;
+        for (File file : files) {
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        final String sourceMapPath = sourceName+"?map";
+
         final CompilerOptions options = new CompilerOptions();
         if (minify) {
             CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel(options);
@@ -107,7 +298,7 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         rootModule.add(SourceFile.fromCode("root.js", ""));
         
         //Get absolute dir path to current url
-        final String baseDir = this.getDocumentRoot()+req.getPath();
+        final String baseDir = this.getDocumentRoot()+basePath;
         
         //Run through all files that should be compiled
         Map<String,List<PrioritizedSourceFile>> moduleSourceFiles = new HashMap<String, List<PrioritizedSourceFile>>();
@@ -115,7 +306,7 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         for(File file:files) {
 
             //Calculate relative path to HTTP root path
-            String relativePath = req.getBase()+file.getAbsolutePath().substring(this.getDocumentRoot().length()+1);
+            String relativePath = base+file.getAbsolutePath().substring(this.getDocumentRoot().length()+1);
             
             //Get relative path to file from the current path. This is that path that the browsers will use for 
             //finding non-minified js
@@ -213,19 +404,56 @@ public class JavascriptHandler extends PreprocessingRequestHandler {
         StringBuilder sb = new StringBuilder();
         result.sourceMap.validate(true);
         result.sourceMap.appendTo(sb, sourceName);
-        sourceMaps.put(sourceName, sb.toString());
-        
-        if (outputMap) {
-            //Output source map
-            IOUtils.write(sourceMaps.get(sourceName), req.getOutputStream());
-        } else {
 
-            //Add source map special comment to source and output compiled js
-            source += "\n//@ sourceMappingURL="+options.sourceMapOutputPath;
-            req.setHeader("X-SourceMap",options.sourceMapOutputPath);
+        //Add source map special comment to source
+        source += "\n//@ sourceMappingURL="+options.sourceMapOutputPath;
 
-            IOUtils.write(source, req.getOutputStream());
+        log.debug("Compiled {} files for {} in {} ms", files.size(), sourceName, System.currentTimeMillis() - started);
+
+        return new Bundle(fingerprint, lastModified, sourceMapPath, source.getBytes(charset),
+                sb.toString().getBytes(charset));
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(content);
         }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compiled bundle - immutable
+     */
+    private static final class Bundle {
+        private final String fingerprint;
+        /**
+         * Newest modification time of the files the bundle was compiled from
+         */
+        private final long lastModified;
+        private final String sourceMapPath;
+        private final byte[] source;
+        private final byte[] gzipSource;
+        private final byte[] sourceMap;
+
+        private Bundle(String fingerprint, long lastModified, String sourceMapPath, byte[] source,
+                       byte[] sourceMap) throws IOException {
+            this.fingerprint = fingerprint;
+            this.lastModified = lastModified;
+            this.sourceMapPath = sourceMapPath;
+            this.source = source;
+            this.gzipSource = gzip(source);
+            this.sourceMap = sourceMap;
+        }
+    }
+
+    /**
+     * Cache entry for a request path. Guarded by itself.
+     */
+    private static final class CachedBundle {
+        private Bundle bundle;
+        private Future<Bundle> pending;
+        private String pendingFingerprint;
     }
 
     private class PrioritizedSourceFile {
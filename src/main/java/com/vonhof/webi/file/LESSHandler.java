@@ -5,31 +5,97 @@ import com.asual.lesscss.LessOptions;
 import com.google.common.io.Files;
 import com.vonhof.webi.WebiContext;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
- *
+ * Compiles LESS and CSS files. Compiled files are cached until they - or any file they import - are modified.
+ * Directory bundles are compiled in parallel using a pool of LESS engines.
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class LESSHandler extends PreprocessingRequestHandler {
-    final LessEngine css;
-    final LessEngine less;
+    private static final Logger log = LogManager.getLogger(LESSHandler.class);
+
+    private static final Pattern importPattern = Pattern.compile("@import\\s+(?:url\\()?\\s*[\"']?([^\"')\\s;]+)[\"']?\\s*\\)?");
+
+    private final Charset charset = Charset.forName("UTF-8");
+
+    private final EnginePool css;
+    private final EnginePool less;
+
+    /**
+     * Compiled files by path
+     */
+    private final ConcurrentMap<String, CompiledFile> compiledFiles = new ConcurrentHashMap<String, CompiledFile>();
+
+    /**
+     * Concatenated bundles by request path
+     */
+    private final ConcurrentMap<String, Bundle> bundles = new ConcurrentHashMap<String, Bundle>();
+
+    private final int engineCount;
+    private ExecutorService compileExecutor;
 
     public LESSHandler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param engineCount max amount of LESS engines per type (CSS and LESS) - limits concurrent compilations
+     */
+    public LESSHandler(int engineCount) {
         super("text/css");
-        
-        //Setup 2 engines - 1 for CSS and 1 for LESS
-        LessOptions cssOptions = new LessOptions();
-        cssOptions.setCss(true);
-        css = new LessEngine(cssOptions);
-        
-        LessOptions lessOptions = new LessOptions();
-        lessOptions.setCss(false);
-        less = new LessEngine(lessOptions );
+        this.engineCount = engineCount;
+
+        //Setup 2 engine pools - 1 for CSS and 1 for LESS
+        css = new EnginePool(true, engineCount);
+        less = new EnginePool(false, engineCount);
+    }
+
+    /**
+     * Set executor used for compiling directory bundles in parallel. Defaults to a pool with a thread per engine -
+     * more threads would only wait for an engine.
+     * @param compileExecutor
+     */
+    public synchronized void setCompileExecutor(ExecutorService compileExecutor) {
+        this.compileExecutor = compileExecutor;
+    }
+
+    private synchronized ExecutorService getCompileExecutor() {
+        if (compileExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            compileExecutor = Executors.newFixedThreadPool(engineCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "webi-less-compile-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return compileExecutor;
     }
 
     @Override
@@ -37,28 +103,239 @@ public class LESSHandler extends PreprocessingRequestHandler {
         String ext = getFileExt(file);
         return ext.equalsIgnoreCase("css") || ext.equalsIgnoreCase("less");
     }
-    
+
     @Override
     protected void outputFiles(WebiContext req, List<File> files) throws IOException {
-        
-        //Run through all files that should be compiled
-        for(File file:files) {
-            //Actual source
-            String cssLess = Files.toString(file, Charset.forName("UTF-8"));
+        final boolean compressed = req.getParameterMap().contains("compressed");
+        final List<CompiledFile> compiled = compileAll(files, compressed);
+
+        final String key = req.getRequest().getRequestURI() + (compressed ? "?compressed" : "");
+        Bundle bundle = bundles.get(key);
+        if (bundle == null || !bundle.isBuiltFrom(compiled)) {
+            bundle = new Bundle(compiled);
+            bundles.put(key, bundle);
+        }
+
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        final byte[] content;
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            req.setHeader("Content-Encoding", "gzip");
+            content = bundle.gzipContent;
+        } else {
+            content = bundle.content;
+        }
+
+        req.setHeader("Vary", "Accept-Encoding");
+        req.setHeader("Content-Length", String.valueOf(content.length));
+        req.getOutputStream().write(content);
+    }
+
+    /**
+     * Compile files - in parallel if more than one file needs compiling. Result is in file order.
+     */
+    private List<CompiledFile> compileAll(List<File> files, final boolean compressed) throws IOException {
+        final List<CompiledFile> out = new ArrayList<CompiledFile>(files.size());
+        final Map<Integer, Future<CompiledFile>> pending = new LinkedHashMap<Integer, Future<CompiledFile>>();
+
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            CompiledFile cached = compiledFiles.get(cacheKey(file, compressed));
+            if (cached != null && cached.isValid()) {
+                out.add(cached);
+                continue;
+            }
+
+            out.add(null);
+            if (files.size() == 1) {
+                out.set(i, compile(file, compressed));
+                continue;
+            }
+
+            pending.put(i, getCompileExecutor().submit(new Callable<CompiledFile>() {
+                @Override
+                public CompiledFile call() throws Exception {
+                    return compile(file, compressed);
+                }
+            }));
+        }
+
+        try {
+            for (Map.Entry<Integer, Future<CompiledFile>> entry : pending.entrySet()) {
+                out.set(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+
+        return out;
+    }
+
+    private CompiledFile compile(File file, boolean compressed) throws IOException {
+        //Dependencies are resolved before reading the source - so a change while compiling invalidates the result
+        final Map<File, Long> dependencies = new LinkedHashMap<File, Long>();
+        collectDependencies(file, dependencies);
+
+        //Actual source
+        final String cssLess = Files.toString(file, charset);
+        final EnginePool pool = getFileExt(file).equalsIgnoreCase("less") ? less : css;
+
+        String compiled;
+        final LessEngine engine = pool.borrow();
+        try {
+            //Compiled source
+            compiled = engine.compile(cssLess, compressed);
+        } catch (Throwable ex) {
+            log.fatal("Failed while compiling LESS", ex);
+            compiled = cssLess;
+        } finally {
+            pool.release(engine);
+        }
+
+        final CompiledFile out = new CompiledFile(compiled.getBytes(charset), dependencies);
+        compiledFiles.put(cacheKey(file, compressed), out);
+        return out;
+    }
+
+    /**
+     * Collect file and all files it imports (recursively) with their modification time
+     */
+    private void collectDependencies(File file, Map<File, Long> dependencies) throws IOException {
+        if (dependencies.containsKey(file)) {
+            return;
+        }
+        dependencies.put(file, file.lastModified());
+
+        if (!file.exists()) {
+            return;
+        }
+
+        final Matcher m = importPattern.matcher(Files.toString(file, charset));
+        while (m.find()) {
+            String path = m.group(1);
+            if (path.contains("://")) {
+                continue;
+            }
+            File imported = new File(file.getParentFile(), path);
+            if (!imported.exists() && !path.endsWith(".less") && !path.endsWith(".css")) {
+                imported = new File(file.getParentFile(), path + ".less");
+            }
+            collectDependencies(imported, dependencies);
+        }
+    }
+
+    private static String cacheKey(File file, boolean compressed) {
+        return file.getAbsolutePath() + (compressed ? "?compressed" : "");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Pool of LESS engines. Engines are created on demand - up to max size.
+     */
+    private static final class EnginePool {
+        private final BlockingQueue<LessEngine> idle = new LinkedBlockingQueue<LessEngine>();
+        private final boolean css;
+        private final int maxSize;
+        private int created = 0;
+
+        private EnginePool(boolean css, int maxSize) {
+            this.css = css;
+            this.maxSize = Math.max(1, maxSize);
+        }
+
+        private LessEngine borrow() throws IOException {
+            LessEngine engine = idle.poll();
+            if (engine != null) {
+                return engine;
+            }
+
+            synchronized (this) {
+                if (created < maxSize) {
+                    created++;
+                    LessOptions options = new LessOptions();
+                    options.setCss(css);
+                    return new LessEngine(options);
+                }
+            }
+
             try {
-                //Compiled source
-                String compiled = "";
-                if (getFileExt(file).equalsIgnoreCase("less")) {
-                    compiled = less.compile(cssLess, req.getParameterMap().contains("compressed"));
-                } else {
-                    compiled = css.compile(cssLess, req.getParameterMap().contains("compressed"));
+                return idle.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+
+        private void release(LessEngine engine) {
+            idle.add(engine);
+        }
+    }
+
+    /**
+     * Compiled file and the modification times of the files it was compiled from
+     */
+    private static final class CompiledFile {
+        private final byte[] content;
+        private final Map<File, Long> dependencies;
+
+        private CompiledFile(byte[] content, Map<File, Long> dependencies) {
+            this.content = content;
+            this.dependencies = dependencies;
+        }
+
+        private boolean isValid() {
+            for (Map.Entry<File, Long> entry : dependencies.entrySet()) {
+                if (entry.getKey().lastModified() != entry.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Concatenated and precompressed output of a list of compiled files
+     */
+    private final class Bundle {
+        private final List<CompiledFile> files;
+        private final byte[] content;
+        private final byte[] gzipContent;
+
+        private Bundle(List<CompiledFile> files) throws IOException {
+            this.files = files;
+
+            final byte[] lineBreak = "\n".getBytes(charset);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (CompiledFile file : files) {
+                out.write(file.content);
+                out.write(lineBreak);
+            }
+            this.content = out.toByteArray();
+            this.gzipContent = gzip(content);
+        }
+
+        private boolean isBuiltFrom(List<CompiledFile> other) {
+            if (other.size() != files.size()) {
+                return false;
+            }
+            for (int i = 0; i < files.size(); i++) {
+                if (files.get(i) != other.get(i)) {
+                    return false;
                 }
-                
-                req.getOutputStream().write(compiled.getBytes("UTF-8"));
-            } catch (Throwable ex) {
-                LogManager.getLogger(LESSHandler.class).fatal("Failed while compiling LESS", ex);
-                req.getOutputStream().write(cssLess.getBytes("UTF-8"));
             }
+            return true;
         }
     }
 }
@@ -36,15 +36,17 @@ abstract public class PreprocessingRequestHandler extends FileRequestHandler {
             }
         }
         
-        long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
-            req.setStatus(304);
-            req.flushBuffer();
-            return;
+        if (!hasOwnValidators(req)) {
+            long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
+            if (reqLastModified > 0 && lastModified <= reqLastModified) {
+                req.setStatus(304);
+                req.flushBuffer();
+                return;
+            }
+            req.setDateHeader("Last-Modified",lastModified);
         }
         
         req.setHeader("Content-type",contentType);
-        req.setDateHeader("Last-Modified",lastModified);
         
         outputFiles(req, files);
         
@@ -69,12 +71,15 @@ abstract public class PreprocessingRequestHandler extends FileRequestHandler {
         long reqLastModified = req.getRequest().getDateHeader("If-Modified-Since");
         
         req.setHeader("Content-type",contentType);
-        req.setDateHeader("Last-Modified",lastModified);
         
-        if (reqLastModified > 0 && lastModified <= reqLastModified) {
-            req.setStatus(304);
-            req.flushBuffer();
-            return;
+        if (!hasOwnValidators(req)) {
+            req.setDateHeader("Last-Modified",lastModified);
+            
+            if (reqLastModified > 0 && lastModified <= reqLastModified) {
+                req.setStatus(304);
+                req.flushBuffer();
+                return;
+            }
         }
         
         outputFiles(req, Collections.singletonList(file));
@@ -93,14 +98,25 @@ abstract public class PreprocessingRequestHandler extends FileRequestHandler {
     }
     
     protected void outputFile(WebiContext req, File file,OutputStream out) throws IOException {
-        FileInputStream fileIn = new FileInputStream(file);
-        IOUtils.copy(fileIn, out);
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            IOUtils.copy(fileIn, out);
+        }
     }
     
     protected boolean isValid(File file) {
         return true;
     }
     
+    /**
+     * Return true if outputFiles sets Last-Modified and handles conditional requests itself for the request - e.g.
+     * when the output is cached and may be older than the files.
+     * @param req
+     * @return 
+     */
+    protected boolean hasOwnValidators(WebiContext req) {
+        return false;
+    }
+    
     protected List<File> getFiles(File dir) {
         List<File> files = new ArrayList<File>();
         
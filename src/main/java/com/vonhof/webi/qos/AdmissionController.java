@@ -0,0 +1,58 @@
+package com.vonhof.webi.qos;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Admission controllers decide when requests may be handled. Requests that can not be admitted right away are
+ * queued and admitted when capacity becomes available.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface AdmissionController {
+
+    /**
+     * Admit request if there is capacity for it
+     * @param request
+     * @param path
+     * @return permit - or null if the request should be queued
+     */
+    Permit tryAcquire(HttpServletRequest request, String path);
+
+    /**
+     * Queue request that could not be admitted. The waiter is called with a permit when the request is admitted.
+     * @param request
+     * @param path
+     * @param waiter
+     * @return false if the request was rejected
+     */
+    boolean enqueue(HttpServletRequest request, String path, Waiter waiter);
+
+    /**
+     * Remove waiter from queue - e.g. when the request timed out
+     * @param waiter
+     * @return false if the waiter was not queued (e.g. because it was just admitted)
+     */
+    boolean cancel(Waiter waiter);
+
+    /**
+     * Permit to handle a single request
+     */
+    interface Permit {
+        /**
+         * Release permit when the request has been handled
+         * @param durationNanos time it took to handle the request
+         * @param success
+         */
+        void release(long durationNanos, boolean success);
+    }
+
+    /**
+     * Queued request
+     */
+    interface Waiter {
+        /**
+         * Called when the queued request is admitted. The waiter owns the permit and must release it.
+         * @param permit
+         */
+        void admit(Permit permit);
+    }
+}
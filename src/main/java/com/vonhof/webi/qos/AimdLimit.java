@@ -0,0 +1,55 @@
+package com.vonhof.webi.qos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit using additive increase / multiplicative decrease. The limit is decreased when requests fail or
+ * are slower than the latency threshold and increased by 1 when requests are fast and the limit is being used.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class AimdLimit implements Limit {
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+
+    private volatile int limit;
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param latencyThresholdMs requests slower than this will decrease the limit
+     */
+    public AimdLimit(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs) {
+        this(initialLimit, minLimit, maxLimit, latencyThresholdMs, 0.9);
+    }
+
+    public AimdLimit(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs, double backoffRatio) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Min limit must be at least 1 and at most max limit");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+        }
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void onSample(long durationNanos, int inFlight, boolean success) {
+        if (!success || durationNanos > latencyThresholdNanos) {
+            limit = Math.max(minLimit, (int) (limit * backoffRatio));
+        } else if (inFlight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+}
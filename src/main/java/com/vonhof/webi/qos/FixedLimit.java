@@ -0,0 +1,23 @@
+package com.vonhof.webi.qos;
+
+/**
+ * Limit that never changes
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class FixedLimit implements Limit {
+    private final int limit;
+
+    public FixedLimit(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long durationNanos, int inFlight, boolean success) {
+
+    }
+}
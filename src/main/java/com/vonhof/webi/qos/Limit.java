@@ -0,0 +1,21 @@
+package com.vonhof.webi.qos;
+
+/**
+ * Concurrency limit for admission
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface Limit {
+    /**
+     * Current max amount of concurrent requests
+     * @return
+     */
+    int getLimit();
+
+    /**
+     * Called every time a request completes
+     * @param durationNanos
+     * @param inFlight amount of requests that were in flight when the request completed
+     * @param success
+     */
+    void onSample(long durationNanos, int inFlight, boolean success);
+}
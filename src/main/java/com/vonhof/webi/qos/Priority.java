@@ -0,0 +1,11 @@
+package com.vonhof.webi.qos;
+
+/**
+ * Priority classes for admission. Queued requests with higher priority are admitted first.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public enum Priority {
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,412 @@
+package com.vonhof.webi.qos;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.vonhof.webi.HttpMethod;
+import com.vonhof.webi.PathPatternMap;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default admission controller. Limits the amount of concurrent requests globally and per path pattern (route).
+ *
+ * Queued requests are admitted by priority first and arrival order second - skipping routes that are at their
+ * limit, so a burst on one slow route does not hold back requests to other routes.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class PriorityAdmissionController implements AdmissionController {
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final Limit globalLimit;
+    private final MetricRegistry registry;
+
+    private final PathPatternMap<Route> routesByPath = new PathPatternMap<Route>();
+    private final List<Route> routes = new ArrayList<Route>();
+    private final Route defaultRoute;
+    private final Map<Waiter, Queued> queuedByWaiter = new IdentityHashMap<Waiter, Queued>();
+    private final EnumMap<HttpMethod, Priority> methodPriorities = new EnumMap<HttpMethod, Priority>(HttpMethod.class);
+
+    private int maxQueueSize = 10000;
+    private int inFlight = 0;
+    private long sequence = 0;
+
+    private final Meter rejected;
+    private final Meter timedOut;
+    private final Timer queueWait;
+
+    public PriorityAdmissionController(int maxConcurrentRequests) {
+        this(new FixedLimit(maxConcurrentRequests), null);
+    }
+
+    public PriorityAdmissionController(int maxConcurrentRequests, MetricRegistry registry) {
+        this(new FixedLimit(maxConcurrentRequests), registry);
+    }
+
+    public PriorityAdmissionController(Limit globalLimit, MetricRegistry registry) {
+        this.globalLimit = globalLimit;
+        this.registry = registry;
+        routesByPath.compile();
+
+        if (registry != null) {
+            rejected = registry.meter(name("rejected"));
+            timedOut = registry.meter(name("timeouts"));
+            queueWait = registry.timer(name("queue-wait"));
+            gauge(name("in-flight"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return getInFlight();
+                }
+            });
+            gauge(name("queued"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return getQueued();
+                }
+            });
+            gauge(name("limit"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return PriorityAdmissionController.this.globalLimit.getLimit();
+                }
+            });
+        } else {
+            rejected = null;
+            timedOut = null;
+            queueWait = null;
+        }
+
+        defaultRoute = addRoute("default", null, null);
+    }
+
+    /**
+     * Limit the amount of concurrent requests for paths matching the pattern
+     * @param pathPattern
+     * @param limit
+     */
+    public void setLimit(String pathPattern, int limit) {
+        setRoute(pathPattern, new FixedLimit(limit), null);
+    }
+
+    /**
+     * Limit the amount of concurrent requests for paths matching the pattern
+     * @param pathPattern
+     * @param limit
+     */
+    public void setLimit(String pathPattern, Limit limit) {
+        setRoute(pathPattern, limit, null);
+    }
+
+    /**
+     * Set priority of requests for paths matching the pattern. Takes precedence over method priorities.
+     * @param pathPattern
+     * @param priority
+     */
+    public void setPriority(String pathPattern, Priority priority) {
+        setRoute(pathPattern, null, priority);
+    }
+
+    /**
+     * Set priority of requests using the given HTTP method - e.g. to let GET requests in ahead of POST requests.
+     * @param method
+     * @param priority
+     */
+    public synchronized void setPriority(HttpMethod method, Priority priority) {
+        methodPriorities.put(method, priority);
+    }
+
+    /**
+     * Configure route. Limit and priority are left unchanged if null.
+     * @param pathPattern
+     * @param limit
+     * @param priority
+     */
+    public synchronized void setRoute(String pathPattern, Limit limit, Priority priority) {
+        Route route = null;
+        for (Route existing : routes) {
+            if (existing != defaultRoute && existing.name.equals(pathPattern)) {
+                route = existing;
+                break;
+            }
+        }
+
+        if (route == null) {
+            route = addRoute(pathPattern, limit, priority);
+            routesByPath.put(pathPattern, route);
+            return;
+        }
+
+        if (limit != null) {
+            route.limit = limit;
+        }
+        if (priority != null) {
+            route.priority = priority;
+        }
+    }
+
+    public synchronized void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queuedByWaiter.size();
+    }
+
+    @Override
+    public Permit tryAcquire(HttpServletRequest request, String path) {
+        final Route route = getRoute(path);
+        synchronized (this) {
+            //Queued requests are admitted as soon as there is capacity for them - so if there is capacity now
+            //no request that could use it is waiting.
+            if (!hasCapacity(route)) {
+                return null;
+            }
+            return acquire(route);
+        }
+    }
+
+    @Override
+    public boolean enqueue(HttpServletRequest request, String path, Waiter waiter) {
+        final Route route = getRoute(path);
+        final Priority priority = getPriority(route, request);
+        Permit admitted = null;
+
+        synchronized (this) {
+            if (queuedByWaiter.size() >= maxQueueSize) {
+                mark(rejected);
+                mark(route.rejected);
+                return false;
+            }
+
+            if (hasCapacity(route)) {
+                //Capacity became available since tryAcquire
+                admitted = acquire(route);
+            } else {
+                Queued queued = new Queued(waiter, route, priority, sequence++);
+                route.queues[priority.ordinal()].add(queued);
+                queuedByWaiter.put(waiter, queued);
+            }
+        }
+
+        if (admitted != null) {
+            waiter.admit(admitted);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(Waiter waiter) {
+        synchronized (this) {
+            Queued queued = queuedByWaiter.remove(waiter);
+            if (queued == null) {
+                return false;
+            }
+            queued.route.queues[queued.priority.ordinal()].remove(queued);
+        }
+        mark(timedOut);
+        return true;
+    }
+
+    private void release(RoutePermit permit, long durationNanos, boolean success) {
+        final List<Queued> toAdmit = new ArrayList<Queued>();
+        synchronized (this) {
+            final Route route = permit.route;
+            if (route.limit != null) {
+                route.limit.onSample(durationNanos, route.inFlight, success);
+            }
+            globalLimit.onSample(durationNanos, inFlight, success);
+
+            route.inFlight--;
+            inFlight--;
+
+            drain(toAdmit);
+        }
+
+        for (Queued queued : toAdmit) {
+            if (queueWait != null) {
+                queueWait.update(System.nanoTime() - queued.enqueuedAt, TimeUnit.NANOSECONDS);
+            }
+            queued.waiter.admit(queued.permit);
+        }
+    }
+
+    /**
+     * Admit queued requests while there is capacity. Highest priority first - oldest first within same priority.
+     * @param toAdmit
+     */
+    private void drain(List<Queued> toAdmit) {
+        while (inFlight < globalLimit.getLimit() && !queuedByWaiter.isEmpty()) {
+            Queued next = null;
+            for (Priority priority : PRIORITIES) {
+                for (Route route : routes) {
+                    Queued head = route.queues[priority.ordinal()].peek();
+                    if (head == null || !route.hasCapacity()) {
+                        continue;
+                    }
+                    if (next == null || head.sequence < next.sequence) {
+                        next = head;
+                    }
+                }
+                if (next != null) {
+                    break;
+                }
+            }
+
+            if (next == null) {
+                //All routes with queued requests are at their limit
+                return;
+            }
+
+            next.route.queues[next.priority.ordinal()].poll();
+            queuedByWaiter.remove(next.waiter);
+            next.permit = acquire(next.route);
+            toAdmit.add(next);
+        }
+    }
+
+    private boolean hasCapacity(Route route) {
+        return inFlight < globalLimit.getLimit() && route.hasCapacity();
+    }
+
+    private RoutePermit acquire(Route route) {
+        inFlight++;
+        route.inFlight++;
+        return new RoutePermit(route);
+    }
+
+    private Route getRoute(String path) {
+        Route route = routesByPath.get(path);
+        return route != null ? route : defaultRoute;
+    }
+
+    private synchronized Priority getPriority(Route route, HttpServletRequest request) {
+        if (route.priority != null) {
+            return route.priority;
+        }
+
+        try {
+            Priority priority = methodPriorities.get(HttpMethod.valueOf(request.getMethod()));
+            if (priority != null) {
+                return priority;
+            }
+        } catch (IllegalArgumentException ex) {
+            //Unknown method
+        }
+        return Priority.NORMAL;
+    }
+
+    private Route addRoute(String name, Limit limit, Priority priority) {
+        final Route route = new Route(name, limit, priority);
+        routes.add(route);
+
+        if (registry != null) {
+            route.rejected = registry.meter(name("route", name, "rejected"));
+            gauge(name("route", name, "in-flight"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    synchronized (PriorityAdmissionController.this) {
+                        return route.inFlight;
+                    }
+                }
+            });
+            gauge(name("route", name, "queued"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    synchronized (PriorityAdmissionController.this) {
+                        int out = 0;
+                        for (ArrayDeque<Queued> queue : route.queues) {
+                            out += queue.size();
+                        }
+                        return out;
+                    }
+                }
+            });
+        }
+        return route;
+    }
+
+    /**
+     * Register gauge - replacing any gauge with the same name, so controllers can be replaced and registries
+     * shared. The gauges report the controller registered last.
+     */
+    private void gauge(String name, Gauge<?> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    private static String name(String... names) {
+        return MetricRegistry.name("webi.admission", names);
+    }
+
+    private static void mark(Meter meter) {
+        if (meter != null) {
+            meter.mark();
+        }
+    }
+
+    private static final class Route {
+        private final String name;
+        private final ArrayDeque<Queued>[] queues = new ArrayDeque[PRIORITIES.length];
+        private Limit limit;
+        private Priority priority;
+        private int inFlight = 0;
+        private Meter rejected;
+
+        private Route(String name, Limit limit, Priority priority) {
+            this.name = name;
+            this.limit = limit;
+            this.priority = priority;
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<Queued>();
+            }
+        }
+
+        private boolean hasCapacity() {
+            return limit == null || inFlight < limit.getLimit();
+        }
+    }
+
+    private static final class Queued {
+        private final Waiter waiter;
+        private final Route route;
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueuedAt = System.nanoTime();
+        private RoutePermit permit;
+
+        private Queued(Waiter waiter, Route route, Priority priority, long sequence) {
+            this.waiter = waiter;
+            this.route = route;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+    }
+
+    private final class RoutePermit implements Permit {
+        private final Route route;
+        private boolean released = false;
+
+        private RoutePermit(Route route) {
+            this.route = route;
+        }
+
+        @Override
+        public void release(long durationNanos, boolean success) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            PriorityAdmissionController.this.release(this, durationNanos, success);
+        }
+    }
+}
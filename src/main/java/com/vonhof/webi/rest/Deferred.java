@@ -0,0 +1,128 @@
+package com.vonhof.webi.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future that is completed by calling resolve or reject. Return from controller methods to complete the request
+ * asynchronously - the request thread is released while the result is pending and the result is written to the
+ * client from the thread that completes it.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class Deferred<T> implements Future<T> {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<Listener<? super T>> listeners = new ArrayList<>();
+
+    private boolean done = false;
+    private boolean cancelled = false;
+    private T result;
+    private Throwable error;
+
+    /**
+     * Complete with result
+     * @param result
+     * @return false if already completed
+     */
+    public boolean resolve(T result) {
+        return complete(result, null, false);
+    }
+
+    /**
+     * Complete with error
+     * @param error
+     * @return false if already completed
+     */
+    public boolean reject(Throwable error) {
+        return complete(null, error, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException(), true);
+    }
+
+    /**
+     * Add listener that is called when this completes. Is called immediately if already completed.
+     * @param listener
+     */
+    public void addListener(Listener<? super T> listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(result, error);
+    }
+
+    private boolean complete(T result, Throwable error, boolean cancelled) {
+        final List<Listener<? super T>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.error = error;
+            this.cancelled = cancelled;
+            this.done = true;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+
+        latch.countDown();
+
+        for (Listener<? super T> listener : toNotify) {
+            listener.onComplete(result, error);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    public interface Listener<T> {
+        /**
+         * Called when the deferred is completed. Error is null if it was resolved.
+         * @param result
+         * @param error
+         */
+        void onComplete(T result, Throwable error);
+    }
+}
@@ -0,0 +1,112 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.reflect.ClassInfo;
+import com.vonhof.babelshark.reflect.MethodInfo;
+import com.vonhof.babelshark.reflect.MethodInfo.Parameter;
+import com.vonhof.webi.WebiContext;
+
+/**
+ * Precomputed plan for invoking a controller method. Everything that can be determined from the method signature
+ * is resolved once when the controller is exposed - so the request only has to run the argument resolvers.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class InvocationPlan {
+    private final MethodInfo method;
+    private final ArgumentResolver[] resolvers;
+    private final int[] bodyIndexes;
+    private final Parameter[] bodyParameters;
+    private final Object emptyResult;
+    private volatile MethodInvoker invoker;
+
+    InvocationPlan(MethodInfo method, ArgumentResolver[] resolvers,
+                   int[] bodyIndexes, Parameter[] bodyParameters, Object emptyResult) {
+        this.method = method;
+        this.resolvers = resolvers;
+        this.bodyIndexes = bodyIndexes;
+        this.bodyParameters = bodyParameters;
+        this.emptyResult = emptyResult;
+    }
+
+    public MethodInfo getMethod() {
+        return method;
+    }
+
+    /**
+     * Invoke the method on the target. The invoker is created on first invocation - when the target type is known.
+     * @param target
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    Object invoke(Object target, Object[] args) throws Exception {
+        MethodInvoker current = invoker;
+        if (current == null) {
+            current = MethodInvoker.create(target.getClass(), method);
+            invoker = current;
+        }
+        return current.invoke(target, args);
+    }
+
+    /**
+     * Resolvers for each method argument - in argument order.
+     * @return
+     */
+    ArgumentResolver[] getResolvers() {
+        return resolvers;
+    }
+
+    /**
+     * Argument indexes of the parameters that are read from the request body
+     * @return
+     */
+    int[] getBodyIndexes() {
+        return bodyIndexes;
+    }
+
+    Parameter[] getBodyParameters() {
+        return bodyParameters;
+    }
+
+    /**
+     * Refine output value - makes sure certain types are never null
+     * @param output
+     * @return
+     */
+    Object refineResult(Object output) {
+        return output != null ? output : emptyResult;
+    }
+
+    /**
+     * Resolves a single method argument from the request
+     */
+    interface ArgumentResolver {
+        Object resolve(WebiContext req) throws Exception;
+    }
+
+    /**
+     * Precomputed handlers for a controller type
+     */
+    static final class Controller {
+        private final ClassInfo<?> classInfo;
+        private final InvocationPlan[] beforeRequest;
+        private final InvocationPlan[] afterRequest;
+
+        Controller(ClassInfo<?> classInfo, InvocationPlan[] beforeRequest, InvocationPlan[] afterRequest) {
+            this.classInfo = classInfo;
+            this.beforeRequest = beforeRequest;
+            this.afterRequest = afterRequest;
+        }
+
+        ClassInfo<?> getClassInfo() {
+            return classInfo;
+        }
+
+        InvocationPlan[] getBeforeRequest() {
+            return beforeRequest;
+        }
+
+        InvocationPlan[] getAfterRequest() {
+            return afterRequest;
+        }
+    }
+}
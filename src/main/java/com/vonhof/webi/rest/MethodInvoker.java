@@ -0,0 +1,159 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.reflect.MethodInfo;
+import com.vonhof.babelshark.reflect.MethodInfo.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Invokes controller methods. Uses method handles when the method can be resolved - and falls back to
+ * reflection through MethodInfo otherwise.
+ *
+ * Exceptions thrown by the target method are always wrapped in an InvocationTargetException - same as reflection.
+ * Invalid targets and arguments are rejected with an IllegalArgumentException before the method is invoked.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+abstract class MethodInvoker {
+    private static final Logger log = LogManager.getLogger(MethodInvoker.class);
+
+    abstract Object invoke(Object target, Object[] args) throws Exception;
+
+    /**
+     * Create invoker for method on the given target type
+     * @param type
+     * @param method
+     * @return
+     */
+    static MethodInvoker create(Class<?> type, MethodInfo method) {
+        final Method reflected = findMethod(type, method);
+        if (reflected != null) {
+            try {
+                if (!reflected.isAccessible()) {
+                    reflected.setAccessible(true);
+                }
+
+                final int argCount = reflected.getParameterTypes().length;
+                MethodHandle handle = MethodHandles.lookup().unreflect(reflected)
+                        .asType(MethodType.genericMethodType(argCount + 1))
+                        .asSpreader(Object[].class, argCount);
+
+                return new MethodHandleInvoker(handle, reflected.getDeclaringClass(),
+                        reflected.getParameterTypes());
+            } catch (Exception ex) {
+                log.debug("Could not create method handle for {} - using reflection", reflected, ex);
+            }
+        }
+
+        return new ReflectionInvoker(method);
+    }
+
+    private static Method findMethod(Class<?> type, MethodInfo method) {
+        final Collection<Parameter> parms = method.getParameters().values();
+        final Class[] parmTypes = new Class[parms.size()];
+        int i = 0;
+        for (Parameter p : parms) {
+            parmTypes[i++] = p.getType();
+        }
+
+        for (Class<?> clz = type; clz != null; clz = clz.getSuperclass()) {
+            try {
+                return clz.getDeclaredMethod(method.getName(), parmTypes);
+            } catch (NoSuchMethodException ex) {
+                //Try super class
+            }
+        }
+
+        return null;
+    }
+
+    private static final class MethodHandleInvoker extends MethodInvoker {
+        private final MethodHandle handle;
+        private final Class<?> owner;
+        private final Class<?>[] parmTypes;
+
+        private MethodHandleInvoker(MethodHandle handle, Class<?> owner, Class<?>[] parmTypes) {
+            this.handle = handle;
+            this.owner = owner;
+            this.parmTypes = parmTypes;
+        }
+
+        @Override
+        Object invoke(Object target, Object[] args) throws Exception {
+            checkArguments(target, args);
+            try {
+                return (Object) handle.invokeExact(target, args);
+            } catch (Throwable ex) {
+                throw new InvocationTargetException(ex);
+            }
+        }
+
+        /**
+         * Same checks as reflection - so conversion errors are not reported as exceptions thrown by the method
+         */
+        private void checkArguments(Object target, Object[] args) {
+            if (!owner.isInstance(target)) {
+                throw new IllegalArgumentException("Object is not an instance of " + owner.getName());
+            }
+            final int argCount = args != null ? args.length : 0;
+            if (argCount != parmTypes.length) {
+                throw new IllegalArgumentException(String.format("Wrong number of arguments: %d expected %d",
+                        argCount, parmTypes.length));
+            }
+            for (int i = 0; i < argCount; i++) {
+                final Object arg = args[i];
+                final Class<?> type = parmTypes[i];
+                if (arg == null) {
+                    if (type.isPrimitive()) {
+                        throw new IllegalArgumentException("Argument " + i + " must not be null");
+                    }
+                } else if (type.isPrimitive() ? !isWidening(arg.getClass(), type) : !type.isInstance(arg)) {
+                    throw new IllegalArgumentException(String.format("Argument %d is a %s - expected %s",
+                            i, arg.getClass().getName(), parmTypes[i].getName()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Order of primitive widening conversions - boolean and char are handled separately
+     */
+    private static final List<Class<?>> NUMERIC = Arrays.<Class<?>>asList(
+            Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class);
+
+    /**
+     * If a boxed value can be unboxed and widened to the primitive type - same rules as reflection
+     */
+    private static boolean isWidening(Class<?> boxed, Class<?> primitive) {
+        final Class<?> target = MethodType.methodType(primitive).wrap().returnType();
+        if (boxed == target) {
+            return true;
+        }
+        if (boxed == Character.class) {
+            return NUMERIC.indexOf(target) >= NUMERIC.indexOf(Integer.class);
+        }
+        final int from = NUMERIC.indexOf(boxed);
+        return from >= 0 && from < NUMERIC.indexOf(target);
+    }
+
+    private static final class ReflectionInvoker extends MethodInvoker {
+        private final MethodInfo method;
+
+        private ReflectionInvoker(MethodInfo method) {
+            this.method = method;
+        }
+
+        @Override
+        Object invoke(Object target, Object[] args) throws Exception {
+            return method.invoke(target, args);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.vonhof.webi.rest;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.vonhof.babelshark.annotation.Name;
+import com.vonhof.webi.annotation.Path;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Exposes the per controller method metrics of a REST handler. Times are in milliseconds.
+ *
+ * Usage: restHandler.expose(new MetricsController(restHandler));
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+@Path("metrics")
+@Name("metrics")
+public class MetricsController {
+
+    private static final double NS_PER_MS = 1000000.0;
+
+    private final RESTServiceHandler handler;
+
+    public MetricsController(RESTServiceHandler handler) {
+        this.handler = handler;
+    }
+
+    public Map<String, Object> endpoints() {
+        final Map<String, Object> out = new TreeMap<>();
+        final RESTMetrics metrics = handler.getMetrics();
+        if (metrics == null) {
+            return out;
+        }
+
+        for (RESTMetrics.Endpoint endpoint : metrics.getEndpoints()) {
+            final Map<String, Object> node = new LinkedHashMap<>();
+            node.put("count", endpoint.getLatency().getCount());
+            node.put("inFlight", endpoint.getInFlight().getCount());
+            node.put("errors", endpoint.getErrors().getCount());
+            node.put("errorRate", endpoint.getErrors().getOneMinuteRate());
+            node.put("latency", toMap(endpoint.getLatency()));
+            node.put("action", toMap(endpoint.getAction()));
+            node.put("serialization", toMap(endpoint.getSerialization()));
+            node.put("requestBytes", toMap(endpoint.getRequestBytes()));
+            node.put("responseBytes", toMap(endpoint.getResponseBytes()));
+            out.put(endpoint.getName(), node);
+        }
+
+        return out;
+    }
+
+    private static Map<String, Object> toMap(Timer timer) {
+        final Snapshot snapshot = timer.getSnapshot();
+        final Map<String, Object> out = new LinkedHashMap<>();
+        out.put("rate", timer.getOneMinuteRate());
+        out.put("mean", snapshot.getMean() / NS_PER_MS);
+        out.put("p50", snapshot.getMedian() / NS_PER_MS);
+        out.put("p99", snapshot.get99thPercentile() / NS_PER_MS);
+        out.put("p999", snapshot.get999thPercentile() / NS_PER_MS);
+        out.put("max", snapshot.getMax() / NS_PER_MS);
+        return out;
+    }
+
+    private static Map<String, Object> toMap(Histogram histogram) {
+        final Snapshot snapshot = histogram.getSnapshot();
+        final Map<String, Object> out = new LinkedHashMap<>();
+        out.put("mean", snapshot.getMean());
+        out.put("p50", snapshot.getMedian());
+        out.put("p99", snapshot.get99thPercentile());
+        out.put("max", snapshot.getMax());
+        return out;
+    }
+}
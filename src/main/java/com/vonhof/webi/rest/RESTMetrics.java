@@ -0,0 +1,220 @@
+package com.vonhof.webi.rest;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.vonhof.babelshark.reflect.ClassInfo;
+import com.vonhof.babelshark.reflect.MethodInfo;
+import org.eclipse.jetty.server.Request;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per controller method metrics: total latency, action and serialization time, request and response sizes,
+ * requests in flight and errors. Metrics are registered as webi.rest.[controller].[method].*
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class RESTMetrics {
+    private final MetricRegistry registry;
+
+    private final ConcurrentMap<MethodInfo, Endpoint> byMethod = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Endpoint> byName = new ConcurrentHashMap<>();
+
+    public RESTMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    public RESTMetrics() {
+        this(new MetricRegistry());
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Get metrics for controller method - registers them if they don't exist.
+     * @param controller
+     * @param method
+     * @return
+     */
+    public Endpoint getEndpoint(ClassInfo<?> controller, MethodInfo method) {
+        Endpoint endpoint = byMethod.get(method);
+        if (endpoint != null) {
+            return endpoint;
+        }
+
+        //Overloaded methods (e.g. GET and POST variants) share metrics
+        final String name = MetricRegistry.name("webi.rest", controllerName(controller.getType()), method.getName());
+        endpoint = byName.get(name);
+        if (endpoint == null) {
+            endpoint = new Endpoint(name);
+            Endpoint existing = byName.putIfAbsent(name, endpoint);
+            if (existing != null) {
+                endpoint = existing;
+            }
+        }
+        byMethod.put(method, endpoint);
+        return endpoint;
+    }
+
+    public Collection<Endpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(new ArrayList<>(byName.values()));
+    }
+
+    /**
+     * Start measuring a request
+     * @return
+     */
+    public Sample start() {
+        return new Sample();
+    }
+
+    private static String controllerName(Class<?> type) {
+        //Strip proxy suffixes
+        final String name = type.getSimpleName();
+        final int proxySuffix = name.indexOf("$$");
+        return proxySuffix > 0 ? name.substring(0, proxySuffix) : name;
+    }
+
+    /**
+     * Metrics of a single controller method. Times are recorded in nanoseconds.
+     */
+    public final class Endpoint {
+        private final String name;
+        private final Timer latency;
+        private final Timer action;
+        private final Timer serialization;
+        private final Histogram requestBytes;
+        private final Histogram responseBytes;
+        private final Counter inFlight;
+        private final Meter errors;
+
+        private Endpoint(String name) {
+            this.name = name;
+            this.latency = registry.timer(MetricRegistry.name(name, "latency"));
+            this.action = registry.timer(MetricRegistry.name(name, "action"));
+            this.serialization = registry.timer(MetricRegistry.name(name, "serialization"));
+            this.requestBytes = registry.histogram(MetricRegistry.name(name, "request-bytes"));
+            this.responseBytes = registry.histogram(MetricRegistry.name(name, "response-bytes"));
+            this.inFlight = registry.counter(MetricRegistry.name(name, "in-flight"));
+            this.errors = registry.meter(MetricRegistry.name(name, "errors"));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Time from the request reaching the REST handler until the response has been written
+         */
+        public Timer getLatency() {
+            return latency;
+        }
+
+        /**
+         * Time spent invoking the controller method and its before and after request handlers
+         */
+        public Timer getAction() {
+            return action;
+        }
+
+        /**
+         * Time spent writing the result
+         */
+        public Timer getSerialization() {
+            return serialization;
+        }
+
+        public Histogram getRequestBytes() {
+            return requestBytes;
+        }
+
+        public Histogram getResponseBytes() {
+            return responseBytes;
+        }
+
+        public Counter getInFlight() {
+            return inFlight;
+        }
+
+        public Meter getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Measurements of a single request. The endpoint is unknown until the controller method has been resolved -
+     * requests that never resolve one are not recorded.
+     */
+    public final class Sample {
+        private final long startTime = System.nanoTime();
+        private Endpoint endpoint;
+        private long serializationStart;
+        private boolean failed;
+        private boolean finished;
+
+        private Sample() {
+
+        }
+
+        void begin(ClassInfo<?> controller, MethodInfo method) {
+            endpoint = getEndpoint(controller, method);
+            endpoint.inFlight.inc();
+        }
+
+        void actionDone(boolean success) {
+            if (endpoint == null) {
+                return;
+            }
+            endpoint.action.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            if (!success) {
+                failed = true;
+            }
+        }
+
+        void serializationStarted() {
+            serializationStart = System.nanoTime();
+        }
+
+        void serializationDone() {
+            if (endpoint == null || serializationStart == 0) {
+                return;
+            }
+            endpoint.serialization.update(System.nanoTime() - serializationStart, TimeUnit.NANOSECONDS);
+        }
+
+        void failed() {
+            failed = true;
+        }
+
+        void finish(HttpServletRequest request) {
+            if (endpoint == null || finished) {
+                return;
+            }
+            finished = true;
+
+            endpoint.inFlight.dec();
+            endpoint.latency.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            if (failed) {
+                endpoint.errors.mark();
+            }
+
+            if (request instanceof Request) {
+                final Request baseRequest = (Request) request;
+                endpoint.requestBytes.update(baseRequest.getHttpInput().getContentRead());
+                endpoint.responseBytes.update(baseRequest.getResponse().getHttpOutput().getWritten());
+            } else if (request.getContentLength() > -1) {
+                endpoint.requestBytes.update(request.getContentLength());
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.vonhof.webi.rest;
 
+import com.codahale.metrics.MetricRegistry;
 import com.vonhof.babelshark.*;
 import com.vonhof.babelshark.annotation.Ignore;
 import com.vonhof.babelshark.exception.MappingException;
@@ -18,6 +19,7 @@ import com.vonhof.webi.annotation.Parm;
 import com.vonhof.webi.bean.AfterAdd;
 import com.vonhof.webi.bean.AfterInit;
 import com.vonhof.webi.bean.BeanContext;
+import com.vonhof.webi.bean.RequestScope;
 import com.vonhof.webi.session.WebiSession;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,10 +27,24 @@ import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import org.apache.commons.fileupload.FileItem;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * MVC request handling.
@@ -36,6 +52,8 @@ import org.apache.commons.fileupload.FileItem;
  */
 public class RESTServiceHandler implements RequestHandler, AfterAdd {
     public static final String DISABLE_METRICS = "DISABLE_METRICS";
+
+    private static final Logger log = LogManager.getLogger(RESTServiceHandler.class);
     
     @Inject
     protected Webi webi;
@@ -47,6 +65,20 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     protected RESTListener listener;
     protected ExceptionHandler exceptionHandler = new DefaultExceptionHandler();
     protected List<String> okOrigins = new ArrayList<String>();
+    protected int streamBufferSize = 8192;
+    protected long asyncTimeout = 30000;
+    private volatile ExecutorService asyncExecutor;
+    private volatile RESTMetrics metrics;
+    private volatile boolean metricsResolved = false;
+
+    /**
+     * Invocation plans per controller method - built when controllers are exposed
+     */
+    private final ConcurrentMap<MethodInfo, InvocationPlan> plans = new ConcurrentHashMap<>();
+    /**
+     * Before and after request handlers per controller type
+     */
+    private final ConcurrentMap<Class, InvocationPlan.Controller> controllerPlans = new ConcurrentHashMap<>();
 
     public RESTServiceHandler(UrlMapper urlMapper) {
         this.urlMapper = urlMapper;
@@ -66,14 +98,31 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     
     public void expose(Object obj) {
         urlMapper.expose(obj);
+        prepare(obj);
         maybeAddToWebi(obj);
     }
     
     public void expose(Object obj, String baseUrl) {
         urlMapper.expose(obj, baseUrl);
+        prepare(obj);
         maybeAddToWebi(obj);
     }
 
+    /**
+     * Build invocation plans for all mapped methods and the handlers of the controller
+     * @param obj
+     */
+    private void prepare(Object obj) {
+        getControllerPlan(obj);
+        for (Map<String, EnumMap<HttpMethod, MethodInfo>> ctrlActions : urlMapper.getMethods().values()) {
+            for (EnumMap<HttpMethod, MethodInfo> methods : ctrlActions.values()) {
+                for (MethodInfo method : methods.values()) {
+                    getPlan(method);
+                }
+            }
+        }
+    }
+
     private void maybeAddToWebi(Object obj) {
         if (webi == null) {
             return;
@@ -93,11 +142,69 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         this.listener = listener;
     }
 
+    /**
+     * Set per controller method metrics. Defaults to metrics registered in webi's metric registry - if it has one.
+     * @param metrics metrics or null to disable
+     */
+    public void setMetrics(RESTMetrics metrics) {
+        this.metrics = metrics;
+        this.metricsResolved = true;
+    }
+
+    public RESTMetrics getMetrics() {
+        if (!metricsResolved && webi != null) {
+            synchronized (this) {
+                if (!metricsResolved) {
+                    final MetricRegistry registry = webi.getMetricRegistry();
+                    if (registry != null) {
+                        metrics = new RESTMetrics(registry);
+                    }
+                    metricsResolved = true;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    /**
+     * Set the size of the buffer used when streaming iterators and result producers to the client.
+     * @param streamBufferSize
+     */
+    public void setStreamBufferSize(int streamBufferSize) {
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * Set how long (in ms) a request waits for a future returned by a controller method before failing with 503.
+     * @param asyncTimeout
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * Set the executor used to wait for futures that are not Deferred. By default such futures are waited for on
+     * the request thread. The executor should be bounded - when it rejects a future it is waited for on the
+     * request thread.
+     * @param asyncExecutor
+     */
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
     @Override
     public void handle(WebiContext ctxt) throws IOException, ServletException {
 
         if (ctxt.getRequest().getAttribute(DISABLE_METRICS) == null &&
-                ("true".equalsIgnoreCase(ctxt.getHeader("X-Metrics-Enable")) || ctxt.getRequest().getParameterMap().containsKey("__trace"))) {
+                ("true".equalsIgnoreCase(ctxt.getHeader("X-Metrics-Enable")) || ctxt.getParameterMap().contains("__trace"))) {
             ctxt.setLoadMetricsEnabled(true);
         }
         
@@ -124,48 +231,181 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
             requestLoadMetrics = ctxt.startCall(String.format("REST: %s %s", ctxt.getMethod(), ctxt.getRequest().getRequestURI()), null);
         }
 
+        final RESTMetrics metrics = getMetrics();
+        final RESTMetrics.Sample sample = metrics != null ? metrics.start() : null;
+
         try {
             //Invoke REST method
-            output = invokeAction(ctxt);
+            output = invokeAction(ctxt, sample);
         } catch (Throwable ex) {
             output = exceptionHandler.handle(ctxt,ex);
         } finally {
-            if (ctxt.getResponse().isCommitted() || ctxt.isHandled()) {
-                //Response is already send - exit
+            if (output instanceof Future
+                    && !ctxt.getResponse().isCommitted()
+                    && !ctxt.isHandled()) {
+                writeAsync(ctxt, (Future) output, requestLoadMetrics, sample);
                 return;
             }
-            
-            ctxt.setHeader("Content-type", ctxt.getResponseType());
-            
-            final Output out = new Output(ctxt.getOutputStream(),ctxt.getOutputType());
 
-            if (ctxt.isLoadMetricsEnabled()) {
-                if (requestLoadMetrics != null) {
-                    ctxt.endCall(requestLoadMetrics);
+            complete(ctxt, output, requestLoadMetrics, sample);
+        }
+    }
+
+    /**
+     * Write output and record metrics for the request
+     * @param ctxt
+     * @param output
+     * @param requestLoadMetrics
+     * @param sample
+     * @throws IOException
+     */
+    private void complete(WebiContext ctxt, Object output,
+                          WebiContext.RequestLoadMetricEntry requestLoadMetrics,
+                          RESTMetrics.Sample sample) throws IOException {
+        if (sample == null) {
+            writeOutput(ctxt, output, requestLoadMetrics, null);
+            return;
+        }
+
+        try {
+            writeOutput(ctxt, output, requestLoadMetrics, sample);
+        } catch (IOException | RuntimeException ex) {
+            sample.failed();
+            throw ex;
+        } finally {
+            sample.finish(ctxt.getRequest());
+        }
+    }
+
+    /**
+     * Write output to response
+     * @param ctxt
+     * @param output
+     * @param requestLoadMetrics
+     * @param sample request metrics - may be null
+     * @throws IOException
+     */
+    private void writeOutput(WebiContext ctxt, Object output,
+                             WebiContext.RequestLoadMetricEntry requestLoadMetrics,
+                             RESTMetrics.Sample sample) throws IOException {
+        if (ctxt.getResponse().isCommitted() || ctxt.isHandled()) {
+            //Response is already send - exit
+            return;
+        }
+        
+        ctxt.setHeader("Content-type", ctxt.getResponseType());
+        
+        if (sample != null) {
+            sample.serializationStarted();
+        }
+
+        if (StreamingResultWriter.isStreamable(output)) {
+            if (StreamingResultWriter.canStream(ctxt.getOutputType())) {
+                try {
+                    writeStreamed(ctxt, output, requestLoadMetrics);
+                } finally {
+                    if (sample != null) {
+                        sample.serializationDone();
+                    }
                 }
+                return;
+            }
 
-                ctxt.setHeader("X-Wrapped-Metric", "true");
-                output = new LoadMetricWrappedOutput(output, ctxt.getLoadMetricEntries());
+            try {
+                output = StreamingResultWriter.toList(output);
+            } catch (Exception ex) {
+                output = exceptionHandler.handle(ctxt, ex);
+            }
+        }
+
+        final Output out = new Output(ctxt.getOutputStream(),ctxt.getOutputType());
+
+        if (ctxt.isLoadMetricsEnabled()) {
+            if (requestLoadMetrics != null) {
+                ctxt.endCall(requestLoadMetrics);
+            }
+
+            ctxt.setHeader("X-Wrapped-Metric", "true");
+            output = new LoadMetricWrappedOutput(output, ctxt.getLoadMetricEntries());
+        }
+        
+        try {
+            bs.write(out,output);
+        } catch (MappingException ex) {
+            throw new IOException(ex);
+        }
+        
+        ctxt.flushBuffer();
+
+        if (sample != null) {
+            sample.serializationDone();
+        }
+    }
+
+    /**
+     * Complete request asynchronously when the future is done. For Deferred results the request thread (and its
+     * slot in webi's request limit) is released while the result is pending - other futures are waited for on the
+     * request thread or on the async executor if one is set.
+     * @param ctxt
+     * @param future
+     * @param requestLoadMetrics
+     * @param sample
+     */
+    private void writeAsync(final WebiContext ctxt, final Future<?> future,
+                            final WebiContext.RequestLoadMetricEntry requestLoadMetrics,
+                            final RESTMetrics.Sample sample) {
+        final AsyncContext asyncContext = ctxt.getRequest().startAsync();
+        asyncContext.setTimeout(asyncTimeout);
+
+        final AsyncCompletion completion = new AsyncCompletion(ctxt, asyncContext, future, requestLoadMetrics, sample);
+        asyncContext.addListener(completion);
+
+        if (future instanceof Deferred) {
+            ((Deferred<Object>) future).addListener(completion);
+        } else {
+            final ExecutorService executor = asyncExecutor;
+            if (executor == null || future.isDone()) {
+                completion.run();
+                return;
             }
-            
             try {
-                bs.write(out,output);
-            } catch (MappingException ex) {
-                throw new IOException(ex);
+                executor.execute(completion);
+            } catch (RejectedExecutionException ex) {
+                completion.run();
             }
-            
-            ctxt.flushBuffer();
         }
     }
 
 
+    /**
+     * Write streamable output to the client one element at a time
+     * @param ctxt
+     * @param output
+     * @param requestLoadMetrics
+     * @throws IOException
+     */
+    private void writeStreamed(WebiContext ctxt, Object output,
+                               WebiContext.RequestLoadMetricEntry requestLoadMetrics) throws IOException {
+        final StreamingResultWriter writer = new StreamingResultWriter(bs, ctxt, streamBufferSize);
+
+        if (ctxt.isLoadMetricsEnabled()) {
+            ctxt.setHeader("X-Wrapped-Metric", "true");
+            writer.writeWrapped(output, ctxt, requestLoadMetrics);
+        } else {
+            writer.write(output);
+        }
+
+        ctxt.flushBuffer();
+    }
+
     /**
      * Invoke action based on path and http method
      * @param req
+     * @param sample request metrics - may be null
      * @return
      * @throws HttpException 
      */
-    private Object invokeAction(WebiContext req) throws HttpException {
+    private Object invokeAction(WebiContext req, RESTMetrics.Sample sample) throws HttpException {
         String path = req.getPath();
         if (!path.isEmpty())
             path = path.substring(1);
@@ -181,18 +421,12 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
                 throw new HttpException(HttpException.NOT_FOUND, "Not found");
             }
 
-            final ClassInfo<?> info = ClassInfo.from(obj.getClass());
-            targetClass = info;
+            final InvocationPlan.Controller controllerPlan = getControllerPlan(obj);
+            targetClass = controllerPlan.getClassInfo();
 
-                    //Get handlers
-            List<MethodInfo> handlers = info.getMethodsByAnnotation(Handler.class);
-            
             //Invoke before request handlers
-            for(MethodInfo handler:handlers) {
-                Handler annotation = handler.getAnnotation(Handler.class);
-                if (annotation.value().equals(Handler.Type.BEFORE_REQUEST)) {
-                    invoke(obj, handler, req);
-                }
+            for(InvocationPlan handler:controllerPlan.getBeforeRequest()) {
+                invoke(obj, handler, req);
             }
             
             //Get method
@@ -202,16 +436,16 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
             }
 
             targetMethod = method;
+            if (sample != null) {
+                sample.begin(targetClass, method);
+            }
 
             //Invoke controller method
-            Object output =  invoke(obj, method, req);
+            Object output =  invoke(obj, getPlan(method), req);
             
             //Invoke after request handlers
-            for(MethodInfo handler:handlers) {
-                Handler annotation = handler.getAnnotation(Handler.class);
-                if (annotation.value().equals(Handler.Type.AFTER_REQUEST)) {
-                    invoke(obj, handler, req);
-                }
+            for(InvocationPlan handler:controllerPlan.getAfterRequest()) {
+                invoke(obj, handler, req);
             }
 
             success = true;
@@ -226,6 +460,9 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         } catch (Exception ex) {
             throw new HttpException(HttpException.INTERNAL_ERROR, ex);
         } finally {
+            if (sample != null) {
+                sample.actionDone(success);
+            }
             emitExecutionResult(
                     System.currentTimeMillis() - startTime,
                     targetClass,
@@ -256,51 +493,123 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         ctxt.setResponseType(bs.getMimeType(format,true));
     }
     
-    private Object invoke(Object obj,MethodInfo method,WebiContext req) throws Exception {
+    private Object invoke(Object obj,InvocationPlan plan,WebiContext req) throws Exception {
         //Resolve method argumetns from request
-        final Object[] callParms = getMethodArguments(req,method);
+        final Object[] callParms = getMethodArguments(req,plan);
 
         //Invoke method
-        Object output = method.invoke(obj, callParms);
+        Object output = plan.invoke(obj, callParms);
 
         //Refine value before outputting
-        return refineValue(output,method.getReturnType());
+        return plan.refineResult(output);
     }
 
     /**
-     * Converts HTTP request into a suitable argument list for the specified list of parameters 
-     * @param req
+     * Get invocation plan for controller method - builds it if it doesn't exist.
      * @param method
      * @return
-     * @throws Exception 
      */
-    private Object[] getMethodArguments(WebiContext req,MethodInfo method) throws Exception {
+    private InvocationPlan getPlan(MethodInfo method) {
+        InvocationPlan plan = plans.get(method);
+        if (plan == null) {
+            plan = createPlan(method);
+            InvocationPlan existing = plans.putIfAbsent(method, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Get before and after request handlers for controller - builds them if they don't exist.
+     * @param obj
+     * @return
+     */
+    private InvocationPlan.Controller getControllerPlan(Object obj) {
+        final Class<?> type = obj.getClass();
+        InvocationPlan.Controller plan = controllerPlans.get(type);
+        if (plan == null) {
+            final ClassInfo<?> info = ClassInfo.from(type);
+            List<InvocationPlan> before = new ArrayList<>();
+            List<InvocationPlan> after = new ArrayList<>();
+            for(MethodInfo handler:info.getMethodsByAnnotation(Handler.class)) {
+                Handler annotation = handler.getAnnotation(Handler.class);
+                if (annotation.value().equals(Handler.Type.BEFORE_REQUEST)) {
+                    before.add(getPlan(handler));
+                } else if (annotation.value().equals(Handler.Type.AFTER_REQUEST)) {
+                    after.add(getPlan(handler));
+                }
+            }
+
+            plan = new InvocationPlan.Controller(info,
+                    before.toArray(new InvocationPlan[before.size()]),
+                    after.toArray(new InvocationPlan[after.size()]));
+
+            InvocationPlan.Controller existing = controllerPlans.putIfAbsent(type, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    private InvocationPlan createPlan(MethodInfo method) {
         List<Parameter> parms = new ArrayList<Parameter>(method.getParameters().values());
-        final Object[] out = new Object[parms.size()];
-        
-        Map<Integer,Parameter> bodyParms = new HashMap<Integer,Parameter>();
+        final InvocationPlan.ArgumentResolver[] resolvers = new InvocationPlan.ArgumentResolver[parms.size()];
+        final List<Integer> bodyIndexes = new ArrayList<>();
+
         for (int i = 0; i < parms.size(); i++) {
-            if (parms.get(i).hasAnnotation(Body.class)) {
-                bodyParms.put(i,parms.get(i));
+            Parameter p = parms.get(i);
+            if (p.hasAnnotation(Body.class)) {
+                //Is handled separately while there could be more than 1
+                bodyIndexes.add(i);
+                resolvers[i] = NULL_RESOLVER;
             } else {
-                out[i] = getMethodArgument(req, parms.get(i));
+                resolvers[i] = createResolver(p);
             }
         }
-        if (!bodyParms.isEmpty()) {
+
+        int[] bodyIx = new int[bodyIndexes.size()];
+        Parameter[] bodyParms = new Parameter[bodyIndexes.size()];
+        for (int i = 0; i < bodyIx.length; i++) {
+            bodyIx[i] = bodyIndexes.get(i);
+            bodyParms[i] = parms.get(bodyIx[i]);
+        }
+
+        return new InvocationPlan(method, resolvers, bodyIx, bodyParms, refineValue(null, method.getReturnType()));
+    }
+
+    /**
+     * Converts HTTP request into a suitable argument list for the specified plan
+     * @param req
+     * @param plan
+     * @return
+     * @throws Exception 
+     */
+    private Object[] getMethodArguments(WebiContext req,InvocationPlan plan) throws Exception {
+        final InvocationPlan.ArgumentResolver[] resolvers = plan.getResolvers();
+        final Object[] out = new Object[resolvers.length];
+        
+        for (int i = 0; i < resolvers.length; i++) {
+            out[i] = resolvers[i].resolve(req);
+        }
+
+        final int[] bodyIndexes = plan.getBodyIndexes();
+        if (bodyIndexes.length > 0) {
+            final Parameter[] bodyParms = plan.getBodyParameters();
             SharkNode body = readBody(req);
             try {
-                if (bodyParms.size() == 1) {
-                    Entry<Integer, Parameter> entry = bodyParms.entrySet().iterator().next();
-                    out[entry.getKey()] = body != null ? bs.read(body, entry.getValue().getClassInfo()) : null;
+                if (bodyIndexes.length == 1) {
+                    out[bodyIndexes[0]] = body != null ? bs.read(body, bodyParms[0].getClassInfo()) : null;
                 } else if (body.is(NodeType.MAP)) {
                     ObjectNode obj = (ObjectNode) body;
-                    for (Entry<Integer, Parameter> entry : bodyParms.entrySet()) {
-                        final String name = entry.getValue().getName();
-                        SharkNode val = obj.get(name);
+                    for (int i = 0; i < bodyIndexes.length; i++) {
+                        SharkNode val = obj.get(bodyParms[i].getName());
                         if (val == null) {
-                            out[entry.getKey()] = null;
+                            out[bodyIndexes[i]] = null;
                         } else {
-                            out[entry.getKey()] = bs.read(val, entry.getValue().getClassInfo());
+                            out[bodyIndexes[i]] = bs.read(val, bodyParms[i].getClassInfo());
                         }
                     }
                 }
@@ -312,99 +621,130 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
     }
     
     /**
-     * Converts HTTP request into the specified method argument (Parameter) (From headers, GET parms etc.)
-     * @param req
+     * Creates a resolver that converts HTTP request into the specified method argument (Parameter)
+     * (From headers, GET parms etc.)
      * @param p
      * @return
-     * @throws Exception 
      */
-    private Object getMethodArgument(WebiContext req,Parameter p) throws Exception {
+    private InvocationPlan.ArgumentResolver createResolver(final Parameter p) {
         if (p.hasAnnotation(Ignore.class)) {
-            return null;
+            return NULL_RESOLVER;
         }
         final Parm parmAnno = p.getAnnotation(Parm.class);
         final Parm.Type parmType = parmAnno != null ? parmAnno.type() : Parm.Type.AUTO;
         final String[] defaultValue = parmAnno != null ? parmAnno.defaultValue() : new String[0];
         final boolean required  = parmAnno != null ? parmAnno.required() : false; 
 
-        Object value = null;
-        String name = p.getName();
+        final String name = p.getName();
+        final Class type = p.getType();
         
         switch (parmType) {
             case PATH:
-                break;
+                return new ParameterResolver(p, required) {
+                    @Override
+                    protected Object resolveValue(WebiContext req) {
+                        return null;
+                    }
+                };
             case HEADER:
-                String headerValue = req.getHeader(name);
-                if (ReflectUtils.isSimple(p.getType())) {
-                    value = ConvertUtils.convert(headerValue, p.getType());
-                } else {
-                    value = headerValue;
-                }
-                break;
+                final boolean simple = ReflectUtils.isSimple(type);
+                return new ParameterResolver(p, required) {
+                    @Override
+                    protected Object resolveValue(WebiContext req) throws Exception {
+                        String headerValue = req.getHeader(name);
+                        return simple ? ConvertUtils.convert(headerValue, type) : headerValue;
+                    }
+                };
             case INJECT:
-                value = webi.getBean(p.getType());
-                break;
+                return new ParameterResolver(p, required) {
+                    @Override
+                    protected Object resolveValue(WebiContext req) {
+                        return webi.getBean(type);
+                    }
+                };
             case SESSION:
-                value = req.getSession().get(name);
-                if (!ClassInfo.isAssignableFrom(value.getClass(), p.getType())) {
-                    value = req.getSession().get(p.getType().getName());
-                }
-                
-                break;
-            default:
-                if (p.hasAnnotation(Body.class)) {
-                    //Is handled outside this method while there could be more than 1
-                    return null;
-                }
-                if (ClassInfo.inherits(p.getType(), InputStream.class)) {
-                    value = req.getInputStream();
-                    break;
+                return new ParameterResolver(p, required) {
+                    @Override
+                    protected Object resolveValue(WebiContext req) {
+                        Object value = req.getSession().get(name);
+                        if (!ClassInfo.isAssignableFrom(value.getClass(), type)) {
+                            value = req.getSession().get(type.getName());
+                        }
+                        return value;
+                    }
+                };
+        }
+
+        if (ClassInfo.inherits(type, InputStream.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) throws IOException {
+                    return req.getInputStream();
                 }
-                if (ClassInfo.inherits(p.getType(), OutputStream.class)) {
-                    value = req.getOutputStream();
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, OutputStream.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) throws IOException {
+                    return req.getOutputStream();
                 }
-                if (ClassInfo.inherits(p.getType(), WebiContext.class)) {
-                    value = req;
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, WebiContext.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) {
+                    return req;
                 }
-                
-                if (ClassInfo.inherits(p.getType(), FileItem.class)) {
-                    value = req.getUpload(name);
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, FileItem.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) throws Exception {
+                    return req.getUpload(name);
                 }
-                
-                if (ClassInfo.inherits(p.getType(), TextFile.class)) {
-                    value = new TextFile(req.getUpload(name));
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, TextFile.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) throws Exception {
+                    return new TextFile(req.getUpload(name));
                 }
-                
-                if (ClassInfo.inherits(p.getType(), WebiSession.class)) {
-                    value = req.getSession();
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, WebiSession.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) {
+                    return req.getSession();
                 }
-                
-                if (ClassInfo.inherits(p.getType(), ParmMap.class)) {
-                    value = req.getParameterMap();
-                    break;
+            };
+        }
+        if (ClassInfo.inherits(type, ParmMap.class)) {
+            return new ParameterResolver(p, required) {
+                @Override
+                protected Object resolveValue(WebiContext req) {
+                    return req.getParameterMap();
                 }
+            };
+        }
 
+        return new ParameterResolver(p, required) {
+            @Override
+            protected Object resolveValue(WebiContext req) throws Exception {
                 String[] values = req.getParameterMap().getAll(name);
                 if (values == null) {
                     values = defaultValue;
                 }
 
-                value = readGETParm(p, values);
-                break;
-        }
-        
-        value = refineValue(value,p.getType());
-        
-        if (required && isMissing(value))
-            throw new HttpException(HttpException.BAD_REQUEST,"Bad request - missing required parameter: "+p.getName());
-        
-        return value;
+                return readGETParm(p, values);
+            }
+        };
     }
+
     /**
      * Refine output value
      * @param value
@@ -479,6 +819,46 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         return ConvertUtils.convertCollection(p.getClassInfo(),values);
     }
 
+    /**
+     * Resolves arguments that are always null - ignored parameters and body parameters (which are handled separately)
+     */
+    private static final InvocationPlan.ArgumentResolver NULL_RESOLVER = new InvocationPlan.ArgumentResolver() {
+        @Override
+        public Object resolve(WebiContext req) {
+            return null;
+        }
+    };
+
+    /**
+     * Base resolver for method parameters. Refines the value and checks if required parameters are missing.
+     */
+    private abstract class ParameterResolver implements InvocationPlan.ArgumentResolver {
+        private final String name;
+        private final boolean required;
+        private final Object emptyValue;
+
+        protected ParameterResolver(Parameter p, boolean required) {
+            this.name = p.getName();
+            this.required = required;
+            this.emptyValue = refineValue(null, p.getType());
+        }
+
+        protected abstract Object resolveValue(WebiContext req) throws Exception;
+
+        @Override
+        public final Object resolve(WebiContext req) throws Exception {
+            Object value = resolveValue(req);
+            if (value == null) {
+                value = emptyValue;
+            }
+
+            if (required && isMissing(value))
+                throw new HttpException(HttpException.BAD_REQUEST,"Bad request - missing required parameter: "+name);
+
+            return value;
+        }
+    }
+
     @Override
     public void afterAdd(BeanContext context) {
         context.add(UrlMapper.class, urlMapper);
@@ -487,6 +867,109 @@ public class RESTServiceHandler implements RequestHandler, AfterAdd {
         }
     }
 
+    /**
+     * Writes the result of a future to the client and completes the async request. Only the first of completion
+     * and timeout is handled.
+     */
+    private class AsyncCompletion implements AsyncListener, Deferred.Listener<Object>, Runnable {
+        private final WebiContext ctxt;
+        private final AsyncContext asyncContext;
+        private final Future<?> future;
+        private final WebiContext.RequestLoadMetricEntry requestLoadMetrics;
+        private final RESTMetrics.Sample sample;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private AsyncCompletion(WebiContext ctxt, AsyncContext asyncContext, Future<?> future,
+                                WebiContext.RequestLoadMetricEntry requestLoadMetrics,
+                                RESTMetrics.Sample sample) {
+            this.ctxt = ctxt;
+            this.asyncContext = asyncContext;
+            this.future = future;
+            this.requestLoadMetrics = requestLoadMetrics;
+            this.sample = sample;
+        }
+
+        /**
+         * Waits for futures that can not notify when they are done
+         */
+        @Override
+        public void run() {
+            try {
+                onComplete(future.get(asyncTimeout, TimeUnit.MILLISECONDS), null);
+            } catch (ExecutionException ex) {
+                onComplete(null, ex.getCause());
+            } catch (TimeoutException ex) {
+                timeout();
+            } catch (InterruptedException | CancellationException ex) {
+                onComplete(null, ex);
+            }
+        }
+
+        @Override
+        public void onComplete(Object result, Throwable error) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            finish(result, error);
+        }
+
+        private void finish(Object result, Throwable error) {
+            final RequestScope scope = ctxt.getRequestScope();
+            final RequestScope.Binding binding = scope != null ? scope.enter() : null;
+            try {
+                Object output = result;
+                if (error != null) {
+                    if (sample != null) {
+                        sample.failed();
+                    }
+                    output = exceptionHandler.handle(ctxt, error instanceof HttpException
+                            ? error
+                            : new HttpException(HttpException.INTERNAL_ERROR, error));
+                }
+                complete(ctxt, output, requestLoadMetrics, sample);
+            } catch (Throwable ex) {
+                log.error("Failed while writing async result", ex);
+            } finally {
+                if (binding != null) {
+                    binding.close();
+                }
+                asyncContext.complete();
+            }
+        }
+
+        private void timeout() {
+            //Claim the response before cancelling - cancelling a Deferred completes it with a CancellationException
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            finish(null, new HttpException(HttpException.SERVICE_UNAVAILABLE, "Timed out waiting for result"));
+            future.cancel(true);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            timeout();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {}
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            future.cancel(true);
+            if (sample != null) {
+                sample.failed();
+                sample.finish(ctxt.getRequest());
+            }
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {}
+    }
+
     public static class LoadMetricWrappedOutput {
         private final Object output;
 
@@ -0,0 +1,27 @@
+package com.vonhof.webi.rest;
+
+import java.io.IOException;
+
+/**
+ * Return from controller methods to push results to the client one at a time. Results are serialized and written
+ * to the response as they are produced - so the full result never has to be held in memory.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface ResultProducer<T> {
+
+    /**
+     * Produce results - is called after the controller method has returned.
+     * @param consumer
+     * @throws Exception
+     */
+    void produce(Consumer<T> consumer) throws Exception;
+
+    interface Consumer<T> {
+        /**
+         * Write a single result to the client
+         * @param result
+         * @throws IOException
+         */
+        void write(T result) throws IOException;
+    }
+}
@@ -0,0 +1,168 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.babelshark.BabelSharkInstance;
+import com.vonhof.babelshark.Output;
+import com.vonhof.babelshark.exception.MappingException;
+import com.vonhof.webi.WebiContext;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes streamable results (iterators, iterables that are not collections and result producers) to the response
+ * as a JSON array - one element at a time. No content length is set so the response is sent using chunked
+ * transfer encoding, and only the output buffer is held in memory.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class StreamingResultWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BabelSharkInstance bs;
+    private final String outputType;
+    private final OutputStream out;
+    private final OutputStream elementOut;
+
+    StreamingResultWriter(BabelSharkInstance bs, WebiContext ctxt, int bufferSize) throws IOException {
+        this.bs = bs;
+        this.outputType = ctxt.getOutputType();
+        this.out = new BufferedOutputStream(ctxt.getOutputStream(), bufferSize);
+        this.elementOut = new CloseShieldOutputStream(out);
+    }
+
+    /**
+     * Determine if output should be streamed
+     * @param output
+     * @return
+     */
+    static boolean isStreamable(Object output) {
+        return output instanceof Iterator
+                || output instanceof ResultProducer
+                || (output instanceof Iterable && !(output instanceof Collection));
+    }
+
+    /**
+     * Only JSON can be written incrementally - other output types will be buffered
+     * @param outputType
+     * @return
+     */
+    static boolean canStream(String outputType) {
+        return outputType != null && outputType.toLowerCase().contains("json");
+    }
+
+    /**
+     * Read streamable output into a list - used for output types that can not be written incrementally
+     * @param output
+     * @return
+     * @throws Exception
+     */
+    static List<Object> toList(Object output) throws Exception {
+        final List<Object> out = new ArrayList<>();
+        drain(output, new ResultProducer.Consumer<Object>() {
+            @Override
+            public void write(Object result) {
+                out.add(result);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Write output as array
+     * @param output
+     * @throws IOException
+     */
+    void write(Object output) throws IOException {
+        writeArray(output);
+        out.flush();
+    }
+
+    /**
+     * Write output and metrics using same format as RESTServiceHandler.LoadMetricWrappedOutput. The request call
+     * is ended after the output has been written - so it includes the time spent streaming.
+     * @param output
+     * @param ctxt
+     * @param requestCall
+     * @throws IOException
+     */
+    void writeWrapped(Object output, WebiContext ctxt, WebiContext.RequestLoadMetricEntry requestCall) throws IOException {
+        writeRaw("{\"output\":");
+        try {
+            writeArray(output);
+        } finally {
+            if (requestCall != null) {
+                ctxt.endCall(requestCall);
+            }
+        }
+        writeRaw(",\"metrics\":");
+        writeElement(ctxt.getLoadMetricEntries());
+        writeRaw("}");
+        out.flush();
+    }
+
+    private void writeArray(Object output) throws IOException {
+        writeRaw("[");
+        try {
+            drain(output, new ResultProducer.Consumer<Object>() {
+                private boolean first = true;
+
+                @Override
+                public void write(Object result) throws IOException {
+                    if (!first) {
+                        writeRaw(",");
+                    }
+                    first = false;
+                    writeElement(result);
+                }
+            });
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            //Response is already committed at this point - so nothing to do but abort
+            throw new IOException("Failed while producing streamed output", ex);
+        }
+        writeRaw("]");
+    }
+
+    private void writeElement(Object element) throws IOException {
+        try {
+            bs.write(new Output(elementOut, outputType), element);
+        } catch (MappingException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private void writeRaw(String raw) throws IOException {
+        out.write(raw.getBytes(UTF8));
+    }
+
+    private static void drain(Object output, ResultProducer.Consumer<Object> consumer) throws Exception {
+        try {
+            if (output instanceof ResultProducer) {
+                ((ResultProducer<Object>) output).produce(consumer);
+                return;
+            }
+
+            Iterator<?> it = output instanceof Iterator ? (Iterator<?>) output : ((Iterable<?>) output).iterator();
+            try {
+                while (it.hasNext()) {
+                    consumer.write(it.next());
+                }
+            } finally {
+                if (it != output && it instanceof AutoCloseable) {
+                    ((AutoCloseable) it).close();
+                }
+            }
+        } finally {
+            if (output instanceof AutoCloseable) {
+                ((AutoCloseable) output).close();
+            }
+        }
+    }
+}
@@ -1,49 +1,80 @@
 package com.vonhof.webi.security;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.vonhof.webi.Filter;
+import com.vonhof.webi.Webi;
 import com.vonhof.webi.WebiContext;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.logging.log4j.LogManager;
 
 /**
+ * Basic auth filter. Passwords are stored as salted PBKDF2 hashes - verified Authorization headers are cached (by
+ * their SHA-256 digest) for a while so the hash is only computed on cache misses.
+ *
+ * Counts cache hits, misses and failed attempts in webi's metric registry as webi.auth.[realm].*
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
 public class BasicAuthFilter implements Filter {
-    
-    private Map<String,String> users = new HashMap<String, String>();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Verified against when the user is unknown - so unknown users take as long as wrong passwords
+     */
+    private static final String UNKNOWN_USER_HASH = PasswordHash.hash("");
+
+    @Inject
+    private Webi webi;
+
+    private final Map<String,String> users = new ConcurrentHashMap<String, String>();
+    private final LinkedHashMap<String, CachedAuth> cache = new LinkedHashMap<String, CachedAuth>(64, 0.75f, true);
+    /**
+     * Incremented when the cache is cleared - guarded by the cache
+     */
+    private long cacheGeneration = 0;
     private String realm = "Protected area";
+    private int maxCacheSize = 10000;
+    private long cacheTtl = 300000;
+
+    private volatile boolean metricsResolved = false;
+    private volatile Meter hits = new Meter();
+    private volatile Meter misses = new Meter();
+    private volatile Meter failures = new Meter();
 
     public BasicAuthFilter(String realm) {
         this.realm = realm;
     }
-    
+
     public BasicAuthFilter(String realm,String username,String password) {
         this.realm = realm;
         this.addUser(username, password);
     }
 
     public BasicAuthFilter() {
-        
+
     }
-    
 
-    
-    
-    
     @Override
     public boolean apply(WebiContext ctxt) {
+        resolveMetrics();
+
         String authHeader = ctxt.getHeader("Authorization");
-        if (authHeader != null 
+        if (authHeader != null
                 && !authHeader.isEmpty()
-                && authHeader.trim().startsWith("Basic ")) {
-            String authBase64 = authHeader.substring(6);
-            String[] userPw = new String(Base64.decodeBase64(authBase64)).split(":",2);
-            if (userPw[1].equals(users.get(userPw[0])))
-                return true;
+                && authHeader.trim().startsWith("Basic ")
+                && authenticate(authHeader.trim())) {
+            return true;
         }
         try {
             ctxt.setHeader("WWW-Authenticate", String.format("Basic realm=\"%s\"",realm));
@@ -51,12 +82,95 @@ public class BasicAuthFilter implements Filter {
         } catch (IOException ex) {
             LogManager.getLogger(BasicAuthFilter.class).fatal("Failed to send auth request", ex);
         }
-        
+
         return false;
     }
-    
+
+    /**
+     * Check Basic authorization header
+     * @param authHeader
+     * @return true if the header contains valid credentials
+     */
+    boolean authenticate(String authHeader) {
+        final String key = digest(authHeader);
+        final long now = System.currentTimeMillis();
+        final long generation;
+
+        synchronized (cache) {
+            final CachedAuth cached = cache.get(key);
+            if (cached != null && cached.expiresAt > now) {
+                hits.mark();
+                return true;
+            }
+            generation = cacheGeneration;
+        }
+        misses.mark();
+
+        final String[] userPw = new String(Base64.decodeBase64(authHeader.substring(6).trim()), UTF8).split(":", 2);
+        final String hash = users.get(userPw[0]);
+        final String password = userPw.length > 1 ? userPw[1] : "";
+        if (!PasswordHash.verify(password, hash != null ? hash : UNKNOWN_USER_HASH) || hash == null) {
+            failures.mark();
+            return false;
+        }
+
+        synchronized (cache) {
+            if (generation != cacheGeneration) {
+                //Users changed while verifying - the result may be for credentials that are no longer valid
+                return true;
+            }
+            cache.put(key, new CachedAuth(now + cacheTtl));
+            final Iterator<CachedAuth> it = cache.values().iterator();
+            while (cache.size() > maxCacheSize && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add user - the password is hashed before it is stored
+     * @param username
+     * @param password
+     */
     public void addUser(String username,String password) {
-        users.put(username, password);
+        addUserHash(username, PasswordHash.hash(password));
+    }
+
+    /**
+     * Add user with a password hash created by {@link PasswordHash#hash(String)}
+     * @param username
+     * @param passwordHash
+     */
+    public void addUserHash(String username, String passwordHash) {
+        users.put(username, passwordHash);
+        clearCache();
+    }
+
+    public void removeUser(String username) {
+        users.remove(username);
+        clearCache();
+    }
+
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            cacheGeneration++;
+        }
+    }
+
+    /**
+     * Set how long (in ms) verified credentials are cached
+     * @param cacheTtl
+     */
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+        clearCache();
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
     }
 
     public String getRealm() {
@@ -66,4 +180,51 @@ public class BasicAuthFilter implements Filter {
     public void setRealm(String realm) {
         this.realm = realm;
     }
+
+    public Meter getHits() {
+        return hits;
+    }
+
+    public Meter getMisses() {
+        return misses;
+    }
+
+    public Meter getFailures() {
+        return failures;
+    }
+
+    private void resolveMetrics() {
+        if (metricsResolved) {
+            return;
+        }
+        synchronized (this) {
+            if (metricsResolved || webi == null) {
+                return;
+            }
+            final MetricRegistry registry = webi.getMetricRegistry();
+            if (registry != null) {
+                final String name = realm.replaceAll("[^A-Za-z0-9_-]+", "_");
+                hits = registry.meter(MetricRegistry.name("webi.auth", name, "hits"));
+                misses = registry.meter(MetricRegistry.name("webi.auth", name, "misses"));
+                failures = registry.meter(MetricRegistry.name("webi.auth", name, "failures"));
+            }
+            metricsResolved = true;
+        }
+    }
+
+    private static String digest(String authHeader) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(authHeader.getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static final class CachedAuth {
+        private final long expiresAt;
+
+        private CachedAuth(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
 }
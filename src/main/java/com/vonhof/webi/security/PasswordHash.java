@@ -0,0 +1,71 @@
+package com.vonhof.webi.security;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Salted PBKDF2 password hashes. Hashes are strings in the format pbkdf2:[iterations]:[salt]:[hash] - salt and hash
+ * are base64 encoded.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class PasswordHash {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String PREFIX = "pbkdf2";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    public static final int DEFAULT_ITERATIONS = 20000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHash() {
+
+    }
+
+    public static String hash(String password) {
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    public static String hash(String password, int iterations) {
+        final byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        final byte[] hash = pbkdf2(password, salt, iterations, HASH_BYTES);
+        return String.format("%s:%d:%s:%s", PREFIX, iterations,
+                Base64.encodeBase64String(salt), Base64.encodeBase64String(hash));
+    }
+
+    /**
+     * Check password against hash. The hashes are compared in constant time.
+     * @param password
+     * @param hash hash created by {@link #hash(String)}
+     * @return
+     */
+    public static boolean verify(String password, String hash) {
+        final String[] parts = hash.split(":");
+        if (parts.length != 4 || !PREFIX.equals(parts[0])) {
+            throw new IllegalArgumentException("Invalid password hash");
+        }
+
+        final int iterations = Integer.parseInt(parts[1]);
+        final byte[] salt = Base64.decodeBase64(parts[2]);
+        final byte[] expected = Base64.decodeBase64(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations, expected.length));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+        final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -2,29 +2,38 @@ package com.vonhof.webi.session;
 
 import com.vonhof.webi.WebiContext;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.SecureRandom;
 import javax.servlet.http.Cookie;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Base64;
 
 /**
  * Default implementation of a session handler. Uses cookies
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
-public class CookieSessionHandler<T extends WebiSession> implements SessionHandler {
-    private final Map<String, T> sessions = new HashMap<String, T>();
+public class CookieSessionHandler<T extends WebiSession> implements SessionHandler, Closeable {
+    private static final int DEFAULT_MAX_SESSIONS = 100000;
+    private static final int SESSION_KEY_BYTES = 32;
+
+    private final SecureRandom random = new SecureRandom();
 
     private final String cookieName;
     private final String basePath;
+    private final SessionStore<T> sessions;
     private int maxAge = 3600;
 
 
     public CookieSessionHandler(String basePath, String cookieName) {
+        this(basePath, cookieName, new SessionStore<T>(DEFAULT_MAX_SESSIONS));
+    }
+
+    public CookieSessionHandler(String basePath, String cookieName, SessionStore<T> sessions) {
         this.basePath = basePath;
         this.cookieName = cookieName;
+        this.sessions = sessions;
     }
 
     public int getMaxAge() {
@@ -44,6 +53,14 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
         return cookieName;
     }
 
+    /**
+     * Session store - e.g. to persist sessions to disk
+     * @return
+     */
+    public SessionStore<T> getStore() {
+        return sessions;
+    }
+
     @Override
     public T handle(WebiContext ctxt) {
         Cookie[] cookies = ctxt.getRequest().getCookies();
@@ -53,9 +70,9 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
             for (Cookie c : cookies) {
                 String name = c.getName();
                 if (name.equalsIgnoreCase(cookieName)) {
-                    cookieValue = c.getValue();
-                    T session = sessions.get(cookieValue);
+                    T session = sessions.get(c.getValue());
                     if (session != null) {
+                        cookieValue = c.getValue();
                         out = session;
                     }
 
@@ -64,11 +81,11 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
             }
         }
 
-        if (cookieValue == null) {
-            cookieValue = DigestUtils.md5Hex(new Date().toString());
-        }
         if (out == null) {
+            //Never reuse unknown keys from the client
+            cookieValue = newSessionKey();
             out = newSession(cookieValue);
+            out.setId(cookieValue);
             out.setMaxAge(maxAge);
             add(cookieValue, out);
         }
@@ -82,6 +99,12 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
         return out;
     }
 
+    protected String newSessionKey() {
+        final byte[] bytes = new byte[SESSION_KEY_BYTES];
+        random.nextBytes(bytes);
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
     public T newSession(String sessionKey) {
         return (T) new WebiSession();
     }
@@ -98,4 +121,12 @@ public class CookieSessionHandler<T extends WebiSession> implements SessionHandl
         sessions.remove(sessionKey);
     }
 
+    /**
+     * Stops expiring sessions and writes them to disk if the store is persisted
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        sessions.close();
+    }
 }
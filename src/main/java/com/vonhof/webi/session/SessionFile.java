@@ -0,0 +1,310 @@
+package com.vonhof.webi.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory mapped log of serialized sessions. Records are appended - the latest record of a session wins and a
+ * record without data removes the session. When the file is full - or mostly dead records - it is rewritten with
+ * only the live records. The live records are written to a new file which then replaces the log - so a crash while
+ * compacting never leaves a partially rewritten log.
+ *
+ * Record layout: [int length][long expiresAt][short id length][id][int data length][data]. A length of 0 marks the
+ * end of the log.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class SessionFile implements Closeable {
+    private static final Logger log = LogManager.getLogger(SessionFile.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 4 + 8 + 2 + 4;
+    /**
+     * Share of the log that must be dead records before it is compacted by {@link #writeAll}
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Position and expiry of live records by session id
+     */
+    private Map<String, Slot> index = new HashMap<>();
+
+    SessionFile(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        scan();
+    }
+
+    /**
+     * Rebuild index from the log
+     */
+    private void scan() {
+        final long now = System.currentTimeMillis();
+        buffer.position(0);
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+
+            final long expiresAt = buffer.getLong();
+            final byte[] id = new byte[buffer.getShort()];
+            buffer.get(id);
+            final int dataLength = buffer.getInt();
+            final String sessionId = new String(id, UTF8);
+
+            if (dataLength == 0 || expiresAt <= now) {
+                index.remove(sessionId);
+            } else {
+                index.put(sessionId, new Slot(buffer.position(), dataLength, expiresAt));
+            }
+            buffer.position(start + 4 + length);
+        }
+        markEnd(buffer);
+        log.debug("Loaded {} sessions from {}", index.size(), file);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Read serialized session
+     * @param id
+     * @param now
+     * @return record or null if the session is missing or expired
+     */
+    synchronized Record read(String id, long now) {
+        final Slot slot = index.get(id);
+        if (slot == null) {
+            return null;
+        }
+        if (slot.expiresAt <= now) {
+            remove(id);
+            return null;
+        }
+        return new Record(id, slot.expiresAt, readData(slot));
+    }
+
+    /**
+     * Append record - compacts the log if it is full
+     * @param record
+     */
+    synchronized void write(Record record) {
+        if (!hasRoomFor(buffer, record)) {
+            compact(new ArrayList<Record>(), System.currentTimeMillis());
+            if (!hasRoomFor(buffer, record)) {
+                log.warn("Session file {} is full - dropping session", file);
+                return;
+            }
+        }
+        append(buffer, index, record.id, record.expiresAt, record.data);
+    }
+
+    /**
+     * Append records that changed since they were written. The log is compacted instead if it is mostly dead
+     * records or the changed records do not fit.
+     * @param records
+     * @param now
+     */
+    synchronized void writeAll(Collection<Record> records, long now) {
+        final List<Record> changed = new ArrayList<>();
+        int changedSize = 0;
+        for (Record record : records) {
+            final Slot slot = index.get(record.id);
+            if (slot != null && slot.expiresAt == record.expiresAt && Arrays.equals(readData(slot), record.data)) {
+                continue;
+            }
+            changed.add(record);
+            changedSize += recordSize(record.id, record.data.length);
+        }
+
+        if (changedSize + 4 > buffer.remaining() || isMostlyDead()) {
+            compact(changed, now);
+            return;
+        }
+        for (Record record : changed) {
+            append(buffer, index, record.id, record.expiresAt, record.data);
+        }
+    }
+
+    private boolean isMostlyDead() {
+        long live = 0;
+        for (Map.Entry<String, Slot> entry : index.entrySet()) {
+            live += recordSize(entry.getKey(), entry.getValue().length);
+        }
+        return buffer.position() - live > buffer.position() * COMPACTION_THRESHOLD;
+    }
+
+    synchronized void remove(String id) {
+        if (index.remove(id) == null) {
+            return;
+        }
+        final byte[] idBytes = id.getBytes(UTF8);
+        if (buffer.remaining() < HEADER_SIZE + idBytes.length + 4) {
+            compact(new ArrayList<Record>(), System.currentTimeMillis());
+            return;
+        }
+        append(buffer, index, id, 0, new byte[0]);
+    }
+
+    synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        raf.close();
+    }
+
+    private void compact(Collection<Record> records, long now) {
+        final Map<String, Record> live = new HashMap<>();
+        for (Map.Entry<String, Slot> entry : index.entrySet()) {
+            final Slot slot = entry.getValue();
+            if (slot.expiresAt > now) {
+                live.put(entry.getKey(), new Record(entry.getKey(), slot.expiresAt, readData(slot)));
+            }
+        }
+        for (Record record : records) {
+            live.put(record.id, record);
+        }
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile tempRaf = null;
+        try {
+            tempRaf = new RandomAccessFile(tempFile, "rw");
+            tempRaf.setLength(0);
+            final MappedByteBuffer tempBuffer = tempRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            final Map<String, Slot> tempIndex = new HashMap<>();
+
+            int dropped = 0;
+            for (Record record : live.values()) {
+                if (!hasRoomFor(tempBuffer, record)) {
+                    dropped++;
+                    continue;
+                }
+                append(tempBuffer, tempIndex, record.id, record.expiresAt, record.data);
+            }
+            markEnd(tempBuffer);
+            tempBuffer.force();
+
+            //The open file and its mapping follow the file when it is moved
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            raf.close();
+            raf = tempRaf;
+            buffer = tempBuffer;
+            index = tempIndex;
+            tempRaf = null;
+
+            if (dropped > 0) {
+                log.warn("Session file {} is full - dropped {} sessions", file, dropped);
+            }
+        } catch (IOException ex) {
+            log.error("Failed to compact session file {} - keeping the current log", file, ex);
+        } finally {
+            if (tempRaf != null) {
+                try {
+                    tempRaf.close();
+                } catch (IOException ex) {
+                    //Nothing left to do
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static boolean hasRoomFor(MappedByteBuffer buffer, Record record) {
+        //Leave room for the end marker
+        return buffer.remaining() >= recordSize(record.id, record.data.length) + 4;
+    }
+
+    private static int recordSize(String id, int dataLength) {
+        return HEADER_SIZE + id.getBytes(UTF8).length + dataLength;
+    }
+
+    private static void append(MappedByteBuffer buffer, Map<String, Slot> index, String id, long expiresAt,
+                               byte[] data) {
+        final byte[] idBytes = id.getBytes(UTF8);
+        buffer.putInt(HEADER_SIZE - 4 + idBytes.length + data.length);
+        buffer.putLong(expiresAt);
+        buffer.putShort((short) idBytes.length);
+        buffer.put(idBytes);
+        buffer.putInt(data.length);
+        final int dataPosition = buffer.position();
+        buffer.put(data);
+        markEnd(buffer);
+
+        if (data.length == 0) {
+            index.remove(id);
+        } else {
+            index.put(id, new Slot(dataPosition, data.length, expiresAt));
+        }
+    }
+
+    private static void markEnd(MappedByteBuffer buffer) {
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(buffer.position(), 0);
+        }
+    }
+
+    private byte[] readData(Slot slot) {
+        final byte[] data = new byte[slot.length];
+        final int position = buffer.position();
+        buffer.position(slot.position);
+        buffer.get(data);
+        buffer.position(position);
+        return data;
+    }
+
+    static final class Record {
+        final String id;
+        final long expiresAt;
+        final byte[] data;
+
+        Record(String id, long expiresAt, byte[] data) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.data = data;
+        }
+    }
+
+    private static final class Slot {
+        private final int position;
+        private final int length;
+        private final long expiresAt;
+
+        private Slot(int position, int length, long expiresAt) {
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.vonhof.webi.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session store split into lock striped shards. Each shard keeps its sessions in LRU order and evicts the least
+ * recently used session when it is full. Sessions expire when they have not been accessed for their max age - expired
+ * sessions are removed by a timer wheel.
+ *
+ * Optionally backed by a memory mapped file: evicted sessions are moved to the file and all sessions are written to
+ * it periodically and on close, so they survive restarts. Sessions must be serializable to be persisted.
+ *
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class SessionStore<T extends WebiSession> implements Closeable {
+    private static final Logger log = LogManager.getLogger(SessionStore.class);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Shard[] shards;
+    private final int maxShardSize;
+    private final TimerWheel wheel;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Expiry for sessions without a max age
+     */
+    private volatile long defaultTtl = 3600000;
+    private volatile SessionFile file;
+
+    /**
+     * @param maxSize max sessions kept in memory
+     */
+    public SessionStore(int maxSize) {
+        this(maxSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param maxSize max sessions kept in memory
+     * @param shardCount number of shards - rounded up to a power of 2
+     */
+    public SessionStore(int maxSize, int shardCount) {
+        int size = 1;
+        while (size < shardCount) {
+            size <<= 1;
+        }
+        shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
+        }
+        maxShardSize = Math.max(1, maxSize / size);
+        wheel = new TimerWheel(512, 1000, System.currentTimeMillis());
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "webi-sessions-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire(System.currentTimeMillis());
+                } catch (Throwable ex) {
+                    log.error("Failed while expiring sessions", ex);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Set expiry (in ms) of sessions without a max age
+     * @param defaultTtl
+     */
+    public void setDefaultTtl(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Persist sessions to a memory mapped file. Sessions already in the file are loaded on demand.
+     * @param path
+     * @param maxFileSize size of the file in bytes
+     * @param checkpointInterval how often (in ms) all sessions are written to the file
+     * @throws IOException
+     */
+    public synchronized void persistTo(File path, int maxFileSize, long checkpointInterval) throws IOException {
+        if (file != null) {
+            throw new IllegalStateException("Session store is already persisted to a file");
+        }
+        file = new SessionFile(path, maxFileSize);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Throwable ex) {
+                    log.error("Failed while writing sessions to disk", ex);
+                }
+            }
+        }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public T get(String id) {
+        return get(id, System.currentTimeMillis());
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(String id, long now) {
+        final Shard shard = shardFor(id);
+        Entry expired = null;
+        synchronized (shard) {
+            final Entry entry = shard.entries.get(id);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    entry.touch(now, defaultTtl);
+                    return (T) entry.session;
+                }
+                shard.entries.remove(id);
+                entry.cancelled = true;
+                expired = entry;
+            }
+        }
+
+        final SessionFile file = this.file;
+        if (file == null) {
+            return null;
+        }
+        if (expired != null) {
+            file.remove(id);
+            return null;
+        }
+
+        final SessionFile.Record record = file.read(id, now);
+        if (record == null) {
+            return null;
+        }
+
+        final T session = deserialize(record);
+        if (session == null) {
+            file.remove(id);
+            return null;
+        }
+
+        //Another request may have loaded it in the mean time
+        synchronized (shard) {
+            final Entry existing = shard.entries.get(id);
+            if (existing != null) {
+                return (T) existing.session;
+            }
+        }
+        put(id, session, now);
+        return session;
+    }
+
+    public void put(String id, T session) {
+        put(id, session, System.currentTimeMillis());
+    }
+
+    void put(String id, T session, long now) {
+        final Entry entry = new Entry(id, session);
+        entry.touch(now, defaultTtl);
+
+        final Shard shard = shardFor(id);
+        final List<Entry> evicted = new ArrayList<>();
+        synchronized (shard) {
+            final Entry old = shard.entries.put(id, entry);
+            if (old != null) {
+                old.cancelled = true;
+            }
+
+            final Iterator<Entry> it = shard.entries.values().iterator();
+            while (shard.entries.size() > maxShardSize && it.hasNext()) {
+                final Entry eldest = it.next();
+                it.remove();
+                eldest.cancelled = true;
+                evicted.add(eldest);
+            }
+        }
+        wheel.schedule(entry);
+
+        final SessionFile file = this.file;
+        if (file == null) {
+            return;
+        }
+        for (Entry eldest : evicted) {
+            final SessionFile.Record record = serialize(eldest);
+            if (record != null) {
+                file.write(record);
+            }
+        }
+    }
+
+    public void remove(String id) {
+        final Shard shard = shardFor(id);
+        synchronized (shard) {
+            final Entry entry = shard.entries.remove(id);
+            if (entry != null) {
+                entry.cancelled = true;
+            }
+        }
+
+        final SessionFile file = this.file;
+        if (file != null) {
+            file.remove(id);
+        }
+    }
+
+    /**
+     * Number of sessions in memory
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Remove sessions that expired before the given time
+     * @param now
+     */
+    void expire(long now) {
+        final List<Entry> expired = new ArrayList<>();
+        for (TimerWheel.Timeout timeout : wheel.advance(now)) {
+            final Entry entry = (Entry) timeout;
+            final Shard shard = shardFor(entry.id);
+            synchronized (shard) {
+                if (entry.cancelled) {
+                    continue;
+                }
+                if (entry.expiresAt > now) {
+                    //Accessed after the wheel checked it
+                    wheel.schedule(entry);
+                    continue;
+                }
+                shard.entries.remove(entry.id);
+                entry.cancelled = true;
+                expired.add(entry);
+            }
+        }
+
+        final SessionFile file = this.file;
+        if (file != null) {
+            for (Entry entry : expired) {
+                file.remove(entry.id);
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            log.debug("Expired {} sessions", expired.size());
+        }
+    }
+
+    /**
+     * Write all sessions in memory to the file - if the store is persisted.
+     */
+    public void checkpoint() {
+        final SessionFile file = this.file;
+        if (file == null) {
+            return;
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                entries.addAll(shard.entries.values());
+            }
+        }
+
+        final List<SessionFile.Record> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            final SessionFile.Record record = serialize(entry);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+
+        file.writeAll(records, System.currentTimeMillis());
+        file.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        final SessionFile file = this.file;
+        if (file != null) {
+            checkpoint();
+            file.close();
+        }
+    }
+
+    private Shard shardFor(String id) {
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return shards[hash & (shards.length - 1)];
+    }
+
+    private SessionFile.Record serialize(Entry entry) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(entry.session);
+            }
+            return new SessionFile.Record(entry.id, entry.expiresAt, bytes.toByteArray());
+        } catch (Exception ex) {
+            //Not serializable or modified while writing
+            log.debug("Could not persist session {}", entry.id, ex);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T deserialize(SessionFile.Record record) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record.data))) {
+            return (T) in.readObject();
+        } catch (Exception ex) {
+            log.warn("Could not load session {}", record.id, ex);
+            return null;
+        }
+    }
+
+    private static final class Entry implements TimerWheel.Timeout {
+        private final String id;
+        private final WebiSession session;
+        private volatile long expiresAt;
+        private volatile boolean cancelled = false;
+
+        private Entry(String id, WebiSession session) {
+            this.id = id;
+            this.session = session;
+        }
+
+        private void touch(long now, long defaultTtl) {
+            final int maxAge = session.getMaxAge();
+            expiresAt = now + (maxAge > 0 ? maxAge * 1000L : defaultTtl);
+        }
+
+        @Override
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class Shard {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+}
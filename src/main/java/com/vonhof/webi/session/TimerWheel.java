@@ -0,0 +1,76 @@
+package com.vonhof.webi.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for expiring entries. Entries are placed in the bucket of the tick they expire in. Extending
+ * the expiry of an entry does not move it - it is rescheduled when its old bucket is reached.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class TimerWheel {
+    private final Queue<Timeout>[] buckets;
+    private final long tickMs;
+    private volatile long lastTick;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(int size, long tickMs, long now) {
+        this.tickMs = tickMs;
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<Timeout>();
+        }
+        this.lastTick = now / tickMs;
+    }
+
+    void schedule(Timeout timeout) {
+        //Never schedule into a bucket that has already been passed in this round
+        final long tick = Math.max(timeout.getExpiresAt() / tickMs, lastTick + 1);
+        buckets[(int) (tick % buckets.length)].add(timeout);
+    }
+
+    /**
+     * Advance wheel to the given time
+     * @param now
+     * @return timeouts that have expired
+     */
+    synchronized List<Timeout> advance(long now) {
+        final List<Timeout> expired = new ArrayList<>();
+        final long currentTick = now / tickMs;
+        //No need to go around more than once
+        final long firstTick = Math.max(lastTick + 1, currentTick - buckets.length + 1);
+
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            final Queue<Timeout> bucket = buckets[(int) (tick % buckets.length)];
+            final List<Timeout> due = new ArrayList<>();
+            Timeout timeout;
+            while ((timeout = bucket.poll()) != null) {
+                due.add(timeout);
+            }
+
+            for (Timeout t : due) {
+                if (t.isCancelled()) {
+                    continue;
+                }
+                if (t.getExpiresAt() <= now) {
+                    expired.add(t);
+                } else {
+                    //Extended or due in a later round
+                    final long dueTick = Math.max(t.getExpiresAt() / tickMs, tick + 1);
+                    buckets[(int) (dueTick % buckets.length)].add(t);
+                }
+            }
+        }
+
+        lastTick = Math.max(lastTick, currentTick);
+        return expired;
+    }
+
+    interface Timeout {
+        long getExpiresAt();
+
+        boolean isCancelled();
+    }
+}
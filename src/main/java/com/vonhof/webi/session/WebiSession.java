@@ -1,11 +1,14 @@
 package com.vonhof.webi.session;
 
+import com.vonhof.webi.bean.BeanScope;
+
 import java.util.HashMap;
 
 /**
  *
  * @author Henrik Hofmeister <@vonhofdk>
  */
+@BeanScope(value = BeanScope.Type.LOCAL, ignored = true)
 public class WebiSession extends HashMap<String, Object> {
     private int maxAge = -1;
     private String id;
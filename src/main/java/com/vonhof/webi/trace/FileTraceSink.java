@@ -0,0 +1,48 @@
+package com.vonhof.webi.trace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Appends traces to a file
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class FileTraceSink implements TraceSink, Closeable {
+    private static final Logger log = LogManager.getLogger(FileTraceSink.class);
+
+    private final Writer writer;
+
+    public FileTraceSink(File file) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+    }
+
+    @Override
+    public void export(Trace trace) {
+        final String formatted = TraceFormat.format(trace);
+        synchronized (writer) {
+            try {
+                writer.write(formatted);
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException ex) {
+                log.error("Failed to write trace", ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+}
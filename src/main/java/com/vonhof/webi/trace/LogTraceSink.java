@@ -0,0 +1,19 @@
+package com.vonhof.webi.trace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes traces to the log
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class LogTraceSink implements TraceSink {
+    private static final Logger log = LogManager.getLogger(LogTraceSink.class);
+
+    @Override
+    public void export(Trace trace) {
+        if (log.isInfoEnabled()) {
+            log.info(TraceFormat.format(trace));
+        }
+    }
+}
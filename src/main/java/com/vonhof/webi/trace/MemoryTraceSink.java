@@ -0,0 +1,43 @@
+package com.vonhof.webi.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent traces in memory
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class MemoryTraceSink implements TraceSink {
+    private final Trace[] traces;
+    private long count = 0;
+
+    public MemoryTraceSink(int capacity) {
+        traces = new Trace[Math.max(1, capacity)];
+    }
+
+    @Override
+    public synchronized void export(Trace trace) {
+        traces[(int) (count % traces.length)] = trace;
+        count++;
+    }
+
+    /**
+     * Recent traces - newest first
+     * @return
+     */
+    public synchronized List<Trace> getTraces() {
+        final int size = (int) Math.min(count, traces.length);
+        final List<Trace> out = new ArrayList<>(size);
+        for (long i = count - 1; i >= count - size; i--) {
+            out.add(traces[(int) (i % traces.length)]);
+        }
+        return out;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < traces.length; i++) {
+            traces[i] = null;
+        }
+        count = 0;
+    }
+}
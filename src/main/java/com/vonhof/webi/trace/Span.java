@@ -0,0 +1,72 @@
+package com.vonhof.webi.trace;
+
+import com.vonhof.babelshark.node.SharkNode;
+
+/**
+ * Timed operation within a trace
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class Span {
+    private final int id;
+    private final int parentId;
+    private final String description;
+    private final SharkNode details;
+    private final long startNanos;
+    private long durationNanos = -1;
+
+    Span(int id, int parentId, String description, SharkNode details, long startNanos) {
+        this.id = id;
+        this.parentId = parentId;
+        this.description = description;
+        this.details = details;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Id of span - unique within the trace
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Id of parent span - 0 if this is a top level span
+     * @return
+     */
+    public int getParentId() {
+        return parentId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public SharkNode getDetails() {
+        return details;
+    }
+
+    /**
+     * Start time in nanoseconds - relative to System.nanoTime()
+     * @return
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Duration in nanoseconds - or -1 if not ended yet
+     * @return
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    void end(long endNanos) {
+        durationNanos = endNanos - startNanos;
+    }
+
+    void setDurationNanos(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+}
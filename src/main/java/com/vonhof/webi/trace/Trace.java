@@ -0,0 +1,207 @@
+package com.vonhof.webi.trace;
+
+import com.vonhof.babelshark.node.SharkNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spans recorded while handling a single request. Completed spans are kept in a ring buffer - so a request
+ * that records many spans only keeps the most recent ones - unless the trace is set to keep all spans.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public final class Trace {
+    public static final int DEFAULT_MAX_SPANS = 256;
+
+    private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final long id = nextId.incrementAndGet();
+    private final String description;
+    private boolean sampled;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private long durationNanos = -1;
+
+    private Span[] spans;
+    private int spanCount = 0;
+    private boolean keepAll = false;
+    /**
+     * Spans dropped before the trace was set to keep all spans
+     */
+    private int droppedBefore = 0;
+    private int nextSpanId = 1;
+    private final ArrayDeque<Span> open = new ArrayDeque<>();
+
+    /**
+     * @param description
+     * @param maxSpans max amount of completed spans to keep - 0 to keep all
+     * @param sampled true if the trace should be exported regardless of its duration
+     */
+    public Trace(String description, int maxSpans, boolean sampled) {
+        this.description = description;
+        this.sampled = sampled;
+        this.spans = new Span[maxSpans > 0 ? maxSpans : 16];
+        this.keepAll = maxSpans <= 0;
+    }
+
+    /**
+     * Keep all completed spans from now on - e.g. when they are included in the response
+     */
+    public synchronized void keepAllSpans() {
+        if (keepAll) {
+            return;
+        }
+        final List<Span> kept = getSpans();
+        droppedBefore = getDroppedSpans();
+        spans = kept.toArray(new Span[Math.max(16, spans.length * 2)]);
+        spanCount = kept.size();
+        keepAll = true;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public synchronized boolean isSampled() {
+        return sampled;
+    }
+
+    public synchronized void setSampled(boolean sampled) {
+        this.sampled = sampled;
+    }
+
+    /**
+     * Wall clock time the trace was started
+     * @return
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Wall clock time the span was started
+     * @param span
+     * @return
+     */
+    public long getStartMillis(Span span) {
+        return startMillis + (span.getStartNanos() - startNanos) / 1000000;
+    }
+
+    /**
+     * Duration of the trace in nanoseconds - or time since it was started if it is not finished
+     * @return
+     */
+    public synchronized long getDurationNanos() {
+        return durationNanos > -1 ? durationNanos : System.nanoTime() - startNanos;
+    }
+
+    public synchronized boolean isFinished() {
+        return durationNanos > -1;
+    }
+
+    /**
+     * Start span - nested in the innermost open span
+     * @param description
+     * @param details
+     * @return
+     */
+    public synchronized Span startSpan(String description, SharkNode details) {
+        Span parent = open.peek();
+        Span span = new Span(nextSpanId++, parent != null ? parent.getId() : 0, description, details, System.nanoTime());
+        open.push(span);
+        return span;
+    }
+
+    public synchronized void endSpan(Span span) {
+        if (!open.remove(span)) {
+            return;
+        }
+        span.end(System.nanoTime());
+        add(span);
+    }
+
+    /**
+     * End open span by id
+     * @param spanId
+     * @return false if no open span has the id
+     */
+    public synchronized boolean endSpan(int spanId) {
+        for (Iterator<Span> it = open.iterator(); it.hasNext();) {
+            Span span = it.next();
+            if (span.getId() == spanId) {
+                it.remove();
+                span.end(System.nanoTime());
+                add(span);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add completed span
+     * @param description
+     * @param durationNanos
+     * @param details
+     * @return
+     */
+    public synchronized Span addSpan(String description, long durationNanos, SharkNode details) {
+        Span parent = open.peek();
+        Span span = new Span(nextSpanId++, parent != null ? parent.getId() : 0, description, details,
+                System.nanoTime() - durationNanos);
+        span.setDurationNanos(durationNanos);
+        add(span);
+        return span;
+    }
+
+    private void add(Span span) {
+        if (keepAll && spanCount == spans.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+        }
+        spans[spanCount % spans.length] = span;
+        spanCount++;
+    }
+
+    /**
+     * Completed spans - in the order they were completed
+     * @return
+     */
+    public synchronized List<Span> getSpans() {
+        if (spanCount == 0) {
+            return Collections.emptyList();
+        }
+        final int size = Math.min(spanCount, spans.length);
+        final List<Span> out = new ArrayList<>(size);
+        for (int i = spanCount - size; i < spanCount; i++) {
+            out.add(spans[i % spans.length]);
+        }
+        return out;
+    }
+
+    /**
+     * Amount of spans that were dropped because the ring buffer was full
+     * @return
+     */
+    public synchronized int getDroppedSpans() {
+        return droppedBefore + Math.max(0, spanCount - spans.length);
+    }
+
+    synchronized void finish() {
+        if (durationNanos < 0) {
+            durationNanos = System.nanoTime() - startNanos;
+        }
+    }
+}
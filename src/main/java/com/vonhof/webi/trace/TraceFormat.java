@@ -0,0 +1,26 @@
+package com.vonhof.webi.trace;
+
+/**
+ * Plain text format for traces
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+final class TraceFormat {
+    private TraceFormat() {
+    }
+
+    static String format(Trace trace) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Trace %x: %s (%.3f ms)", trace.getId(), trace.getDescription(),
+                trace.getDurationNanos() / 1e6));
+
+        for (Span span : trace.getSpans()) {
+            sb.append(String.format("%n\t%d<%d: %s (%.3f ms)", span.getId(), span.getParentId(),
+                    span.getDescription(), span.getDurationNanos() / 1e6));
+        }
+
+        if (trace.getDroppedSpans() > 0) {
+            sb.append(String.format("%n\t%d spans dropped", trace.getDroppedSpans()));
+        }
+        return sb.toString();
+    }
+}
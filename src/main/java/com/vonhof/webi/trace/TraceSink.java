@@ -0,0 +1,9 @@
+package com.vonhof.webi.trace;
+
+/**
+ * Receives completed traces that were selected for export
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public interface TraceSink {
+    void export(Trace trace);
+}
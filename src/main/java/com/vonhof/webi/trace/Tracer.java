@@ -0,0 +1,123 @@
+package com.vonhof.webi.trace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates traces for requests and exports the completed ones to a sink. All requests are traced while a sink is
+ * set - but only sampled and slow requests are exported.
+ * @author Henrik Hofmeister <@vonhofdk>
+ */
+public class Tracer {
+    private static final Logger log = LogManager.getLogger(Tracer.class);
+
+    private volatile TraceSink sink;
+    private volatile double sampleRate = 0.01;
+    private volatile long slowThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile int maxSpans = Trace.DEFAULT_MAX_SPANS;
+
+    /**
+     * Tracing is enabled when a sink is set
+     * @return
+     */
+    public boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * Start trace for request
+     * @param description
+     * @return trace - or null if tracing is disabled
+     */
+    public Trace start(String description) {
+        if (sink == null) {
+            return null;
+        }
+        return new Trace(description, maxSpans, ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * Start trace that is always exported - e.g. when explicitly requested by the client
+     * @param description
+     * @return
+     */
+    public Trace startForced(String description) {
+        return new Trace(description, maxSpans, true);
+    }
+
+    /**
+     * Finish trace and export it if it was sampled or was slow
+     * @param trace
+     */
+    public void finish(Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        trace.finish();
+
+        final TraceSink currentSink = sink;
+        if (currentSink == null) {
+            return;
+        }
+
+        if (trace.isSampled() || trace.getDurationNanos() >= slowThresholdNanos) {
+            try {
+                currentSink.export(trace);
+            } catch (RuntimeException ex) {
+                log.error("Failed to export trace", ex);
+            }
+        }
+    }
+
+    public TraceSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Set sink for completed traces. Set to null to disable tracing.
+     * @param sink
+     */
+    public void setSink(TraceSink sink) {
+        this.sink = sink;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Fraction of requests to export regardless of duration - from 0 to 1
+     * @param sampleRate
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public long getSlowThreshold(TimeUnit unit) {
+        return unit.convert(slowThresholdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Requests taking longer than this are always exported
+     * @param threshold
+     * @param unit
+     */
+    public void setSlowThreshold(long threshold, TimeUnit unit) {
+        this.slowThresholdNanos = unit.toNanos(threshold);
+    }
+
+    public int getMaxSpans() {
+        return maxSpans;
+    }
+
+    /**
+     * Max amount of spans kept per trace
+     * @param maxSpans
+     */
+    public void setMaxSpans(int maxSpans) {
+        this.maxSpans = maxSpans;
+    }
+}
@@ -0,0 +1,82 @@
+package com.vonhof.webi;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+
+public class PathPatternMapTest {
+
+    @Test
+    public void compiled_map_resolves_longest_prefix() {
+        PathPatternMap<String> linear = new PathPatternMap<String>();
+        PathPatternMap<String> compiled = new PathPatternMap<String>();
+        for (PathPatternMap<String> map : Arrays.asList(linear, compiled)) {
+            map.put("/", "root");
+            map.put("/rest/", "rest");
+            map.put("/rest/admin/", "admin");
+            map.put("/res", "res");
+            map.put("/static/", "static");
+        }
+        compiled.compile();
+
+        assertTrue(compiled.isCompiled());
+
+        for (String path : Arrays.asList("/", "/rest/", "/rest/admin/users", "/rest/user", "/resource",
+                                         "/static/js/app.js", "/other", "", "/re")) {
+            assertEquals(path, linear.get(path), compiled.get(path));
+            assertEquals(path, linear.getPattern(path), compiled.getPattern(path));
+            assertEquals(path, linear.trimContext(path), compiled.trimContext(path));
+        }
+
+        assertEquals("admin", compiled.get("/rest/admin/users"));
+        assertEquals("res", compiled.get("/resource"));
+        assertNull(compiled.get(""));
+    }
+
+    @Test
+    public void compiled_map_returns_all_matches_in_insertion_order() {
+        PathPatternMap<String> compiled = new PathPatternMap<String>();
+        compiled.put("/", "root");
+        compiled.put("/rest/", "rest");
+        compiled.put("/rest/admin/", "admin");
+        compiled.put("/res", "res");
+        compiled.put("/static/", "static");
+        compiled.compile();
+
+        assertEquals(Arrays.asList("root", "rest", "admin", "res"), compiled.getAll("/rest/admin/"));
+        assertEquals(Arrays.asList("root", "res"), compiled.getAll("/resource"));
+        assertEquals(Collections.<String>emptyList(), compiled.getAll("other"));
+
+        PathPatternMap<String> reversed = new PathPatternMap<String>();
+        reversed.put("/rest/admin/", "admin");
+        reversed.put("/rest/", "rest");
+        reversed.put("/", "root");
+        reversed.compile();
+
+        assertEquals(Arrays.asList("admin", "rest", "root"), reversed.getAll("/rest/admin/x"));
+    }
+
+    @Test
+    public void compiled_map_is_rebuilt_when_patterns_are_added() {
+        PathPatternMap<String> compiled = new PathPatternMap<String>();
+        compiled.put("/", "root");
+        compiled.put("/rest/", "rest");
+        compiled.put("/rest/admin/", "admin");
+        compiled.put("/res", "res");
+        compiled.put("/static/", "static");
+        compiled.compile();
+
+        assertEquals("rest", compiled.get("/rest/users/"));
+
+        compiled.put("/rest/users/", "users");
+        compiled.put("/", "new-root");
+
+        assertEquals("users", compiled.get("/rest/users/"));
+        assertEquals("new-root", compiled.get("/other"));
+        assertEquals(Arrays.asList("new-root", "rest", "res", "users"), compiled.getAll("/rest/users/1"));
+    }
+}
@@ -3,6 +3,9 @@ package com.vonhof.webi.bean;
 import org.junit.Test;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -93,6 +96,46 @@ public class BeanContextTest {
         assertEquals(mainBean.getValue(), beanUser.getSimpleLocalBean().getValue());
     }
 
+    @Test
+    public void request_scope_can_be_bound_on_other_threads() throws Throwable {
+
+        final BeanContext bc = new BeanContext();
+        final SimpleBeanUser beanUser = new SimpleBeanUser();
+        bc.add(new SimpleLocalBean("main"));
+        bc.injectOnly(beanUser);
+
+        final RequestScope scope = bc.newScope();
+        try (RequestScope.Binding binding = scope.enter()) {
+            scope.add(new SimpleLocalBean("request"));
+            assertEquals("request", beanUser.getSimpleLocalBean().getValue());
+        }
+
+        //Previous scope is restored
+        assertEquals("main", beanUser.getSimpleLocalBean().getValue());
+
+        final String[] value = new String[1];
+        ThrowingThread thread = new ThrowingThread() {
+
+            @Override
+            public void runThrows() throws Throwable {
+                scope.wrap(new Runnable() {
+                    @Override
+                    public void run() {
+                        value[0] = beanUser.getSimpleLocalBean().getValue();
+                    }
+                }).run();
+
+                assertNull(bc.getScope());
+            }
+        };
+
+        thread.start();
+        thread.join();
+        thread.done();
+
+        assertEquals("request", value[0]);
+    }
+
     @Test
     public void can_inject_variables_into_bean() throws Throwable {
 
@@ -117,6 +160,111 @@ public class BeanContextTest {
         assertTrue(beanContainer.getSimpleBean().isState());
     }
 
+    @Test
+    public void after_init_is_called_after_dependencies() throws Throwable {
+
+        final BeanContext bc = new BeanContext();
+        bc.setParallelInit(true);
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        bc.add(new InitBean("first", calls));
+        bc.add(new DependentInitBean(calls));
+        bc.add(new OtherInitBean(calls));
+
+        bc.injectAll();
+
+        assertEquals(3, calls.size());
+        assertTrue(calls.indexOf("first") < calls.indexOf("dependent"));
+        assertFalse(bc.getStartupTimings().isEmpty());
+
+        //Only called once
+        bc.injectAll();
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void beans_can_not_be_added_from_parallel_after_init() throws Throwable {
+        final BeanContext bc = new BeanContext();
+        bc.setParallelInit(true);
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        bc.add(new InitBean("first", calls));
+        bc.add(new RegisteringInitBean());
+
+        try {
+            bc.injectAll();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertNull(bc.get(SimpleBean.class));
+        }
+    }
+
+    public static class RegisteringInitBean implements AfterInit {
+        @Inject
+        private BeanContext context;
+
+        @Override
+        public void afterInit() {
+            context.add(new SimpleBean());
+        }
+    }
+
+    public static class InitBean implements AfterInit {
+        private final String name;
+        private final List<String> calls;
+
+        public InitBean() {
+            this(null, null);
+        }
+
+        public InitBean(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        @Override
+        public void afterInit() {
+            calls.add(name);
+        }
+    }
+
+    public static class DependentInitBean implements AfterInit {
+        @Inject
+        private InitBean initBean;
+
+        private final List<String> calls;
+
+        public DependentInitBean() {
+            this(null);
+        }
+
+        public DependentInitBean(List<String> calls) {
+            this.calls = calls;
+        }
+
+        @Override
+        public void afterInit() {
+            calls.add("dependent");
+        }
+    }
+
+    public static class OtherInitBean implements AfterInit {
+        private final List<String> calls;
+
+        public OtherInitBean() {
+            this(null);
+        }
+
+        public OtherInitBean(List<String> calls) {
+            this.calls = calls;
+        }
+
+        @Override
+        public void afterInit() {
+            calls.add("other");
+        }
+    }
+
     public static class SimpleBean {
         private boolean state;
 
@@ -0,0 +1,126 @@
+package com.vonhof.webi.qos;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class PriorityAdmissionControllerTest {
+
+    private static class RecordingWaiter implements AdmissionController.Waiter {
+        private final String name;
+        private final List<String> admitted;
+        private AdmissionController.Permit permit;
+
+        private RecordingWaiter(String name, List<String> admitted) {
+            this.name = name;
+            this.admitted = admitted;
+        }
+
+        @Override
+        public void admit(AdmissionController.Permit permit) {
+            this.permit = permit;
+            admitted.add(name);
+        }
+    }
+
+    @Test
+    public void queued_requests_are_admitted_by_priority_then_arrival() {
+        PriorityAdmissionController controller = new PriorityAdmissionController(1);
+        controller.setPriority("/", Priority.NORMAL);
+        controller.setPriority("/admin/", Priority.HIGH);
+        controller.setPriority("/reports/", Priority.LOW);
+        List<String> admitted = new ArrayList<String>();
+
+        AdmissionController.Permit first = controller.tryAcquire(null, "/users");
+        assertNotNull(first);
+        assertNull(controller.tryAcquire(null, "/users"));
+
+        RecordingWaiter low = new RecordingWaiter("low", admitted);
+        RecordingWaiter normal1 = new RecordingWaiter("normal1", admitted);
+        RecordingWaiter high = new RecordingWaiter("high", admitted);
+        RecordingWaiter normal2 = new RecordingWaiter("normal2", admitted);
+
+        assertTrue(controller.enqueue(null, "/reports/daily", low));
+        assertTrue(controller.enqueue(null, "/users", normal1));
+        assertTrue(controller.enqueue(null, "/admin/users", high));
+        assertTrue(controller.enqueue(null, "/users", normal2));
+        assertEquals(4, controller.getQueued());
+
+        first.release(1000, true);
+        high.permit.release(1000, true);
+        normal1.permit.release(1000, true);
+        normal2.permit.release(1000, true);
+        low.permit.release(1000, true);
+
+        assertEquals(0, controller.getInFlight());
+        assertEquals(0, controller.getQueued());
+        assertEquals("[high, normal1, normal2, low]", admitted.toString());
+    }
+
+    @Test
+    public void route_limit_does_not_block_other_routes() {
+        PriorityAdmissionController controller = new PriorityAdmissionController(2);
+        controller.setPriority("/", Priority.NORMAL);
+        controller.setPriority("/reports/", Priority.LOW);
+        controller.setLimit("/reports/", 1);
+        List<String> admitted = new ArrayList<String>();
+
+        AdmissionController.Permit report = controller.tryAcquire(null, "/reports/daily");
+        AdmissionController.Permit other = controller.tryAcquire(null, "/users");
+        assertNotNull(report);
+        assertNotNull(other);
+
+        RecordingWaiter queuedReport = new RecordingWaiter("report", admitted);
+        RecordingWaiter queuedUsers = new RecordingWaiter("users", admitted);
+        assertTrue(controller.enqueue(null, "/reports/weekly", queuedReport));
+        assertTrue(controller.enqueue(null, "/users", queuedUsers));
+
+        //Frees global capacity but the reports route is still at its limit
+        other.release(1000, true);
+        assertEquals("[users]", admitted.toString());
+
+        report.release(1000, true);
+        assertEquals("[users, report]", admitted.toString());
+    }
+
+    @Test
+    public void cancelled_and_released_permits_are_only_counted_once() {
+        PriorityAdmissionController controller = new PriorityAdmissionController(1);
+        controller.setPriority("/", Priority.NORMAL);
+        List<String> admitted = new ArrayList<String>();
+
+        AdmissionController.Permit permit = controller.tryAcquire(null, "/users");
+        RecordingWaiter waiter = new RecordingWaiter("waiter", admitted);
+        assertTrue(controller.enqueue(null, "/users", waiter));
+
+        assertTrue(controller.cancel(waiter));
+        assertFalse(controller.cancel(waiter));
+
+        permit.release(1000, true);
+        permit.release(1000, true);
+
+        assertTrue(admitted.isEmpty());
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    public void controllers_can_share_a_registry() {
+        MetricRegistry registry = new MetricRegistry();
+        PriorityAdmissionController original = new PriorityAdmissionController(1, registry);
+        original.setPriority("/reports/", Priority.LOW);
+        original.setLimit("/reports/", 1);
+
+        PriorityAdmissionController replacement = new PriorityAdmissionController(2, registry);
+        replacement.setPriority("/", Priority.NORMAL);
+        replacement.setPriority("/reports/", Priority.LOW);
+        replacement.setLimit("/reports/", 1);
+        assertNotNull(replacement.tryAcquire(null, "/users"));
+
+        assertEquals(1, registry.getGauges().get("webi.admission.in-flight").getValue());
+    }
+}
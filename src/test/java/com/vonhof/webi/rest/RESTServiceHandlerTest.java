@@ -0,0 +1,119 @@
+package com.vonhof.webi.rest;
+
+import com.vonhof.webi.Webi;
+import com.vonhof.webi.annotation.Path;
+import com.vonhof.webi.qos.PriorityAdmissionController;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+
+public class RESTServiceHandlerTest {
+
+    private Webi webi;
+    private int port;
+    private final DeferredController controller = new DeferredController();
+
+    @Path("deferred")
+    public static class DeferredController {
+        private volatile Deferred<String> pending;
+
+        @Path("never")
+        public Deferred<String> never() {
+            return new Deferred<>();
+        }
+
+        @Path("pending")
+        public Deferred<String> pending() {
+            pending = new Deferred<>();
+            return pending;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        webi = new Webi(port, 10, 0, 10);
+        final RESTServiceHandler handler = webi.add("/rest/", new RESTServiceHandler());
+        handler.setAsyncTimeout(100);
+        handler.expose(controller);
+
+        final Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webi.start();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        for (int i = 0; i < 500; i++) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(10);
+            }
+        }
+        fail("Server did not start");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        webi.stop(false);
+    }
+
+    @Test
+    public void deferred_that_never_completes_times_out_with_503() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/rest/deferred/never").openConnection();
+        conn.setReadTimeout(5000);
+
+        assertEquals(503, conn.getResponseCode());
+    }
+
+    @Test
+    public void async_requests_hold_their_permit_until_done() throws Exception {
+        final PriorityAdmissionController admission = (PriorityAdmissionController) webi.getAdmissionController();
+        final HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/rest/deferred/pending").openConnection();
+        conn.setReadTimeout(5000);
+        final Thread client = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    conn.getResponseCode();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        client.start();
+
+        for (int i = 0; i < 500 && controller.pending == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(controller.pending);
+        assertEquals(1, admission.getInFlight());
+
+        controller.pending.resolve("done");
+        client.join(5000);
+        assertEquals(200, conn.getResponseCode());
+        for (int i = 0; i < 500 && admission.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, admission.getInFlight());
+    }
+}
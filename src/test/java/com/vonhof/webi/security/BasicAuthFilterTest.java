@@ -0,0 +1,73 @@
+package com.vonhof.webi.security;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+
+public class BasicAuthFilterTest {
+
+    private String header(String username, String password) {
+        return "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void verified_credentials_are_cached() {
+        BasicAuthFilter filter = new BasicAuthFilter("test", "henrik", "secret");
+
+        assertTrue(filter.authenticate(header("henrik", "secret")));
+        assertTrue(filter.authenticate(header("henrik", "secret")));
+
+        assertEquals(1, filter.getMisses().getCount());
+        assertEquals(1, filter.getHits().getCount());
+        assertEquals(0, filter.getFailures().getCount());
+    }
+
+    @Test
+    public void wrong_or_unknown_credentials_fail() {
+        BasicAuthFilter filter = new BasicAuthFilter("test", "henrik", "secret");
+
+        assertFalse(filter.authenticate(header("henrik", "wrong")));
+        assertFalse(filter.authenticate(header("unknown", "secret")));
+        assertFalse(filter.authenticate("Basic " + Base64.encodeBase64String("nocolon".getBytes())));
+
+        assertEquals(3, filter.getFailures().getCount());
+        assertEquals(0, filter.getHits().getCount());
+    }
+
+    @Test
+    public void removed_users_are_not_served_from_cache() {
+        BasicAuthFilter filter = new BasicAuthFilter("test", "henrik", "secret");
+        assertTrue(filter.authenticate(header("henrik", "secret")));
+
+        filter.removeUser("henrik");
+        assertFalse(filter.authenticate(header("henrik", "secret")));
+    }
+
+    @Test
+    public void users_removed_while_verifying_are_not_cached() throws InterruptedException {
+        final BasicAuthFilter filter = new BasicAuthFilter("test");
+        //Slow hash - so the user is removed while it is verified
+        filter.addUserHash("henrik", PasswordHash.hash("secret", 500000));
+
+        final AtomicBoolean verified = new AtomicBoolean();
+        Thread verifier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                verified.set(filter.authenticate(header("henrik", "secret")));
+            }
+        });
+        verifier.start();
+        while (filter.getMisses().getCount() == 0) {
+            Thread.sleep(1);
+        }
+        filter.removeUser("henrik");
+        verifier.join();
+
+        assertFalse(filter.authenticate(header("henrik", "secret")));
+    }
+}
@@ -0,0 +1,139 @@
+package com.vonhof.webi.session;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class SessionStoreTest {
+
+    @Test
+    public void least_recently_used_sessions_are_evicted() throws Exception {
+        SessionStore<WebiSession> store = new SessionStore<WebiSession>(2, 1);
+        try {
+            long now = System.currentTimeMillis();
+            WebiSession aSession = new WebiSession();
+            aSession.setMaxAge(60);
+            store.put("a", aSession, now);
+            WebiSession bSession = new WebiSession();
+            bSession.setMaxAge(60);
+            store.put("b", bSession, now);
+            assertNotNull(store.get("a", now));
+
+            WebiSession cSession = new WebiSession();
+            cSession.setMaxAge(60);
+            store.put("c", cSession, now);
+
+            assertEquals(2, store.size());
+            assertNotNull(store.get("a", now));
+            assertNull(store.get("b", now));
+            assertNotNull(store.get("c", now));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void sessions_expire_unless_accessed() throws Exception {
+        SessionStore<WebiSession> store = new SessionStore<WebiSession>(100, 1);
+        try {
+            long now = System.currentTimeMillis();
+            WebiSession idleSession = new WebiSession();
+            idleSession.setMaxAge(10);
+            store.put("idle", idleSession, now);
+            WebiSession activeSession = new WebiSession();
+            activeSession.setMaxAge(10);
+            store.put("active", activeSession, now);
+
+            assertNotNull(store.get("active", now + 8000));
+            store.expire(now + 12000);
+
+            assertEquals(1, store.size());
+            assertNull(store.get("idle", now + 12000));
+            assertNotNull(store.get("active", now + 12000));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void persisted_sessions_survive_restart() throws Exception {
+        File file = File.createTempFile("webi-sessions", ".db");
+        file.deleteOnExit();
+
+        SessionStore<WebiSession> store = new SessionStore<WebiSession>(1, 1);
+        store.persistTo(file, 1024 * 1024, 60000);
+        WebiSession first = new WebiSession();
+        first.setMaxAge(60);
+        first.put("user", "henrik");
+        store.put("first", first);
+        //Evicts first to disk
+        WebiSession secondSession = new WebiSession();
+        secondSession.setMaxAge(60);
+        store.put("second", secondSession);
+        store.remove("second");
+        store.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        SessionStore<WebiSession> restarted = new SessionStore<WebiSession>(10, 1);
+        restarted.persistTo(file, 1024 * 1024, 60000);
+        try {
+            WebiSession loaded = restarted.get("first");
+            assertNotNull(loaded);
+            assertEquals("henrik", loaded.get("user"));
+            assertNull(restarted.get("second"));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void checkpoints_only_compact_mostly_dead_files() throws Exception {
+        File file = File.createTempFile("webi-sessions", ".db");
+        file.deleteOnExit();
+        long now = System.currentTimeMillis();
+        byte[] data = new byte[100];
+
+        SessionFile sessionFile = new SessionFile(file, 64 * 1024);
+        try {
+            List<SessionFile.Record> records = new ArrayList<SessionFile.Record>();
+            for (int i = 0; i < 10; i++) {
+                records.add(new SessionFile.Record("session" + i, now + 60000, data));
+            }
+            sessionFile.writeAll(records, now);
+            Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+
+            //Unchanged and a few changed sessions are appended to the same file
+            sessionFile.writeAll(records, now);
+            records.set(0, new SessionFile.Record("session0", now + 120000, data));
+            sessionFile.writeAll(records, now);
+            assertEquals(fileKey, Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey());
+
+            //Rewriting all sessions leaves the log mostly dead
+            List<SessionFile.Record> updated = new ArrayList<SessionFile.Record>();
+            for (int i = 0; i < 10; i++) {
+                updated.add(new SessionFile.Record("session" + i, now + 180000, data));
+            }
+            sessionFile.writeAll(updated, now);
+            sessionFile.writeAll(updated, now);
+            assertFalse(fileKey.equals(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey()));
+            assertEquals(10, sessionFile.size());
+        } finally {
+            sessionFile.close();
+        }
+
+        SessionFile reopened = new SessionFile(file, 64 * 1024);
+        try {
+            assertEquals(10, reopened.size());
+            assertEquals(now + 180000, reopened.read("session0", now).expiresAt);
+        } finally {
+            reopened.close();
+        }
+    }
+}
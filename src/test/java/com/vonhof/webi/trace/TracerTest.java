@@ -0,0 +1,92 @@
+package com.vonhof.webi.trace;
+
+import com.vonhof.webi.WebiContext;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class TracerTest {
+
+    @Test
+    public void spans_are_nested_and_kept_in_ring_buffer() {
+        Trace trace = new Trace("GET /test", 3, false);
+
+        Span outer = trace.startSpan("outer", null);
+        Span inner = trace.startSpan("inner", null);
+        trace.endSpan(inner);
+        trace.addSpan("timing", 1000, null);
+        trace.endSpan(outer.getId());
+
+        List<Span> spans = trace.getSpans();
+        assertEquals(3, spans.size());
+        assertEquals("inner", spans.get(0).getDescription());
+        assertEquals(outer.getId(), spans.get(0).getParentId());
+        assertEquals(outer.getId(), spans.get(1).getParentId());
+        assertEquals(0, spans.get(2).getParentId());
+        assertEquals(1000, spans.get(1).getDurationNanos());
+
+        trace.addSpan("overflow", 1000, null);
+        spans = trace.getSpans();
+        assertEquals(3, spans.size());
+        assertEquals("timing", spans.get(0).getDescription());
+        assertEquals("overflow", spans.get(2).getDescription());
+        assertEquals(1, trace.getDroppedSpans());
+    }
+
+    @Test
+    public void traces_can_keep_all_spans() {
+        Trace trace = new Trace("GET /test", 2, false);
+        trace.addSpan("dropped", 1000, null);
+        trace.addSpan("first", 1000, null);
+        trace.addSpan("second", 1000, null);
+
+        trace.keepAllSpans();
+        for (int i = 0; i < 100; i++) {
+            trace.addSpan("more", 1000, null);
+        }
+
+        List<Span> spans = trace.getSpans();
+        assertEquals(102, spans.size());
+        assertEquals("first", spans.get(0).getDescription());
+        assertEquals(1, trace.getDroppedSpans());
+    }
+
+    @Test
+    public void timings_are_traced_without_load_metrics() {
+        WebiContext ctxt = new WebiContext();
+        ctxt.addTiming("untraced", 10, null);
+
+        ctxt.setTrace(new Trace("GET /test", 10, false));
+        ctxt.addTiming("traced", 10, null);
+
+        assertFalse(ctxt.isLoadMetricsEnabled());
+        assertEquals(1, ctxt.getTrace().getSpans().size());
+        assertEquals("traced", ctxt.getTrace().getSpans().get(0).getDescription());
+    }
+
+    @Test
+    public void exports_sampled_and_slow_traces() {
+        Tracer tracer = new Tracer();
+        assertNull(tracer.start("GET /disabled"));
+
+        MemoryTraceSink sink = new MemoryTraceSink(10);
+        tracer.setSink(sink);
+        tracer.setSampleRate(0);
+        tracer.setSlowThreshold(1, TimeUnit.HOURS);
+
+        tracer.finish(tracer.start("GET /fast"));
+        assertTrue(sink.getTraces().isEmpty());
+
+        tracer.finish(tracer.startForced("GET /forced"));
+        assertEquals(1, sink.getTraces().size());
+
+        tracer.setSlowThreshold(0, TimeUnit.NANOSECONDS);
+        tracer.finish(tracer.start("GET /slow"));
+        assertEquals(2, sink.getTraces().size());
+        assertEquals("GET /slow", sink.getTraces().get(0).getDescription());
+    }
+}